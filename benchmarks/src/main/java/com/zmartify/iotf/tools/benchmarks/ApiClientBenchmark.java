@@ -0,0 +1,92 @@
+package com.zmartify.iotf.tools.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonObject;
+import com.zmartify.iotf.tools.api.JsonResultIterator;
+import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
+
+/**
+ * Request construction, round trip and response parsing of {@link ZmartifyAPIClient} against
+ * {@link StubApiServer}.
+ *
+ * <p>
+ * <code>getDeviceTypeNewClient</code> creates a client (and thereby a connection pool and TLS session) per
+ * request, as a baseline for the shared pooled client. Run with <code>-t</code> to measure the client under
+ * concurrent use.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiClientBenchmark {
+
+    @Param({ "100", "1000" })
+    public int deviceCount;
+
+    private StubApiServer server;
+    private ZmartifyAPIClient apiClient;
+    private JsonObject deviceType;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new StubApiServer(deviceCount);
+        apiClient = new ZmartifyAPIClient(server.getClientProperties());
+        deviceType = StubApiServer.createDeviceType("bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        apiClient.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public JsonObject getDeviceType() throws Exception {
+        return apiClient.getDeviceType("bench");
+    }
+
+    @Benchmark
+    public JsonObject getDeviceTypeNewClient() throws Exception {
+        try (ZmartifyAPIClient client = new ZmartifyAPIClient(server.getClientProperties())) {
+            return client.getDeviceType("bench");
+        }
+    }
+
+    @Benchmark
+    public JsonObject addDeviceType() throws Exception {
+        return apiClient.addDeviceType(deviceType);
+    }
+
+    @Benchmark
+    public JsonObject getAllDevices() throws Exception {
+        return apiClient.getAllDevices();
+    }
+
+    @Benchmark
+    public void iterateAllDevices(Blackhole blackhole) throws Exception {
+        try (JsonResultIterator devices = apiClient.iterateAllDevices(null)) {
+            while (devices.hasNext()) {
+                blackhole.consume(devices.next());
+            }
+        }
+    }
+}
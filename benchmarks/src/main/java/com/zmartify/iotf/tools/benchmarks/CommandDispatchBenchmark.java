@@ -0,0 +1,127 @@
+package com.zmartify.iotf.tools.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.iotf.client.gateway.Command;
+import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.CommandDispatcher.OverflowPolicy;
+import com.zmartify.iotf.tools.gateway.DeviceRegistry;
+import com.zmartify.iotf.tools.gateway.GatewayCommandCallback;
+import com.zmartify.iotf.tools.gateway.home.Device;
+
+/**
+ * Throughput of {@link GatewayCommandCallback} from the arrival of a command until the device has processed it.
+ *
+ * <p>
+ * The devices only count the commands, so the numbers reflect the queueing and lookup of the callback. The
+ * gateway client is never connected.
+ * </p>
+ *
+ * <p>
+ * With a single worker all devices share one queue, as before the commands were sharded.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    private static final int BATCH = 1024;
+
+    @Param({ "1", "100" })
+    public int deviceCount;
+
+    @Param({ "1", "4" })
+    public int workers;
+
+    private final AtomicLong processed = new AtomicLong();
+    private GatewayCommandCallback callback;
+    private Command[] commands;
+    private long dispatched;
+
+    private static class CountingDevice extends Device {
+        private final AtomicLong processed;
+
+        CountingDevice(String deviceId, GatewayClient gwClient, AtomicLong processed) {
+            super(deviceId, gwClient, 0);
+            this.deviceType = DeviceType.SWITCH;
+            this.processed = processed;
+        }
+
+        @Override
+        public void processCommand(String cmd) {
+            processed.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Properties options = new Properties();
+        options.setProperty("org", "bench");
+        options.setProperty("type", "gateway");
+        options.setProperty("id", "gw1");
+        options.setProperty("auth-method", "token");
+        options.setProperty("auth-token", "token");
+        GatewayClient gwClient = new GatewayClient(options);
+
+        callback = new GatewayCommandCallback(gwClient, new DeviceRegistry(), workers, BATCH,
+                OverflowPolicy.BLOCK);
+        for (int i = 0; i < deviceCount; i++) {
+            Device device = new CountingDevice("switch-" + i, gwClient, processed);
+            callback.addDeviceInterface(device);
+        }
+
+        commands = new Command[BATCH];
+        byte[] payload = "{\"d\":{\"state\":\"ON\"}}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < BATCH; i++) {
+            String topic = "iot-2/type/" + Device.DeviceType.SWITCH.getDeviceType() + "/id/switch-"
+                    + (i % deviceCount) + "/cmd/switch/fmt/json";
+            commands[i] = new Command(topic, new MqttMessage(payload));
+        }
+
+        callback.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        callback.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch() {
+        for (Command cmd : commands) {
+            callback.processCommand(cmd);
+        }
+        dispatched += BATCH;
+        while (processed.get() < dispatched) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.zmartify.iotf.tools.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.zmartify.iotf.tools.gateway.ZmartifyDeviceType;
+
+/**
+ * Generation of the application interface schemas and property mappings of all {@link ZmartifyDeviceType}s, as
+ * done when the configuration is provisioned.
+ *
+ * <p>
+ * <code>apiJsonPrettyNewGson</code> creates a pretty printing Gson per document, the way the resource files are
+ * written, as a baseline for <code>apiJsonPrettySharedGson</code>.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceTypeJsonBenchmark {
+
+    private final Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
+
+    @Benchmark
+    public void apiJson(Blackhole blackhole) {
+        for (ZmartifyDeviceType dt : ZmartifyDeviceType.values()) {
+            blackhole.consume(dt.getAPIJson().toString());
+        }
+    }
+
+    @Benchmark
+    public void apiJsonPrettyNewGson(Blackhole blackhole) {
+        for (ZmartifyDeviceType dt : ZmartifyDeviceType.values()) {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            blackhole.consume(gson.toJson(dt.getAPIJson()));
+        }
+    }
+
+    @Benchmark
+    public void apiJsonPrettySharedGson(Blackhole blackhole) {
+        for (ZmartifyDeviceType dt : ZmartifyDeviceType.values()) {
+            blackhole.consume(prettyGson.toJson(dt.getAPIJson()));
+        }
+    }
+
+    @Benchmark
+    public void mappingJson(Blackhole blackhole) {
+        for (ZmartifyDeviceType dt : ZmartifyDeviceType.values()) {
+            blackhole.consume(dt.getMAPJson("5846cd7c6522050001db0e12").toString());
+        }
+    }
+}
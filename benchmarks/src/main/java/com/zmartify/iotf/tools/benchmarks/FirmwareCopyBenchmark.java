@@ -0,0 +1,108 @@
+package com.zmartify.iotf.tools.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zmartify.iotf.tools.gateway.FirmwareDownloader;
+
+/**
+ * Download throughput of a firmware image from {@link StubApiServer} into a local file.
+ *
+ * <p>
+ * <code>downloader</code> measures {@link FirmwareDownloader} as used by the firmware handler, with a direct
+ * buffer of <code>bufferSize</code> bytes and the MD5 computed while writing. <code>streamCopy</code> is the
+ * buffered stream loop the handler used before, reading blocks of <code>bufferSize</code> bytes from the same
+ * HTTPS connection, without the MD5.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirmwareCopyBenchmark {
+
+    @Param({ "16" })
+    public int imageSizeMb;
+
+    @Param({ "8192", "65536", "262144" })
+    public int bufferSize;
+
+    private StubApiServer server;
+    private File source;
+    private File target;
+    private URL url;
+    private FirmwareDownloader downloader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        source = File.createTempFile("firmware-source", ".deb");
+        target = File.createTempFile("firmware-target", ".deb");
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream os = new FileOutputStream(source)) {
+            for (int i = 0; i < imageSizeMb; i++) {
+                ThreadLocalRandom.current().nextBytes(block);
+                os.write(block);
+            }
+        }
+        server = new StubApiServer(0);
+        url = server.addFirmware("image.deb", source);
+        HttpsURLConnection.setDefaultSSLSocketFactory(server.getClientSSLContext().getSocketFactory());
+        downloader = new FirmwareDownloader(bufferSize, FirmwareDownloader.DEFAULT_MAX_ATTEMPTS,
+                FirmwareDownloader.DEFAULT_RETRY_DELAY_MILLIS, FirmwareDownloader.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long downloader() throws IOException {
+        return downloader.download(url, target, null).getSize();
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        long size = 0;
+        HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+        try (BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
+                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target))) {
+            byte[] block = new byte[bufferSize];
+            int len;
+            while ((len = bis.read(block, 0, block.length)) != -1) {
+                bos.write(block, 0, len);
+                size += len;
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,221 @@
+package com.zmartify.iotf.tools.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * In-process stand-in for the Watson IoT Platform REST API, so the client can be measured without the network
+ * and the platform in the way.
+ *
+ * <p>
+ * The server listens on 127.0.0.1 with a throw-away self-signed certificate (created with the
+ * <code>keytool</code> of the running JVM) and answers
+ * </p>
+ * <ul>
+ * <li>GET /api/v0002/device/types/{id} with a single device type</li>
+ * <li>POST /api/v0002/device/types with the posted body (201)</li>
+ * <li>GET /api/v0002/bulk/devices with a listing of the configured number of devices</li>
+ * <li>GET /firmware/{name} with the content of a file added by {@link #addFirmware(String, File)}</li>
+ * </ul>
+ */
+public class StubApiServer {
+
+    private static final String STORE_PASSWORD = "benchmark";
+
+    private final KeyStore keyStore;
+    private final HttpsServer server;
+    private final byte[] deviceType;
+    private final byte[] deviceListing;
+
+    public StubApiServer(int deviceCount) throws Exception {
+        deviceType = createDeviceType("bench").toString().getBytes(StandardCharsets.UTF_8);
+        deviceListing = createDeviceListing(deviceCount).toString().getBytes(StandardCharsets.UTF_8);
+
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        keyStore = createKeyStore();
+        server.setHttpsConfigurator(new HttpsConfigurator(createSSLContext(keyStore)));
+        server.setExecutor(Executors.newFixedThreadPool(16, r -> {
+            Thread t = new Thread(r, "stub-api-server");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext("/api/v0002/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the client properties pointing at this server
+     */
+    public Properties getClientProperties() {
+        Properties options = new Properties();
+        // The client builds https://<org>.<domain>/api/v0002, split the address over both to reach 127.0.0.1:port
+        options.setProperty("Organization-ID", "127.0.0");
+        options.setProperty("domain", "1:" + server.getAddress().getPort());
+        options.setProperty("API-Key", "a-bench-key");
+        options.setProperty("API-Token", "token");
+        options.setProperty("Trust-All-Certificates", "true");
+        return options;
+    }
+
+    /**
+     * Serves the file as a firmware image
+     *
+     * @return the URL of the image
+     */
+    public URL addFirmware(String name, File image) throws IOException {
+        server.createContext("/firmware/" + name, exchange -> {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().set("ETag", "\"" + image.lastModified() + "\"");
+                exchange.sendResponseHeaders(200, image.length());
+                try (OutputStream os = exchange.getResponseBody()) {
+                    Files.copy(image.toPath(), os);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        return new URL("https", "127.0.0.1", server.getAddress().getPort(), "/firmware/" + name);
+    }
+
+    /**
+     * @return a context trusting the certificate of this server, e.g. for an HttpsURLConnection
+     */
+    public SSLContext getClientSSLContext() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            byte[] request = readFully(exchange.getRequestBody());
+            if ("POST".equals(exchange.getRequestMethod()) && path.endsWith("/device/types")) {
+                respond(exchange, 201, request);
+            } else if ("GET".equals(exchange.getRequestMethod()) && path.contains("/device/types/")) {
+                respond(exchange, 200, deviceType);
+            } else if ("GET".equals(exchange.getRequestMethod()) && path.endsWith("/bulk/devices")) {
+                respond(exchange, 200, deviceListing);
+            } else {
+                respond(exchange, 404, new byte[0]);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            bos.write(buffer, 0, len);
+        }
+        return bos.toByteArray();
+    }
+
+    static JsonObject createDeviceType(String id) {
+        JsonObject deviceInfo = new JsonObject();
+        deviceInfo.addProperty("manufacturer", "Zmartify");
+        deviceInfo.addProperty("model", "Bench");
+        JsonObject type = new JsonObject();
+        type.addProperty("id", id);
+        type.addProperty("classId", "Device");
+        type.addProperty("description", "Benchmark device type");
+        type.add("deviceInfo", deviceInfo);
+        type.add("metadata", new JsonObject());
+        return type;
+    }
+
+    private static JsonObject createDeviceListing(int deviceCount) {
+        JsonArray results = new JsonArray();
+        for (int i = 0; i < deviceCount; i++) {
+            JsonObject device = new JsonObject();
+            device.addProperty("typeId", "bench");
+            device.addProperty("deviceId", "device-" + i);
+            device.addProperty("clientId", "d:bench:bench:device-" + i);
+            device.add("deviceInfo", createDeviceType("bench").get("deviceInfo"));
+            device.add("metadata", new JsonObject());
+            JsonObject registration = new JsonObject();
+            registration.addProperty("auth", "a-bench-key");
+            registration.addProperty("date", "2016-10-18T10:00:00.000Z");
+            device.add("registration", registration);
+            results.add(device);
+        }
+        JsonObject meta = new JsonObject();
+        meta.addProperty("total_rows", deviceCount);
+        JsonObject listing = new JsonObject();
+        listing.add("results", results);
+        listing.add("meta", meta);
+        return listing;
+    }
+
+    private static KeyStore createKeyStore() throws Exception {
+        File keyStoreFile = File.createTempFile("stub-api-server", ".jks");
+        keyStoreFile.delete();
+        keyStoreFile.deleteOnExit();
+        Process keytool = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin" + File.separator + "keytool").getPath(),
+                "-genkeypair", "-alias", "stub", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1", "-storetype", "JKS",
+                "-keystore", keyStoreFile.getPath(), "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD)
+                        .inheritIO().start();
+        if (!keytool.waitFor(60, TimeUnit.SECONDS) || keytool.exitValue() != 0) {
+            throw new IllegalStateException("keytool failed to create the certificate of the stub server");
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream(keyStoreFile)) {
+            keyStore.load(fis, STORE_PASSWORD.toCharArray());
+        }
+        return keyStore;
+    }
+
+    private static SSLContext createSSLContext(KeyStore keyStore) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, STORE_PASSWORD.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+        return sslContext;
+    }
+}
@@ -0,0 +1,147 @@
+package com.zmartify.iotf.tools.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Pull-style iterator over the entries of a listing response, read straight from the HTTP stream.
+ *
+ * <p>
+ * The response can either be a JSON array, or an object holding the entries in its <code>results</code> array
+ * (as returned by the paged listings). Only one entry is materialized at a time, all other members of the
+ * object (e.g. <code>meta</code> and <code>bookmark</code>) are collected and available through
+ * {@link #getEnvelope()} once the iteration is complete.
+ * </p>
+ *
+ * <p>
+ * The underlying connection is held until the iterator is exhausted or closed, so always close it, preferably
+ * with try-with-resources.
+ * </p>
+ */
+public class JsonResultIterator implements Iterator<JsonObject>, Closeable {
+
+    private static final String RESULTS = "results";
+
+    private final CloseableHttpResponse response;
+    private final JsonReader reader;
+    private final JsonParser parser = new JsonParser();
+    private final JsonObject envelope = new JsonObject();
+
+    private boolean topLevelArray;
+    private boolean inResults;
+    private boolean closed;
+
+    JsonResultIterator(CloseableHttpResponse response) throws IOException {
+        this.response = response;
+        this.reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                topLevelArray = true;
+                reader.beginArray();
+                inResults = true;
+            } else {
+                reader.beginObject();
+                seekResults();
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Collects the members of the envelope until the results array is found (or the object ends)
+     */
+    private void seekResults() throws IOException {
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (RESULTS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                inResults = true;
+                return;
+            }
+            envelope.add(name, parser.parse(reader));
+        }
+        finish();
+    }
+
+    private void finish() throws IOException {
+        inResults = false;
+        if (!topLevelArray) {
+            reader.endObject();
+        }
+        // read to the end, so the connection can be reused
+        EntityUtils.consume(response.getEntity());
+        close();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!inResults) {
+            return false;
+        }
+        try {
+            if (reader.hasNext()) {
+                return true;
+            }
+            reader.endArray();
+            if (topLevelArray) {
+                finish();
+            } else {
+                seekResults();
+            }
+            return false;
+        } catch (IOException e) {
+            close();
+            throw new JsonParseException(e);
+        }
+    }
+
+    @Override
+    public JsonObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        JsonElement element = parser.parse(reader);
+        return element.getAsJsonObject();
+    }
+
+    /**
+     * @return the members of the response object besides <code>results</code>, complete once
+     *         {@link #hasNext()} returned false
+     */
+    public JsonObject getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Releases the connection, an unfinished response is aborted rather than read to the end.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inResults = false;
+        try {
+            response.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.zmartify.iotf.tools.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Name to id cache of the schemas, event types, physical and application interfaces of an organization. As the
+ * platform doesn't require names to be unique, a name maps to all the entries carrying it.
+ *
+ * <p>
+ * A kind is loaded in bulk on the first lookup, after which lookups are answered locally, including the ones for
+ * names that don't exist, until the time-to-live expires and the kind is loaded again. The client keeps the
+ * cache current by writing every add, update and delete through to it.
+ * </p>
+ *
+ * <p>
+ * The entries are the JSON objects as returned by the platform, callers must not modify them.
+ * </p>
+ */
+class MetadataCache {
+
+    enum Kind {
+        SCHEMA,
+        EVENT_TYPE,
+        PHYSICAL_INTERFACE,
+        APPLICATION_INTERFACE
+    }
+
+    /**
+     * Lists all entries of a kind
+     */
+    interface Loader {
+        Iterable<JsonObject> loadAll(Kind kind) throws Exception;
+    }
+
+    private static class KindEntries {
+        private final Map<String, Map<String, JsonObject>> byName = new HashMap<String, Map<String, JsonObject>>();
+        private final Map<String, String> nameById = new HashMap<String, String>();
+        private boolean loaded;
+        private long expiresAt;
+    }
+
+    private final long ttlNanos;
+    private final Map<Kind, KindEntries> kinds = new EnumMap<Kind, KindEntries>(Kind.class);
+
+    MetadataCache(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        for (Kind kind : Kind.values()) {
+            kinds.put(kind, new KindEntries());
+        }
+    }
+
+    boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    /**
+     * Returns the entries with the given name, loading the kind first when it isn't loaded or has expired.
+     *
+     * @return the entries in the order they were listed or added, empty if there is none with that name
+     */
+    List<JsonObject> get(Kind kind, String name, Loader loader) throws Exception {
+        KindEntries entries = kinds.get(kind);
+        synchronized (entries) {
+            if (!entries.loaded || System.nanoTime() - entries.expiresAt >= 0) {
+                // Load while holding the lock, so writes done meanwhile can't be lost by replacing the entries
+                Iterable<JsonObject> all = loader.loadAll(kind);
+                entries.byName.clear();
+                entries.nameById.clear();
+                for (JsonObject entry : all) {
+                    store(entries, entry);
+                }
+                entries.expiresAt = System.nanoTime() + ttlNanos;
+                entries.loaded = true;
+            }
+            Map<String, JsonObject> named = entries.byName.get(name);
+            return named == null ? Collections.<JsonObject> emptyList() : new ArrayList<JsonObject>(named.values());
+        }
+    }
+
+    /**
+     * Adds or replaces the entry, entries without name or id are ignored
+     */
+    void put(Kind kind, JsonObject entry) {
+        KindEntries entries = kinds.get(kind);
+        synchronized (entries) {
+            String id = getString(entry, "id");
+            if (id != null) {
+                remove(entries, id);
+            }
+            store(entries, entry);
+        }
+    }
+
+    void removeById(Kind kind, String id) {
+        KindEntries entries = kinds.get(kind);
+        synchronized (entries) {
+            remove(entries, id);
+        }
+    }
+
+    /**
+     * Forgets everything about the kind, the next lookup loads it again
+     */
+    void invalidate(Kind kind) {
+        KindEntries entries = kinds.get(kind);
+        synchronized (entries) {
+            entries.byName.clear();
+            entries.nameById.clear();
+            entries.loaded = false;
+        }
+    }
+
+    private static void store(KindEntries entries, JsonObject entry) {
+        String name = getString(entry, "name");
+        String id = getString(entry, "id");
+        if (name != null && id != null) {
+            Map<String, JsonObject> named = entries.byName.get(name);
+            if (named == null) {
+                named = new LinkedHashMap<String, JsonObject>();
+                entries.byName.put(name, named);
+            }
+            named.put(id, entry);
+            entries.nameById.put(id, name);
+        }
+    }
+
+    private static void remove(KindEntries entries, String id) {
+        String name = entries.nameById.remove(id);
+        Map<String, JsonObject> named = name == null ? null : entries.byName.get(name);
+        if (named != null) {
+            named.remove(id);
+            if (named.isEmpty()) {
+                entries.byName.remove(name);
+            }
+        }
+    }
+
+    private static String getString(JsonObject entry, String member) {
+        if (entry == null) {
+            return null;
+        }
+        JsonElement value = entry.get(member);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+}
@@ -0,0 +1,223 @@
+package com.zmartify.iotf.tools.api;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.ibm.iotf.client.IoTFCReSTException;
+
+/**
+ * Lazy view over all pages of a listing endpoint.
+ *
+ * <p>
+ * The pages are requested with <code>_limit</code> entries each and chained through the <code>bookmark</code>
+ * returned by the platform (passed back as <code>_bookmark</code>). When a prefetch executor is given, the next
+ * page is already being fetched on it while the entries of one page are consumed. Each call to {@link #iterator()}
+ * or {@link #stream()} starts again from the first page.
+ * </p>
+ *
+ * <p>
+ * An iteration stopped before the last page should be closed ({@link PageIterator#close()} or
+ * {@link Stream#close()}), which cancels the prefetch of the next page.
+ * </p>
+ *
+ * <p>
+ * As {@link Iterator} can't throw checked exceptions, a failing request surfaces as a {@link PageException}
+ * carrying the {@link IoTFCReSTException}.
+ * </p>
+ */
+public class PagedResults implements Iterable<JsonObject> {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Requests a single page with the given query parameters
+     */
+    @FunctionalInterface
+    public interface PageFetcher {
+        JsonObject fetch(List<NameValuePair> parameters) throws IoTFCReSTException;
+    }
+
+    /**
+     * Unchecked wrapper of the failure of a page request
+     */
+    public static class PageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public PageException(IoTFCReSTException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public synchronized IoTFCReSTException getCause() {
+            return (IoTFCReSTException) super.getCause();
+        }
+    }
+
+    private final PageFetcher fetcher;
+    private final List<NameValuePair> parameters;
+    private final int pageSize;
+    private final Executor prefetchExecutor;
+
+    /**
+     * @param fetcher requests one page
+     * @param parameters additional query parameters (e.g. sorting), may be null
+     * @param pageSize number of entries requested per page
+     * @param prefetchExecutor fetches the next page in the background, null to fetch each page when it's reached
+     */
+    public PagedResults(PageFetcher fetcher, List<NameValuePair> parameters, int pageSize,
+            Executor prefetchExecutor) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.fetcher = fetcher;
+        this.parameters = parameters;
+        this.pageSize = pageSize;
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    public PagedResults(PageFetcher fetcher, List<NameValuePair> parameters, int pageSize) {
+        this(fetcher, parameters, pageSize, null);
+    }
+
+    @Override
+    public PageIterator iterator() {
+        return new PageIterator();
+    }
+
+    /**
+     * @return the entries of all pages, closing the stream cancels the prefetch of the next page
+     */
+    public Stream<JsonObject> stream() {
+        PageIterator iterator = iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                .onClose(iterator::close);
+    }
+
+    /**
+     * Collects the values of the given string member (e.g. <code>id</code>) of all entries of all pages
+     */
+    public List<String> collect(String member) {
+        List<String> values = new ArrayList<String>();
+        for (JsonObject entry : this) {
+            JsonElement value = entry.get(member);
+            if (value != null && !value.isJsonNull()) {
+                values.add(value.getAsString());
+            }
+        }
+        return values;
+    }
+
+    private JsonObject fetch(String bookmark) {
+        List<NameValuePair> pageParameters = new ArrayList<NameValuePair>();
+        if (parameters != null) {
+            for (NameValuePair parameter : parameters) {
+                if (!"_limit".equals(parameter.getName()) && !"_bookmark".equals(parameter.getName())) {
+                    pageParameters.add(parameter);
+                }
+            }
+        }
+        pageParameters.add(new BasicNameValuePair("_limit", Integer.toString(pageSize)));
+        if (bookmark != null) {
+            pageParameters.add(new BasicNameValuePair("_bookmark", bookmark));
+        }
+        try {
+            return fetcher.fetch(pageParameters);
+        } catch (IoTFCReSTException e) {
+            throw new PageException(e);
+        }
+    }
+
+    /**
+     * Iterator over the entries of all pages
+     */
+    public class PageIterator implements Iterator<JsonObject>, Closeable {
+        private JsonArray page;
+        private int index;
+        private String nextBookmark;
+        private CompletableFuture<JsonObject> nextPage;
+
+        PageIterator() {
+            accept(fetch(null));
+        }
+
+        /**
+         * Takes the entries of the page and starts fetching the following one, if any
+         */
+        private void accept(JsonObject response) {
+            JsonElement results = response == null ? null : response.get("results");
+            page = results != null && results.isJsonArray() ? results.getAsJsonArray() : new JsonArray();
+            index = 0;
+            nextBookmark = null;
+            nextPage = null;
+
+            JsonElement bookmark = response == null ? null : response.get("bookmark");
+            if (page.size() > 0 && bookmark != null && !bookmark.isJsonNull()) {
+                String next = bookmark.getAsString();
+                if (prefetchExecutor != null) {
+                    nextPage = CompletableFuture.supplyAsync(() -> fetch(next), prefetchExecutor);
+                } else {
+                    nextBookmark = next;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index >= page.size()) {
+                if (nextBookmark != null) {
+                    accept(fetch(nextBookmark));
+                } else if (nextPage == null) {
+                    return false;
+                } else {
+                    try {
+                        accept(nextPage.join());
+                    } catch (CompletionException e) {
+                        nextPage = null;
+                        if (e.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException) e.getCause();
+                        }
+                        throw e;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Stops the iteration, a prefetch not yet started is dropped
+         */
+        @Override
+        public void close() {
+            if (nextPage != null) {
+                nextPage.cancel(false);
+            }
+            page = new JsonArray();
+            nextBookmark = null;
+            nextPage = null;
+        }
+
+        @Override
+        public JsonObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(index++).getAsJsonObject();
+        }
+    }
+}
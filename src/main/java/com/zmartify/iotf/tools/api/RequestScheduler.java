@@ -0,0 +1,262 @@
+package com.zmartify.iotf.tools.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+
+import com.ibm.iotf.util.LoggerUtility;
+
+/**
+ * Admission control and retry policy of the requests sent by {@link ZmartifyAPIClient}.
+ *
+ * <p>
+ * Every attempt first takes a permit from a token bucket sized to the API quota of the organization, callers
+ * that find the bucket empty queue (in arrival order) rather than fail. A throttled response (429) is retried for
+ * every verb after the delay given by <code>Retry-After</code>, and holds back all other requests for that long
+ * too. Server errors (500, 502, 503, 504) and I/O errors are only retried for idempotent verbs, with exponential
+ * backoff and full jitter.
+ * </p>
+ *
+ * <p>
+ * {@link #execute} sends the attempts itself and waits on the calling thread. Non-blocking callers like
+ * {@link ZmartifyAsyncAPIClient} take their permits with {@link #reserve} and ask {@link #retryDelay} whether to
+ * send again, and schedule the waits themselves.
+ * </p>
+ */
+class RequestScheduler {
+
+    private static final String CLASS_NAME = RequestScheduler.class.getName();
+
+    /**
+     * Sends a single attempt of the request
+     */
+    interface Exchange {
+        HttpResponse execute(HttpUriRequest request) throws IOException;
+    }
+
+    private final double permitsPerNano;
+    private final double burst;
+    private final int maxRetries;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+
+    // fair, so queued callers are served in arrival order
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private double permits;
+    private long refilledAt = System.nanoTime();
+    private volatile long pausedUntil = System.nanoTime();
+
+    RequestScheduler(double permitsPerSecond, int burst, int maxRetries, long baseDelay, long maxDelay,
+            TimeUnit unit) {
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.permits = this.burst;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayNanos = unit.toNanos(baseDelay);
+        this.maxDelayNanos = Math.max(baseDelayNanos, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * Sends the request, retrying it as long as the policy allows.
+     *
+     * @return the last response, which may still be an error when the retries are exhausted
+     * @throws IOException the last I/O error when the retries are exhausted, or an
+     *             {@link InterruptedIOException} when interrupted while waiting
+     */
+    HttpResponse execute(HttpUriRequest request, String method, Exchange exchange) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            acquire();
+            long delay;
+            try {
+                HttpResponse response = exchange.execute(request);
+                delay = retryDelay(request, method, attempt, response);
+                if (delay < 0) {
+                    return response;
+                }
+                release(response);
+            } catch (IOException e) {
+                delay = retryDelay(request, method, attempt, e);
+                if (delay < 0) {
+                    throw e;
+                }
+            }
+            sleep(delay);
+        }
+    }
+
+    /**
+     * Decides whether a response is retried, for callers that send the attempts themselves. A throttled response
+     * holds back the other requests for the delay.
+     *
+     * @return the delay in nanoseconds before the next attempt, or -1 if the response is final
+     */
+    long retryDelay(HttpUriRequest request, String method, int attempt, HttpResponse response) {
+        int code = response.getStatusLine().getStatusCode();
+        boolean retry = code == 429 ? isRepeatable(request)
+                : isRetryable(code) && isRepeatable(request) && isIdempotent(request.getMethod());
+        if (attempt >= maxRetries || !retry) {
+            return -1;
+        }
+        long delay = code == 429 ? getRetryAfter(response, attempt) : backoff(attempt);
+        if (code == 429) {
+            pause(delay);
+        }
+        LoggerUtility.warn(CLASS_NAME, method, request.getMethod() + " " + request.getURI() + " returned " + code
+                + ", retrying in " + TimeUnit.NANOSECONDS.toMillis(delay) + " ms");
+        return delay;
+    }
+
+    /**
+     * Decides whether an I/O error is retried, for callers that send the attempts themselves
+     *
+     * @return the delay in nanoseconds before the next attempt, or -1 if the error is final
+     */
+    long retryDelay(HttpUriRequest request, String method, int attempt, IOException e) {
+        if (attempt >= maxRetries || !isRepeatable(request) || !isIdempotent(request.getMethod())) {
+            return -1;
+        }
+        long delay = backoff(attempt);
+        LoggerUtility.warn(CLASS_NAME, method, request.getMethod() + " " + request.getURI() + " failed ("
+                + e.getMessage() + "), retrying in " + TimeUnit.NANOSECONDS.toMillis(delay) + " ms");
+        return delay;
+    }
+
+    /**
+     * Takes a permit of the token bucket without waiting for it, for callers that must not block. The permit is
+     * taken ahead, the blocking callers wait for it to be refilled.
+     *
+     * @return the time in nanoseconds the caller has to wait before sending the request
+     */
+    long reserve() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            long wait = Math.max(0, pausedUntil - now);
+            if (permitsPerNano > 0) {
+                permits = Math.min(burst, permits + (now - refilledAt) * permitsPerNano);
+                refilledAt = now;
+                permits -= 1;
+                if (permits < 0) {
+                    wait = Math.max(wait, (long) Math.ceil(-permits / permitsPerNano));
+                }
+            }
+            return wait;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a permit of the token bucket, and for the end of a pause requested by the server
+     */
+    private void acquire() throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long wait = pausedUntil - now;
+                if (wait <= 0 && permitsPerNano > 0) {
+                    permits = Math.min(burst, permits + (now - refilledAt) * permitsPerNano);
+                    refilledAt = now;
+                    if (permits >= 1) {
+                        permits -= 1;
+                        return;
+                    }
+                    wait = (long) Math.ceil((1 - permits) / permitsPerNano);
+                } else if (wait <= 0) {
+                    return;
+                }
+                // keep the lock while sleeping, the callers behind us would have to wait anyway
+                sleep(wait);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private synchronized void pause(long delayNanos) {
+        long until = System.nanoTime() + delayNanos;
+        if (until - pausedUntil > 0) {
+            pausedUntil = until;
+        }
+    }
+
+    private long backoff(int attempt) {
+        long ceiling = baseDelayNanos << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > maxDelayNanos) {
+            ceiling = maxDelayNanos;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @return the delay requested by the Retry-After header (seconds or HTTP date), or the backoff if absent
+     */
+    private long getRetryAfter(HttpResponse response, int attempt) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header != null && header.getValue() != null) {
+            String value = header.getValue().trim();
+            try {
+                return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(value);
+                if (date != null) {
+                    return TimeUnit.MILLISECONDS.toNanos(Math.max(0, date.getTime() - System.currentTimeMillis()));
+                }
+            }
+        }
+        return backoff(attempt);
+    }
+
+    /**
+     * GET, HEAD, PUT and DELETE can safely be sent twice
+     */
+    private static boolean isIdempotent(String verb) {
+        return "GET".equals(verb) || "HEAD".equals(verb) || "PUT".equals(verb) || "DELETE".equals(verb);
+    }
+
+    /**
+     * @return false when the body of the request is a stream that can only be sent once
+     */
+    private static boolean isRepeatable(HttpUriRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 500 || code == 502 || code == 503 || code == 504;
+    }
+
+    private static void release(HttpResponse response) {
+        if (response instanceof Closeable) {
+            try {
+                ((Closeable) response).close();
+            } catch (IOException e) {
+                // the connection is discarded anyway
+            }
+        }
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send the request");
+        }
+    }
+}
@@ -12,11 +12,15 @@
  */
 package com.zmartify.iotf.tools.api;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -25,6 +29,10 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -32,26 +40,44 @@ import javax.net.ssl.X509TrustManager;
 
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.commons.net.util.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HttpContext;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import com.ibm.iotf.client.AbstractClient;
 import com.ibm.iotf.client.IoTFCReSTException;
 import com.ibm.iotf.util.LoggerUtility;
@@ -59,14 +85,99 @@ import com.ibm.iotf.util.LoggerUtility;
 /**
  * Class to register, delete and retrieve information about devices <br>
  * This class can also be used to retrieve historian information
+ *
+ * <p>
+ * All requests issued by one instance share a single HTTP client backed by a pooled connection manager,
+ * so TLS sessions and TCP connections to the organization are reused across calls. Call {@link #close()}
+ * when the client is no longer needed to release the pooled connections.
+ * </p>
  */
 
-public class ZmartifyAPIClient {
+public class ZmartifyAPIClient implements Closeable {
 
     private static final String CLASS_NAME = ZmartifyAPIClient.class.getName();
 
     private static final String BASIC_API_V0002_URL = "/api/v0002";
 
+    // Connection pool defaults, can be overridden through the properties passed to the constructor
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_METADATA_CACHE_TTL_SECONDS = 300;
+    private static final int DEFAULT_MAX_RETRIES = 5;
+    private static final int DEFAULT_RETRY_BASE_DELAY_MILLIS = 500;
+    private static final int DEFAULT_RETRY_MAX_DELAY_MILLIS = 30000;
+
+    /**
+     * Reads the complete entity while the connection is leased, so the connection is always
+     * released back to the pool no matter how (or whether) the caller reads the response.
+     *
+     * A successful JSON body is decoded straight from the stream of the connection, without holding the raw
+     * body in memory first, and handed to {@link #readJson} as a {@link JsonEntity}. Any other body, e.g. an
+     * error response, is buffered.
+     */
+    private static final ResponseHandler<HttpResponse> BUFFERED_RESPONSE_HANDLER = new ResponseHandler<HttpResponse>() {
+        @Override
+        public HttpResponse handleResponse(HttpResponse response) throws IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return response;
+            }
+            int code = response.getStatusLine().getStatusCode();
+            ContentType contentType = ContentType.get(entity);
+            if (code >= 200 && code < 300 && entity.getContentLength() != 0 && contentType != null
+                    && contentType.getMimeType().endsWith("json")) {
+                Charset charset = contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+                try (JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), charset))) {
+                    response.setEntity(new JsonEntity(JSON_PARSER.parse(reader), entity.getContentType()));
+                }
+            } else {
+                response.setEntity(new BufferedHttpEntity(entity));
+            }
+            return response;
+        }
+    };
+
+    /**
+     * A JSON body already decoded, its content is only serialized again if somebody asks for it
+     */
+    private static final class JsonEntity extends AbstractHttpEntity {
+        private final JsonElement json;
+
+        JsonEntity(JsonElement json, Header contentType) {
+            this.json = json;
+            setContentType(contentType);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    private static final JsonParser JSON_PARSER = new JsonParser();
+
     private String authKey = null;
     private String authToken = null;
     private SSLContext sslContext = null;
@@ -100,6 +211,13 @@ public class ZmartifyAPIClient {
     private WIoTFContentType contentType = WIoTFContentType.json;
     private boolean isSecured = true;
 
+    private PoolingHttpClientConnectionManager connectionManager = null;
+    private CloseableHttpClient httpClient = null;
+    private int pageSize = PagedResults.DEFAULT_PAGE_SIZE;
+    private MetadataCache metadataCache;
+    private RequestScheduler requestScheduler;
+    private ThreadPoolExecutor prefetchExecutor;
+
     public ZmartifyAPIClient(Properties opt) throws NoSuchAlgorithmException, KeyManagementException {
         boolean isGateway = false;
         String authKeyPassed = null;
@@ -170,6 +288,176 @@ public class ZmartifyAPIClient {
 
         sslContext = SSLContext.getInstance("TLSv1.2");
         sslContext.init(null, trustAllCerts, null);
+
+        httpClient = createHttpClient(opt);
+        requestScheduler = createRequestScheduler(opt);
+        pageSize = getIntProperty(opt, "HTTP-Page-Size", PagedResults.DEFAULT_PAGE_SIZE);
+        prefetchExecutor = createPrefetchExecutor(Math.max(1, getIntProperty(opt, "HTTP-Prefetch-Threads", 4)));
+        metadataCache = new MetadataCache(
+                getIntProperty(opt, "HTTP-Metadata-Cache-TTL", DEFAULT_METADATA_CACHE_TTL_SECONDS), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates the long-lived HTTP client used by all the requests of this instance.
+     *
+     * <p>
+     * The following optional properties control the connection pool,
+     * </p>
+     * <ul>
+     * <li>HTTP-Max-Connections - maximum number of pooled connections (default 50)</li>
+     * <li>HTTP-Max-Connections-Per-Route - maximum number of pooled connections per host (default 20)</li>
+     * <li>HTTP-Keep-Alive - seconds a connection is kept alive when the server doesn't say otherwise (default 30)</li>
+     * <li>HTTP-Idle-Timeout - seconds after which idle connections are evicted from the pool (default 30)</li>
+     * </ul>
+     *
+     * @param options List of properties
+     * @return the pooled HTTP client
+     */
+    private CloseableHttpClient createHttpClient(Properties options) {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext)).build();
+
+        connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(getIntProperty(options, "HTTP-Max-Connections", DEFAULT_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute(
+                getIntProperty(options, "HTTP-Max-Connections-Per-Route", DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+
+        final long keepAlive = TimeUnit.SECONDS
+                .toMillis(getIntProperty(options, "HTTP-Keep-Alive", DEFAULT_KEEP_ALIVE_SECONDS));
+        long idleTimeout = getIntProperty(options, "HTTP-Idle-Timeout", DEFAULT_IDLE_TIMEOUT_SECONDS);
+
+        return HttpClientBuilder.create().useSystemProperties().setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        // Honour the Keep-Alive header of the server, but never keep a connection longer than
+                        // configured
+                        long duration = super.getKeepAliveDuration(response, context);
+                        return (duration > 0 && duration < keepAlive) ? duration : keepAlive;
+                    }
+                }).evictExpiredConnections().evictIdleConnections(idleTimeout, TimeUnit.SECONDS)
+                // I/O errors are retried by the request scheduler
+                .disableAutomaticRetries().build();
+    }
+
+    /**
+     * Creates the scheduler every request goes through.
+     *
+     * <p>
+     * The following optional properties control the rate limit and the retries,
+     * </p>
+     * <ul>
+     * <li>HTTP-Rate-Limit - requests per second, matching the API quota of the organization, 0 for no limit
+     * (default 0)</li>
+     * <li>HTTP-Rate-Burst - requests that may be sent at once after an idle period (default the rate limit)</li>
+     * <li>HTTP-Max-Retries - retries of a single request, 0 disables retrying (default 5)</li>
+     * <li>HTTP-Retry-Base-Delay - milliseconds before the first retry, doubled on every retry (default 500)</li>
+     * <li>HTTP-Retry-Max-Delay - maximum milliseconds between two retries (default 30000)</li>
+     * </ul>
+     *
+     * @param options List of properties
+     * @return the request scheduler
+     */
+    private static RequestScheduler createRequestScheduler(Properties options) {
+        int rateLimit = getIntProperty(options, "HTTP-Rate-Limit", 0);
+        return new RequestScheduler(rateLimit, getIntProperty(options, "HTTP-Rate-Burst", rateLimit),
+                getIntProperty(options, "HTTP-Max-Retries", DEFAULT_MAX_RETRIES),
+                getIntProperty(options, "HTTP-Retry-Base-Delay", DEFAULT_RETRY_BASE_DELAY_MILLIS),
+                getIntProperty(options, "HTTP-Retry-Max-Delay", DEFAULT_RETRY_MAX_DELAY_MILLIS),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads an optional numeric property, shared by the gateway so all properties are read alike
+     *
+     * @return the value of the property, the default if it is missing or invalid
+     */
+    public static int getIntProperty(Properties options, String name, int defaultValue) {
+        String value = trimedValue(options.getProperty(name));
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LoggerUtility.warn(CLASS_NAME, "getIntProperty", "Invalid value " + value + " for " + name
+                    + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the value of the property, the default if it is missing or invalid
+     */
+    public static double getDoubleProperty(Properties options, String name, double defaultValue) {
+        String value = trimedValue(options.getProperty(name));
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LoggerUtility.warn(CLASS_NAME, "getDoubleProperty", "Invalid value " + value + " for " + name
+                    + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the base URL of the v0002 REST API of the organization
+     */
+    String getApiBaseUrl() {
+        return "https://" + orgId + '.' + this.domain + BASIC_API_V0002_URL;
+    }
+
+    /**
+     * @return the value of the Authorization header, null for quickstart
+     */
+    String getAuthorizationHeader() {
+        if (isQuickstart) {
+            return null;
+        }
+        byte[] encoding = Base64.encodeBase64(new String(authKey + ":" + authToken).getBytes());
+        return "Basic " + new String(encoding);
+    }
+
+    SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * @return the scheduler admitting the requests of this client, shared with its asynchronous companion so both
+     *         stay within the quota of the organization
+     */
+    RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    /**
+     * Creates the threads fetching the next page of the paged listings in the background, idle threads end after
+     * a minute.
+     */
+    private static ThreadPoolExecutor createPrefetchExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "zmartify-page-prefetch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Releases the pooled connections, stops the idle connection eviction and the page prefetching of this
+     * client.
+     */
+    @Override
+    public void close() throws IOException {
+        prefetchExecutor.shutdownNow();
+        httpClient.close();
     }
 
     /**
@@ -292,15 +580,7 @@ public class ZmartifyAPIClient {
         if (isQuickstart == false) {
             post.addHeader("Authorization", "Basic " + encodedString);
         }
-        try {
-            HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-
-            return client.execute(post);
-        } catch (IOException e) {
-            LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
-            throw e;
-        }
-
+        return execute(post, method);
     }
 
     private HttpResponse casePutFromConnect(List<NameValuePair> queryParameters, String url, String method,
@@ -314,14 +594,7 @@ public class ZmartifyAPIClient {
         put.addHeader("Content-Type", "application/json");
         put.addHeader("Accept", "application/json");
         put.addHeader("Authorization", "Basic " + encodedString);
-        try {
-            HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-            return client.execute(put);
-        } catch (IOException e) {
-            LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
-            throw e;
-        }
-
+        return execute(put, method);
     }
 
     private HttpResponse casePatchFromConnect(List<NameValuePair> queryParameters, String url, String method,
@@ -335,14 +608,7 @@ public class ZmartifyAPIClient {
         patch.addHeader("Content-Type", "application/json");
         patch.addHeader("Accept", "application/json");
         patch.addHeader("Authorization", "Basic " + encodedString);
-        try {
-            HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-            return client.execute(patch);
-        } catch (IOException e) {
-            LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
-            throw e;
-        }
-
+        return execute(patch, method);
     }
 
     private HttpResponse caseGetFromConnect(List<NameValuePair> queryParameters, String url, String method,
@@ -356,14 +622,7 @@ public class ZmartifyAPIClient {
         get.addHeader("Content-Type", "application/json");
         get.addHeader("Accept", "application/json");
         get.addHeader("Authorization", "Basic " + encodedString);
-        try {
-            HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-            return client.execute(get);
-        } catch (IOException e) {
-            LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
-            throw e;
-        }
-
+        return execute(get, method);
     }
 
     private HttpResponse caseDeleteFromConnect(List<NameValuePair> queryParameters, String url, String method,
@@ -378,37 +637,96 @@ public class ZmartifyAPIClient {
         delete.addHeader("Content-Type", "application/json");
         delete.addHeader("Accept", "application/json");
         delete.addHeader("Authorization", "Basic " + encodedString);
+        return execute(delete, method);
+    }
+
+    /**
+     * Executes the request on the shared client, subject to the rate limit and retry policy of the
+     * scheduler. The returned response is fully buffered and its connection is already back in the pool.
+     */
+    private HttpResponse execute(HttpUriRequest request, String method) throws IOException {
         try {
-            HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-            return client.execute(delete);
+            return requestScheduler.execute(request, method, r -> httpClient.execute(r, BUFFERED_RESPONSE_HANDLER));
         } catch (IOException e) {
             LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
             throw e;
         }
-
     }
 
-    private String readContent(HttpResponse response, String method) throws IllegalStateException, IOException {
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
-        String line = null;
+    /**
+     * Opens a GET request whose response is streamed rather than buffered, the connection stays leased
+     * until the returned iterator is exhausted or closed.
+     */
+    private JsonResultIterator openResultIterator(String url, List<NameValuePair> queryParameters, String method)
+            throws IoTFCReSTException {
+        int code = 0;
+        CloseableHttpResponse response = null;
         try {
-            line = br.readLine();
-        } catch (IOException e) {
+            URIBuilder getBuilder = new URIBuilder(url);
+            if (queryParameters != null) {
+                getBuilder.setParameters(queryParameters);
+            }
+            HttpGet get = new HttpGet(getBuilder.build());
+            get.addHeader("Content-Type", "application/json");
+            get.addHeader("Accept", "application/json");
+            if (!isQuickstart) {
+                get.addHeader("Authorization", getAuthorizationHeader());
+            }
+            response = (CloseableHttpResponse) requestScheduler.execute(get, method, r -> httpClient.execute(r));
+            code = response.getStatusLine().getStatusCode();
+            if (code == 200) {
+                return new JsonResultIterator(response);
+            }
+        } catch (Exception e) {
             LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
-            throw e;
+            closeQuietly(response);
+            IoTFCReSTException ex = new IoTFCReSTException("Failure in streaming the response " + "::" + e.getMessage());
+            ex.initCause(e);
+            throw ex;
         }
-        LoggerUtility.fine(CLASS_NAME, method, line);
+
         try {
-            if (br != null) {
-                br.close();
+            if (code == 401) {
+                throw new IoTFCReSTException(code, "The authentication token is empty or invalid");
+            } else if (code == 403) {
+                throw new IoTFCReSTException(code,
+                        "The authentication method is invalid or the API key used does not exist");
+            } else if (code == 500) {
+                throw new IoTFCReSTException(code, "Unexpected error");
             }
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            throwException(response, method);
+            return null;
+        } finally {
+            closeQuietly(response);
+        }
+    }
+
+    private static void closeQuietly(CloseableHttpResponse response) {
+        if (response != null) {
+            try {
+                response.close();
+            } catch (IOException e) {
+                // connection is discarded anyway
+            }
+        }
+    }
+
+    /**
+     * Decodes the response body straight from the entity stream, an empty body results in JsonNull.
+     */
+    private JsonElement readJson(HttpResponse response, String method) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return JsonNull.INSTANCE;
+        } else if (entity instanceof JsonEntity) {
+            return ((JsonEntity) entity).json;
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8))) {
+            return JSON_PARSER.parse(reader);
+        } catch (JsonParseException e) {
+            LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
+            throw e;
         }
-        return line;
     }
 
     /**
@@ -496,8 +814,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -551,8 +868,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -607,8 +923,7 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), location.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
                     return jsonResponse.getAsJsonObject();
                 }
@@ -662,8 +977,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -718,8 +1032,7 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), propertiesToBeModified.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
                     return jsonResponse.getAsJsonObject();
                 }
@@ -776,8 +1089,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -844,8 +1156,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -890,6 +1201,26 @@ public class ZmartifyAPIClient {
         return getAllDevices((ArrayList<NameValuePair>) null);
     }
 
+    /**
+     * Streams the devices belonging to the organization, one device at a time, without materializing the
+     * complete response.
+     *
+     * <p>
+     * The <code>meta</code> and <code>bookmark</code> elements of the response are available through
+     * {@link JsonResultIterator#getEnvelope()} once all devices are read. The iterator must be closed.
+     * </p>
+     *
+     * @param parameters list of query parameters, as for {@link #getAllDevices(List)}
+     * @return iterator over the devices
+     * @throws IoTFCReSTException Failure in retrieving the devices
+     */
+    public JsonResultIterator iterateAllDevices(List<NameValuePair> parameters) throws IoTFCReSTException {
+        final String METHOD = "iterateAllDevices";
+        StringBuilder sb = new StringBuilder("https://");
+        sb.append(orgId).append('.').append(this.domain).append(BASIC_API_V0002_URL).append("/bulk/devices");
+        return openResultIterator(sb.toString(), parameters, METHOD);
+    }
+
     /**
      * This method returns all the devices belonging to a particular device type, This method
      * provides more control in returning the response over the no argument method.
@@ -937,8 +1268,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -1003,6 +1333,8 @@ public class ZmartifyAPIClient {
      *
      * @param gatewayType Gateway Device type ID
      * @param gatewayId Gateway Device ID
+     * @param parameters list of query parameters that controls the output, e.g. <code>_limit</code> and
+     *            <code>_bookmark</code>
      *
      * @return JSON response containing the list of devices.
      *         <p>
@@ -1012,8 +1344,8 @@ public class ZmartifyAPIClient {
      *         *
      * @throws IoTFCReSTException failure in getting the devices
      */
-    public JsonObject getDevicesConnectedThroughGateway(String gatewayType, String gatewayId)
-            throws IoTFCReSTException {
+    public JsonObject getDevicesConnectedThroughGateway(String gatewayType, String gatewayId,
+            List<NameValuePair> parameters) throws IoTFCReSTException {
         final String METHOD = "getDevicesConnectedThroughGateway(typeID, deviceId)";
         /**
          * Form the url based on this swagger documentation
@@ -1026,12 +1358,11 @@ public class ZmartifyAPIClient {
         int code = 0;
         HttpResponse response = null;
         try {
-            response = connect("get", sb.toString(), null, null);
+            response = connect("get", sb.toString(), null, parameters);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -1052,6 +1383,20 @@ public class ZmartifyAPIClient {
         return null;
     }
 
+    /**
+     * This method returns the first page of the devices that are connected through the specified gateway.
+     *
+     * @param gatewayType Gateway Device type ID
+     * @param gatewayId Gateway Device ID
+     *
+     * @return JSON response containing the list of devices.
+     * @throws IoTFCReSTException failure in getting the devices
+     */
+    public JsonObject getDevicesConnectedThroughGateway(String gatewayType, String gatewayId)
+            throws IoTFCReSTException {
+        return getDevicesConnectedThroughGateway(gatewayType, gatewayId, null);
+    }
+
     /**
      * This method returns all the device types belonging to the organization, This method
      * provides more control in returning the response over the no argument method.
@@ -1097,8 +1442,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -1141,8 +1485,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonArray();
             }
         } catch (Exception e) {
@@ -1187,8 +1530,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -1235,8 +1577,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonArray();
             }
         } catch (Exception e) {
@@ -1294,8 +1635,7 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), propertiesToBeModified.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 400) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
                     return jsonResponse.getAsJsonObject();
                 }
@@ -1342,8 +1682,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 return jsonResponse.getAsJsonObject();
@@ -1429,8 +1768,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -1562,8 +1900,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -1619,8 +1956,7 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), updatedValues.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
                     return jsonResponse.getAsJsonObject();
                 }
@@ -1678,8 +2014,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 return jsonResponse.getAsJsonObject();
@@ -1907,8 +2242,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 409) {
                 // Get the response
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 // Success
@@ -2112,8 +2446,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonArray();
             }
         } catch (Exception e) {
@@ -2243,8 +2576,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
 
             try {
-                String result = this.readContent(response, method);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, method);
             } catch (Exception e) {
             }
         }
@@ -2289,8 +2621,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -2390,8 +2721,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonArray();
             }
         } catch (Exception e) {
@@ -2532,8 +2862,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonArray();
             }
         } catch (Exception e) {
@@ -2557,6 +2886,28 @@ public class ZmartifyAPIClient {
         return null;
     }
 
+    /**
+     * Streams the connection log events of a device, one entry at a time, without materializing the
+     * complete response. The iterator must be closed.
+     *
+     * @param deviceType String which contains device type
+     * @param deviceId String which contains device id
+     *
+     * @return iterator over the connection log entries
+     * @throws IoTFCReSTException Failure in retrieving the device connection logs
+     */
+    public JsonResultIterator iterateDeviceConnectionLogs(String deviceType, String deviceId)
+            throws IoTFCReSTException {
+        final String METHOD = "iterateDeviceConnectionLogs";
+        StringBuilder sb = new StringBuilder("https://");
+        sb.append(orgId).append('.').append(this.domain).append(BASIC_API_V0002_URL).append("/logs/connection");
+
+        ArrayList<NameValuePair> parameters = new ArrayList<NameValuePair>();
+        parameters.add(new BasicNameValuePair("typeId", deviceType));
+        parameters.add(new BasicNameValuePair("deviceId", deviceId));
+        return openResultIterator(sb.toString(), parameters, METHOD);
+    }
+
     /**
      * Register multiple new devices, each request can contain a maximum of 512KB.
      * The response body will contain the generated authentication tokens for all devices.
@@ -2590,8 +2941,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code != 500) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 return jsonResponse.getAsJsonArray();
@@ -2646,8 +2996,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code != 500) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 return jsonResponse.getAsJsonArray();
@@ -2708,8 +3057,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, parameters);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -2758,8 +3106,7 @@ public class ZmartifyAPIClient {
             response = connect(method, sb.toString(), request, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 401 || code == 403 || code == 409 || code == 500) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 201) {
                     // Success
                     return jsonResponse.getAsJsonObject();
@@ -2821,8 +3168,7 @@ public class ZmartifyAPIClient {
                 return;
             }
             if (code == 400 || code == 401 || code == 403 || code == 500) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 String reason = null;
                 switch (code) {
                     case 400:
@@ -2871,8 +3217,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 400 || code == 401 || code == 403 || code == 404 || code == 500) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
                     return jsonResponse.getAsJsonObject();
                 } else {
@@ -2956,8 +3301,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             switch (code) {
                 case 202:
-                    String result = this.readContent(response, METHOD);
-                    jsonResponse = new JsonParser().parse(result);
+                    jsonResponse = this.readJson(response, METHOD);
                     break;
                 case 400:
                     ex = new IoTFCReSTException(method, sb.toString(), request.toString(), code,
@@ -3028,8 +3372,7 @@ public class ZmartifyAPIClient {
             if (code == 204) {
                 return true;
             }
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
         } catch (Exception e) {
             IoTFCReSTException ex = new IoTFCReSTException(
                     "Failure in deleting the DM Request for ID (" + requestId + ")::" + e.getMessage());
@@ -3070,8 +3413,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             switch (code) {
                 case 200:
-                    String result = this.readContent(response, METHOD);
-                    jsonResponse = new JsonParser().parse(result);
+                    jsonResponse = this.readJson(response, METHOD);
                     break;
                 case 404:
                     ex = new IoTFCReSTException(method, sb.toString(), null, code,
@@ -3130,8 +3472,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, parameters);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3191,8 +3532,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3250,8 +3590,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, parameters);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3310,8 +3649,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, parameters);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3369,8 +3707,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, parameters);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3411,8 +3748,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3494,8 +3830,7 @@ public class ZmartifyAPIClient {
         HttpResponse response = null;
         try {
             response = connect("get", sb.toString(), null, null);
-            String result = this.readContent(response, METHOD);
-            JsonElement jsonResponse = new JsonParser().parse(result);
+            JsonElement jsonResponse = this.readJson(response, METHOD);
 
             code = response.getStatusLine().getStatusCode();
             if (code == 400) {
@@ -3559,8 +3894,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            JsonElement jsonResponse = new JsonParser().parse(result);
+            JsonElement jsonResponse = this.readJson(response, METHOD);
 
             if (code == 400) {
                 throw new IoTFCReSTException(400, "Invalid request", jsonResponse);
@@ -3828,8 +4162,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -3857,6 +4190,9 @@ public class ZmartifyAPIClient {
     }
 
     public JsonObject getApplicationInterfaceByName(String name) throws IoTFCReSTException {
+        if (metadataCache.isEnabled()) {
+            return toListing(findByName(MetadataCache.Kind.APPLICATION_INTERFACE, name));
+        }
         ArrayList<NameValuePair> parameters = new ArrayList<NameValuePair>();
         parameters.add(new BasicNameValuePair("name", name));
         return getAllApplicationInterfaces(parameters);
@@ -3905,8 +4241,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -3961,11 +4296,10 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
-                return jsonResponse.getAsJsonObject();
+                return cacheEntry(MetadataCache.Kind.APPLICATION_INTERFACE, jsonResponse.getAsJsonObject());
             }
         } catch (Exception e) {
             IoTFCReSTException ex = new IoTFCReSTException(
@@ -4021,8 +4355,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 return jsonResponse.getAsJsonObject();
@@ -4123,6 +4456,7 @@ public class ZmartifyAPIClient {
             response = connect("delete", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 204) {
+                metadataCache.removeById(MetadataCache.Kind.APPLICATION_INTERFACE, applicationInterfaceId);
                 return true;
             }
         } catch (Exception e) {
@@ -4169,10 +4503,9 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), propertiesToBeModified.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
-                    return jsonResponse.getAsJsonObject();
+                    return cacheEntry(MetadataCache.Kind.APPLICATION_INTERFACE, jsonResponse.getAsJsonObject());
                 }
             }
         } catch (Exception e) {
@@ -4222,8 +4555,7 @@ public class ZmartifyAPIClient {
             response = connect("patch", sb.toString(), request.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 202 || code == 400 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200 || code == 202) {
                     return jsonResponse.getAsJsonObject();
                 }
@@ -4328,8 +4660,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -4376,8 +4707,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -4408,6 +4738,9 @@ public class ZmartifyAPIClient {
     }
 
     public JsonObject getSchemaByName(String name) throws IoTFCReSTException {
+        if (metadataCache.isEnabled()) {
+            return toListing(findByName(MetadataCache.Kind.SCHEMA, name));
+        }
         ArrayList<NameValuePair> parameters = new ArrayList<NameValuePair>();
         parameters.add(new BasicNameValuePair("name", name));
         return getAllSchemas(parameters);
@@ -4508,22 +4841,15 @@ public class ZmartifyAPIClient {
 
             post.setEntity(entity.build());
 
-            try {
-                HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-                response = client.execute(post);
-            } catch (IOException e) {
-                LoggerUtility.warn(CLASS_NAME, METHOD, "WARNING:" + e.getMessage());
-                throw e;
-            }
+            response = execute(post, METHOD);
 
             code = response.getStatusLine().getStatusCode();
 
             if (code == 201 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 201) {
-                    return jsonResponse.getAsJsonObject();
+                    return cacheEntry(MetadataCache.Kind.SCHEMA, jsonResponse.getAsJsonObject());
                 }
             }
 
@@ -4572,6 +4898,7 @@ public class ZmartifyAPIClient {
             response = connect("delete", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 204) {
+                metadataCache.removeById(MetadataCache.Kind.SCHEMA, schemaId);
                 return true;
             }
         } catch (Exception e) {
@@ -4599,6 +4926,55 @@ public class ZmartifyAPIClient {
         return false;
     }
 
+    /**
+     * Gets the content of the schema file of a schema definition
+     *
+     * @param schemaId
+     * @return the JSON schema as uploaded
+     * @throws IoTFCReSTException
+     */
+    public JsonElement getSchemaContent(String schemaId) throws IoTFCReSTException {
+        final String METHOD = "getSchemaContent";
+        /**
+         * Form the url based on this swagger documentation
+         */
+        StringBuilder sb = new StringBuilder("https://");
+        sb.append(orgId).append('.').append(this.domain).append(BASIC_API_V0002_URL).append("/schemas/")
+                .append(schemaId).append("/content");
+
+        int code = 0;
+        HttpResponse response = null;
+        JsonElement jsonResponse = null;
+        try {
+            response = connect("get", sb.toString(), null, null);
+            code = response.getStatusLine().getStatusCode();
+            jsonResponse = this.readJson(response, METHOD);
+            if (code == 200) {
+                return jsonResponse;
+            }
+        } catch (Exception e) {
+            IoTFCReSTException ex = new IoTFCReSTException(
+                    "Failure in retrieving the schema content " + "::" + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+
+        switch (code) {
+            case 401:
+                throw new IoTFCReSTException(code, "The authentication token is empty or invalid", jsonResponse);
+            case 403:
+                throw new IoTFCReSTException(code,
+                        "The authentication method is invalid or the API key used does not exist", jsonResponse);
+            case 404:
+                throw new IoTFCReSTException(code, "A schema definition with the specified id does not exist.",
+                        jsonResponse);
+            case 500:
+                throw new IoTFCReSTException(code, "Unexpected error", jsonResponse);
+            default:
+                throw new IoTFCReSTException(code, "", jsonResponse);
+        }
+    }
+
     public JsonObject updateSchema(String schemaId, String schemaFileName) throws IoTFCReSTException {
 
         final String METHOD = "updateSchema";
@@ -4632,22 +5008,16 @@ public class ZmartifyAPIClient {
 
             put.setEntity(entity.build());
 
-            try {
-                HttpClient client = HttpClientBuilder.create().useSystemProperties().setSSLContext(sslContext).build();
-                response = client.execute(put);
-            } catch (IOException e) {
-                LoggerUtility.warn(CLASS_NAME, METHOD, "WARNING:" + e.getMessage());
-                throw e;
-            }
+            response = execute(put, METHOD);
 
             code = response.getStatusLine().getStatusCode();
 
             if (code == 204 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 204) {
-                    return jsonResponse.getAsJsonObject();
+                    // No content
+                    return jsonResponse.isJsonObject() ? jsonResponse.getAsJsonObject() : new JsonObject();
                 }
             }
 
@@ -4729,8 +5099,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -4770,10 +5139,9 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 201) {
-                    return jsonResponse.getAsJsonObject();
+                    return cacheEntry(MetadataCache.Kind.EVENT_TYPE, jsonResponse.getAsJsonObject());
                 }
             }
         } catch (Exception e) {
@@ -4833,6 +5201,7 @@ public class ZmartifyAPIClient {
             response = connect("delete", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 204) {
+                metadataCache.removeById(MetadataCache.Kind.EVENT_TYPE, eventTypeId);
                 return true;
             }
         } catch (Exception e) {
@@ -4874,8 +5243,7 @@ public class ZmartifyAPIClient {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -4914,8 +5282,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -4943,6 +5310,9 @@ public class ZmartifyAPIClient {
     }
 
     public JsonObject getEventTypeByName(String name) throws IoTFCReSTException {
+        if (metadataCache.isEnabled()) {
+            return toListing(findByName(MetadataCache.Kind.EVENT_TYPE, name));
+        }
         ArrayList<NameValuePair> parameters = new ArrayList<NameValuePair>();
         parameters.add(new BasicNameValuePair("name", name));
         return getAllEventTypes(parameters);
@@ -4996,10 +5366,9 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), propertiesToBeModified.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
-                    return jsonResponse.getAsJsonObject();
+                    return cacheEntry(MetadataCache.Kind.EVENT_TYPE, jsonResponse.getAsJsonObject());
                 }
             }
         } catch (Exception e) {
@@ -5067,8 +5436,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200) {
                 // success
-                String result = this.readContent(response, METHOD);
-                JsonElement jsonResponse = new JsonParser().parse(result);
+                JsonElement jsonResponse = this.readJson(response, METHOD);
                 return jsonResponse.getAsJsonObject();
             }
         } catch (Exception e) {
@@ -5096,6 +5464,9 @@ public class ZmartifyAPIClient {
     }
 
     public JsonObject getPhysicalInterfaceByName(String name) throws IoTFCReSTException {
+        if (metadataCache.isEnabled()) {
+            return toListing(findByName(MetadataCache.Kind.PHYSICAL_INTERFACE, name));
+        }
         ArrayList<NameValuePair> parameters = new ArrayList<NameValuePair>();
         parameters.add(new BasicNameValuePair("name", name));
         return getAllPhysicalInterfaces(parameters);
@@ -5147,8 +5518,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
             }
@@ -5209,11 +5579,10 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
-                return jsonResponse.getAsJsonObject();
+                return cacheEntry(MetadataCache.Kind.PHYSICAL_INTERFACE, jsonResponse.getAsJsonObject());
             }
         } catch (Exception e) {
             IoTFCReSTException ex = new IoTFCReSTException(
@@ -5262,8 +5631,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 200) {
                 return jsonResponse.getAsJsonObject();
@@ -5374,8 +5742,7 @@ public class ZmartifyAPIClient {
             code = response.getStatusLine().getStatusCode();
             if (code == 201 || code == 400) {
                 // success
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
             }
             if (code == 201) {
                 return jsonResponse.getAsJsonObject();
@@ -5436,8 +5803,7 @@ public class ZmartifyAPIClient {
         try {
             response = connect("get", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
-            String result = this.readContent(response, METHOD);
-            jsonResponse = new JsonParser().parse(result);
+            jsonResponse = this.readJson(response, METHOD);
             if (code == 200) {
                 return jsonResponse.getAsJsonArray();
             }
@@ -5529,6 +5895,7 @@ public class ZmartifyAPIClient {
             response = connect("delete", sb.toString(), null, null);
             code = response.getStatusLine().getStatusCode();
             if (code == 204) {
+                metadataCache.removeById(MetadataCache.Kind.PHYSICAL_INTERFACE, physicalInterfaceId);
                 return true;
             }
         } catch (Exception e) {
@@ -5589,10 +5956,9 @@ public class ZmartifyAPIClient {
             response = connect("put", sb.toString(), propertiesToBeModified.toString(), null);
             code = response.getStatusLine().getStatusCode();
             if (code == 200 || code == 409) {
-                String result = this.readContent(response, METHOD);
-                jsonResponse = new JsonParser().parse(result);
+                jsonResponse = this.readJson(response, METHOD);
                 if (code == 200) {
-                    return jsonResponse.getAsJsonObject();
+                    return cacheEntry(MetadataCache.Kind.PHYSICAL_INTERFACE, jsonResponse.getAsJsonObject());
                 }
             }
         } catch (Exception e) {
@@ -5622,4 +5988,220 @@ public class ZmartifyAPIClient {
 
         return null;
     }
+
+    /*
+     * ***************************************************** Metadata cache
+     */
+
+    /**
+     * Looks the name up in the metadata cache, the first lookup of a kind lists all its entries.
+     *
+     * @return all entries with that name, empty if none exists
+     */
+    private List<JsonObject> findByName(MetadataCache.Kind kind, String name) throws IoTFCReSTException {
+        try {
+            return metadataCache.get(kind, name, this::listAll);
+        } catch (IoTFCReSTException e) {
+            throw e;
+        } catch (PagedResults.PageException e) {
+            throw e.getCause();
+        } catch (Exception e) {
+            IoTFCReSTException ex = new IoTFCReSTException("Failure in looking up " + name + " ::" + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    private Iterable<JsonObject> listAll(MetadataCache.Kind kind) {
+        switch (kind) {
+            case SCHEMA:
+                return getAllSchemasPaged();
+            case EVENT_TYPE:
+                return getAllEventTypesPaged();
+            case PHYSICAL_INTERFACE:
+                return getAllPhysicalInterfacesPaged();
+            default:
+                return getAllApplicationInterfacesPaged();
+        }
+    }
+
+    private JsonObject cacheEntry(MetadataCache.Kind kind, JsonObject entry) {
+        if (metadataCache.isEnabled()) {
+            metadataCache.put(kind, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Wraps the entries in the format of a listing response
+     */
+    private static JsonObject toListing(List<JsonObject> entries) {
+        JsonArray results = new JsonArray();
+        for (JsonObject entry : entries) {
+            results.add(entry);
+        }
+        JsonObject meta = new JsonObject();
+        meta.addProperty("total_rows", results.size());
+        JsonObject listing = new JsonObject();
+        listing.add("results", results);
+        listing.add("meta", meta);
+        return listing;
+    }
+
+    /*
+     * ***************************************************** Paged listings
+     */
+
+    /**
+     * Returns all devices of the given device type, following the bookmarks of the platform page by page.
+     *
+     * @param deviceType String which contains device type
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of devices requested per page
+     * @return lazy view over all devices
+     */
+    public PagedResults retrieveDevicesPaged(String deviceType, List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> retrieveDevices(deviceType, pageParameters), parameters,
+                pageSize, prefetchExecutor);
+    }
+
+    public PagedResults retrieveDevicesPaged(String deviceType) {
+        return retrieveDevicesPaged(deviceType, null, pageSize);
+    }
+
+    /**
+     * Returns all devices of the organization, following the bookmarks of the platform page by page.
+     *
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over all devices
+     */
+    public PagedResults getAllDevicesPaged(List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> getAllDevices(pageParameters), parameters, pageSize,
+                prefetchExecutor);
+    }
+
+    public PagedResults getAllDevicesPaged() {
+        return getAllDevicesPaged(null, pageSize);
+    }
+
+    /**
+     * Returns all devices connected through the given gateway, following the bookmarks of the platform page by
+     * page.
+     *
+     * @param gatewayType Gateway Device type ID
+     * @param gatewayId Gateway Device ID
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over the connected devices
+     */
+    public PagedResults getDevicesConnectedThroughGatewayPaged(String gatewayType, String gatewayId,
+            List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(
+                pageParameters -> getDevicesConnectedThroughGateway(gatewayType, gatewayId, pageParameters),
+                parameters, pageSize, prefetchExecutor);
+    }
+
+    public PagedResults getDevicesConnectedThroughGatewayPaged(String gatewayType, String gatewayId) {
+        return getDevicesConnectedThroughGatewayPaged(gatewayType, gatewayId, null, pageSize);
+    }
+
+    /**
+     * Returns the status of every device of a device management request, following the bookmarks of the
+     * platform page by page.
+     *
+     * @param requestId String ID representing the management request
+     * @param parameters additional query parameters, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over the device statuses
+     */
+    public PagedResults getDeviceManagementRequestStatusPaged(String requestId, List<NameValuePair> parameters,
+            int pageSize) {
+        return new PagedResults(pageParameters -> getDeviceManagementRequestStatus(requestId, pageParameters),
+                parameters, pageSize, prefetchExecutor);
+    }
+
+    public PagedResults getDeviceManagementRequestStatusPaged(String requestId) {
+        return getDeviceManagementRequestStatusPaged(requestId, null, pageSize);
+    }
+
+    /**
+     * Returns all device types of the organization, following the bookmarks of the platform page by page.
+     *
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over all device types
+     */
+    public PagedResults getAllDeviceTypesPaged(List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> getAllDeviceTypes(pageParameters), parameters, pageSize,
+                prefetchExecutor);
+    }
+
+    public PagedResults getAllDeviceTypesPaged() {
+        return getAllDeviceTypesPaged(null, pageSize);
+    }
+
+    /**
+     * Returns all schemas, following the bookmarks of the platform page by page.
+     *
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over all schemas
+     */
+    public PagedResults getAllSchemasPaged(List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> getAllSchemas(pageParameters), parameters, pageSize,
+                prefetchExecutor);
+    }
+
+    public PagedResults getAllSchemasPaged() {
+        return getAllSchemasPaged(null, pageSize);
+    }
+
+    /**
+     * Returns all event types, following the bookmarks of the platform page by page.
+     *
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over all event types
+     */
+    public PagedResults getAllEventTypesPaged(List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> getAllEventTypes(pageParameters), parameters, pageSize,
+                prefetchExecutor);
+    }
+
+    public PagedResults getAllEventTypesPaged() {
+        return getAllEventTypesPaged(null, pageSize);
+    }
+
+    /**
+     * Returns all physical interfaces, following the bookmarks of the platform page by page.
+     *
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over all physical interfaces
+     */
+    public PagedResults getAllPhysicalInterfacesPaged(List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> getAllPhysicalInterfaces(pageParameters), parameters, pageSize,
+                prefetchExecutor);
+    }
+
+    public PagedResults getAllPhysicalInterfacesPaged() {
+        return getAllPhysicalInterfacesPaged(null, pageSize);
+    }
+
+    /**
+     * Returns all application interfaces, following the bookmarks of the platform page by page.
+     *
+     * @param parameters additional query parameters, e.g. for sorting, may be null
+     * @param pageSize number of entries requested per page
+     * @return lazy view over all application interfaces
+     */
+    public PagedResults getAllApplicationInterfacesPaged(List<NameValuePair> parameters, int pageSize) {
+        return new PagedResults(pageParameters -> getAllApplicationInterfaces(pageParameters), parameters, pageSize,
+                prefetchExecutor);
+    }
+
+    public PagedResults getAllApplicationInterfacesPaged() {
+        return getAllApplicationInterfacesPaged(null, pageSize);
+    }
 }
@@ -0,0 +1,1138 @@
+package com.zmartify.iotf.tools.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.ibm.iotf.client.IoTFCReSTException;
+import com.ibm.iotf.util.LoggerUtility;
+
+/**
+ * Non-blocking companion of {@link ZmartifyAPIClient}.
+ *
+ * <p>
+ * The operations mirror the ones of the blocking client, but run on an NIO HTTP engine and return a
+ * {@link CompletableFuture} that is completed with the JSON response, or completed exceptionally with an
+ * {@link IoTFCReSTException} carrying the HTTP code and the error response of the platform.
+ * </p>
+ *
+ * <p>
+ * At most <code>maxInFlight</code> requests are on the wire at any time. Additional requests are queued and
+ * dispatched as soon as a slot frees up, so the calling thread never blocks and a single thread can keep
+ * dozens of requests outstanding.
+ * </p>
+ *
+ * <p>
+ * The requests share the {@link RequestScheduler} of the blocking client, so both clients together stay within
+ * the rate limit of the organization, and get the same retries of throttled (429) and failed requests. The waits
+ * for a permit or a retry are scheduled on a timer, they never block the calling or the I/O threads.
+ * </p>
+ *
+ * <p>
+ * The futures are completed on the I/O dispatcher threads, use the <code>*Async</code> stages of
+ * CompletableFuture for anything more than light processing of the response.
+ * </p>
+ */
+public class ZmartifyAsyncAPIClient implements Closeable {
+
+    private static final String CLASS_NAME = ZmartifyAsyncAPIClient.class.getName();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    private static final JsonParser JSON_PARSER = new JsonParser();
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final String baseUrl;
+    private final String authorization;
+    private final int maxInFlight;
+    private final RequestScheduler requestScheduler;
+    private final ScheduledExecutorService timer;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<PendingRequest> pending = new ConcurrentLinkedQueue<PendingRequest>();
+
+    private static class PendingRequest {
+        private final HttpRequestBase request;
+        private final String method;
+        private final CompletableFuture<HttpResponse> future;
+        private int attempt;
+
+        PendingRequest(HttpRequestBase request, String method, CompletableFuture<HttpResponse> future) {
+            this.request = request;
+            this.method = method;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Creates an asynchronous client using the organization, credentials and SSL settings of the given
+     * blocking client.
+     *
+     * @param apiClient the blocking client to take the settings from
+     */
+    public ZmartifyAsyncAPIClient(ZmartifyAPIClient apiClient) {
+        this(apiClient, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param apiClient the blocking client to take the settings from
+     * @param maxInFlight maximum number of requests on the wire at the same time
+     */
+    public ZmartifyAsyncAPIClient(ZmartifyAPIClient apiClient, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.baseUrl = apiClient.getApiBaseUrl();
+        this.authorization = apiClient.getAuthorizationHeader();
+        this.maxInFlight = maxInFlight;
+        this.requestScheduler = apiClient.getRequestScheduler();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "api-async-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.httpClient = HttpAsyncClients.custom().useSystemProperties().setSSLContext(apiClient.getSSLContext())
+                .setMaxConnTotal(maxInFlight).setMaxConnPerRoute(maxInFlight).build();
+        this.httpClient.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        httpClient.close();
+    }
+
+    /**
+     * @return number of requests currently on the wire
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return number of requests waiting for a free slot
+     */
+    public int getQueued() {
+        return pending.size();
+    }
+
+    /*
+     * ***************************************************** Request execution
+     */
+
+    private CompletableFuture<HttpResponse> submit(HttpRequestBase request, String method) {
+        request.addHeader("Accept", "application/json");
+        if (authorization != null) {
+            request.addHeader("Authorization", authorization);
+        }
+        CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+        pending.add(new PendingRequest(request, method, future));
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Moves queued requests onto the wire while there are free slots. Called on submit and whenever a
+     * request completes, so it must never block.
+     */
+    private void dispatch() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            PendingRequest next = pending.poll();
+            if (next == null) {
+                // somebody else took it, give the slot back and check again
+                inFlight.decrementAndGet();
+                continue;
+            }
+            start(next);
+        }
+    }
+
+    /**
+     * Sends the request once the scheduler admits it, the slot is held while waiting
+     */
+    private void start(final PendingRequest pendingRequest) {
+        long wait = requestScheduler.reserve();
+        if (wait <= 0) {
+            execute(pendingRequest);
+            return;
+        }
+        try {
+            timer.schedule(() -> execute(pendingRequest), wait, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            failed(pendingRequest, new IOException("Client closed", e));
+        }
+    }
+
+    private void execute(final PendingRequest pendingRequest) {
+        httpClient.execute(pendingRequest.request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                long delay = requestScheduler.retryDelay(pendingRequest.request, pendingRequest.method,
+                        pendingRequest.attempt, response);
+                if (delay >= 0) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    retry(pendingRequest, delay);
+                    return;
+                }
+                release();
+                pendingRequest.future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (e instanceof IOException) {
+                    long delay = requestScheduler.retryDelay(pendingRequest.request, pendingRequest.method,
+                            pendingRequest.attempt, (IOException) e);
+                    if (delay >= 0) {
+                        retry(pendingRequest, delay);
+                        return;
+                    }
+                }
+                ZmartifyAsyncAPIClient.this.failed(pendingRequest, e);
+            }
+
+            @Override
+            public void cancelled() {
+                release();
+                pendingRequest.future.cancel(false);
+            }
+        });
+    }
+
+    private void retry(PendingRequest pendingRequest, long delay) {
+        pendingRequest.attempt++;
+        try {
+            timer.schedule(() -> start(pendingRequest), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            failed(pendingRequest, new IOException("Client closed", e));
+        }
+    }
+
+    private void failed(PendingRequest pendingRequest, Exception e) {
+        release();
+        LoggerUtility.warn(CLASS_NAME, pendingRequest.method, e.getMessage());
+        IoTFCReSTException ex = new IoTFCReSTException("Failure in " + pendingRequest.method + " ::" + e.getMessage());
+        ex.initCause(e);
+        pendingRequest.future.completeExceptionally(ex);
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        dispatch();
+    }
+
+    private HttpRequestBase createRequest(String operation, String path, List<NameValuePair> parameters) {
+        try {
+            URIBuilder builder = new URIBuilder(baseUrl + path);
+            if (parameters != null) {
+                builder.setParameters(parameters);
+            }
+            switch (operation) {
+                case "post":
+                    return new HttpPost(builder.build());
+                case "put":
+                    return new HttpPut(builder.build());
+                case "patch":
+                    return new HttpPatch(builder.build());
+                case "delete":
+                    return new HttpDelete(builder.build());
+                default:
+                    return new HttpGet(builder.build());
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid request path " + path, e);
+        }
+    }
+
+    /**
+     * @throws RuntimeIoTFCReSTException if the body is not JSON
+     */
+    private static JsonElement readJson(HttpResponse response, String method) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || entity.getContentLength() == 0) {
+            return JsonNull.INSTANCE;
+        }
+        try {
+            return JSON_PARSER.parse(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            LoggerUtility.warn(CLASS_NAME, method, e.getMessage());
+            IoTFCReSTException ex = new IoTFCReSTException("Failure in parsing the response of " + method + " ::"
+                    + e.getMessage());
+            ex.initCause(e);
+            throw new RuntimeIoTFCReSTException(ex);
+        }
+    }
+
+    /**
+     * Reads the body of an error response, which may not be JSON, e.g. the error page of a proxy
+     */
+    private static JsonElement readErrorJson(HttpResponse response, String method) {
+        try {
+            return readJson(response, method);
+        } catch (RuntimeIoTFCReSTException e) {
+            return JsonNull.INSTANCE;
+        }
+    }
+
+    /**
+     * @return the JSON body of a 2xx response
+     * @throws RuntimeIoTFCReSTException for any other status
+     */
+    private static JsonElement readResponse(HttpResponse response, String method) {
+        int code = response.getStatusLine().getStatusCode();
+        if (code >= 200 && code < 300) {
+            return readJson(response, method);
+        }
+        throw error(response, method);
+    }
+
+    private static RuntimeIoTFCReSTException error(HttpResponse response, String method) {
+        return new RuntimeIoTFCReSTException(new IoTFCReSTException(response.getStatusLine().getStatusCode(),
+                method + ": " + response.getStatusLine().getReasonPhrase(), readErrorJson(response, method)));
+    }
+
+    /**
+     * @return a future completed like the stage, but exceptionally with the {@link IoTFCReSTException} itself
+     *         rather than the exceptions carrying it through the stages
+     */
+    private static <T> CompletableFuture<T> unwrapped(CompletableFuture<T> stage) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        stage.whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(unwrap(e));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends the request and completes with the JSON body of any 2xx response, any other status completes the
+     * future exceptionally with an {@link IoTFCReSTException}.
+     */
+    private CompletableFuture<JsonElement> send(String operation, String path, JsonElement body,
+            List<NameValuePair> parameters, final String method) {
+        HttpRequestBase request = createRequest(operation, path, parameters);
+        if (body != null && request instanceof HttpEntityEnclosingRequestBase) {
+            ((HttpEntityEnclosingRequestBase) request)
+                    .setEntity(new StringEntity(body.toString(), ContentType.APPLICATION_JSON));
+        }
+        return unwrapped(submit(request, method).thenApply(response -> readResponse(response, method)));
+    }
+
+    /**
+     * Completes with true on 200, false on 404 and exceptionally otherwise.
+     */
+    private CompletableFuture<Boolean> exists(String path, final String method) {
+        return unwrapped(submit(createRequest("get", path, null), method).thenApply(response -> {
+            int code = response.getStatusLine().getStatusCode();
+            if (code == 200) {
+                return Boolean.TRUE;
+            } else if (code == 404) {
+                return Boolean.FALSE;
+            }
+            throw error(response, method);
+        }));
+    }
+
+    private CompletableFuture<JsonObject> sendForObject(String operation, String path, JsonElement body,
+            List<NameValuePair> parameters, String method) {
+        return send(operation, path, body, parameters, method).thenApply(
+                json -> json.isJsonObject() ? json.getAsJsonObject() : new JsonObject());
+    }
+
+    private CompletableFuture<JsonArray> sendForArray(String operation, String path, JsonElement body,
+            List<NameValuePair> parameters, String method) {
+        return send(operation, path, body, parameters, method).thenApply(
+                json -> json.isJsonArray() ? json.getAsJsonArray() : new JsonArray());
+    }
+
+    private CompletableFuture<Boolean> sendForStatus(String operation, String path, String method) {
+        return send(operation, path, null, null, method).thenApply(json -> Boolean.TRUE);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e.getCause() != null
+                && (e instanceof java.util.concurrent.CompletionException || e instanceof RuntimeIoTFCReSTException)) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Carries a checked {@link IoTFCReSTException} through the completion stages
+     */
+    private static class RuntimeIoTFCReSTException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RuntimeIoTFCReSTException(IoTFCReSTException cause) {
+            super(cause);
+        }
+    }
+
+    private static List<NameValuePair> byName(String name) {
+        List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+        parameters.add(new BasicNameValuePair("name", name));
+        return parameters;
+    }
+
+    /**
+     * @return the ids of the results of the listing with exactly the name, platform names are not unique
+     */
+    private static List<String> idsByName(JsonObject listing, String name) {
+        List<String> ids = new ArrayList<String>();
+        JsonElement results = listing.get("results");
+        if (results != null && results.isJsonArray()) {
+            for (JsonElement result : results.getAsJsonArray()) {
+                JsonObject object = result.getAsJsonObject();
+                if (object.has("name") && name.equals(object.get("name").getAsString())) {
+                    ids.add(object.get("id").getAsString());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes every object of the listing with the name
+     *
+     * @return completed with false if there was none
+     */
+    private static CompletableFuture<Boolean> deleteByName(CompletableFuture<JsonObject> listing, String name,
+            Function<String, CompletableFuture<Boolean>> delete) {
+        return listing.thenCompose(json -> {
+            List<String> ids = idsByName(json, name);
+            CompletableFuture<?>[] deletes = new CompletableFuture<?>[ids.size()];
+            for (int i = 0; i < deletes.length; i++) {
+                deletes[i] = delete.apply(ids.get(i));
+            }
+            return unwrapped(CompletableFuture.allOf(deletes)).thenApply(v -> !ids.isEmpty());
+        });
+    }
+
+    private CompletableFuture<JsonObject> getUsage(String path, String startDate, String endDate, boolean detail,
+            String method) {
+        List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+        if (startDate != null) {
+            parameters.add(new BasicNameValuePair("start", startDate));
+        }
+        if (endDate != null) {
+            parameters.add(new BasicNameValuePair("end", endDate));
+        }
+        parameters.add(new BasicNameValuePair("detail", Boolean.toString(detail)));
+        return sendForObject("get", path, null, parameters, method);
+    }
+
+    private static String eventsPath(String deviceType, String deviceId) {
+        StringBuilder sb = new StringBuilder("/device");
+        if (deviceType != null) {
+            sb.append("/types/").append(deviceType);
+        }
+        if (deviceId != null) {
+            sb.append("/devices/").append(deviceId);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * ***************************************************** Organization and devices
+     */
+
+    public CompletableFuture<JsonObject> getOrganizationDetails() {
+        return sendForObject("get", "/", null, null, "getOrganizationDetails");
+    }
+
+    public CompletableFuture<Boolean> isDeviceExist(String deviceType, String deviceId) {
+        return exists("/device/types/" + deviceType + "/devices/" + deviceId, "isDeviceExist");
+    }
+
+    public CompletableFuture<JsonObject> getDevice(String deviceType, String deviceId) {
+        return sendForObject("get", "/device/types/" + deviceType + "/devices/" + deviceId, null, null,
+                "getDevice");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceLocation(String deviceType, String deviceId) {
+        return sendForObject("get", "/device/types/" + deviceType + "/devices/" + deviceId + "/location", null,
+                null, "getDeviceLocation");
+    }
+
+    public CompletableFuture<JsonObject> updateDeviceLocation(String deviceType, String deviceId,
+            JsonElement location) {
+        return sendForObject("put", "/device/types/" + deviceType + "/devices/" + deviceId + "/location",
+                location, null, "updateDeviceLocation");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceManagementInformation(String deviceType, String deviceId) {
+        return sendForObject("get", "/device/types/" + deviceType + "/devices/" + deviceId + "/mgmt", null, null,
+                "getDeviceManagementInformation");
+    }
+
+    public CompletableFuture<JsonObject> updateDevice(String deviceType, String deviceId,
+            JsonElement propertiesToBeModified) {
+        return sendForObject("put", "/device/types/" + deviceType + "/devices/" + deviceId,
+                propertiesToBeModified, null, "updateDevice");
+    }
+
+    public CompletableFuture<JsonObject> getAllDevices(List<NameValuePair> parameters) {
+        return sendForObject("get", "/bulk/devices", null, parameters, "getAllDevices");
+    }
+
+    public CompletableFuture<JsonObject> getAllDevices() {
+        return getAllDevices(null);
+    }
+
+    public CompletableFuture<JsonObject> retrieveDevices(String deviceType, List<NameValuePair> parameters) {
+        return sendForObject("get", "/device/types/" + deviceType + "/devices", null, parameters,
+                "retrieveDevices");
+    }
+
+    public CompletableFuture<JsonObject> retrieveDevices(String deviceType) {
+        return retrieveDevices(deviceType, null);
+    }
+
+    public CompletableFuture<JsonObject> getDevicesConnectedThroughGateway(String gatewayType, String gatewayId) {
+        return sendForObject("get", "/device/types/" + gatewayType + "/devices/" + gatewayId + "/devices", null,
+                null, "getDevicesConnectedThroughGateway");
+    }
+
+    public CompletableFuture<JsonObject> registerDevice(String typeId, JsonElement device) {
+        return sendForObject("post", "/device/types/" + typeId + "/devices", device, null, "registerDevice");
+    }
+
+    public CompletableFuture<JsonObject> registerDeviceUnderGateway(String typeId, String gatewayId,
+            String gatewayTypeId, JsonElement device) {
+        if (device != null) {
+            JsonObject deviceObj = device.getAsJsonObject();
+            deviceObj.addProperty("gatewayId", gatewayId);
+            deviceObj.addProperty("gatewayTypeId", gatewayTypeId);
+        }
+        return registerDevice(typeId, device);
+    }
+
+    public CompletableFuture<Boolean> deleteDevice(String deviceType, String deviceId) {
+        return sendForStatus("delete", "/device/types/" + deviceType + "/devices/" + deviceId, "deleteDevice");
+    }
+
+    public CompletableFuture<JsonArray> addMultipleDevices(JsonArray arryOfDevicesToBeAdded) {
+        return sendForArray("post", "/bulk/devices/add", arryOfDevicesToBeAdded, null, "addMultipleDevices");
+    }
+
+    public CompletableFuture<JsonArray> deleteMultipleDevices(JsonArray arryOfDevicesToBeDeleted) {
+        return sendForArray("post", "/bulk/devices/remove", arryOfDevicesToBeDeleted, null,
+                "deleteMultipleDevices");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceState(String deviceType, String deviceId,
+            String applicationInterfaceId) {
+        return sendForObject("get", "/device/types/" + deviceType + "/devices/" + deviceId + "/state/"
+                + applicationInterfaceId, null, null, "getDeviceState");
+    }
+
+    public CompletableFuture<JsonElement> getLastEvents(String deviceType, String deviceId) {
+        return send("get", eventsPath(deviceType, deviceId) + "/events", null, null, "getLastEvents");
+    }
+
+    public CompletableFuture<JsonElement> getLastEvent(String deviceType, String deviceId, String eventId) {
+        return send("get", eventsPath(deviceType, deviceId) + (eventId != null ? "/events/" + eventId : ""), null,
+                null, "getLastEvent");
+    }
+
+    public CompletableFuture<JsonArray> getDeviceConnectionLogs(String deviceType, String deviceId) {
+        List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+        parameters.add(new BasicNameValuePair("typeId", deviceType));
+        parameters.add(new BasicNameValuePair("deviceId", deviceId));
+        return sendForArray("get", "/logs/connection", null, parameters, "getDeviceConnectionLogs");
+    }
+
+    /*
+     * ***************************************************** Diagnostics
+     */
+
+    public CompletableFuture<JsonArray> getAllDiagnosticLogs(String deviceType, String deviceId) {
+        return sendForArray("get", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/logs", null,
+                null, "getAllDiagnosticLogs");
+    }
+
+    public CompletableFuture<Boolean> addDiagnosticLog(String deviceType, String deviceId, JsonElement log) {
+        return send("post", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/logs", log, null,
+                "addDiagnosticLog").thenApply(json -> Boolean.TRUE);
+    }
+
+    public CompletableFuture<JsonObject> getDiagnosticLog(String deviceType, String deviceId, String logId) {
+        return sendForObject("get", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/logs/" + logId,
+                null, null, "getDiagnosticLog");
+    }
+
+    public CompletableFuture<Boolean> deleteDiagnosticLog(String deviceType, String deviceId, String logId) {
+        return sendForStatus("delete", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/logs/" + logId,
+                "deleteDiagnosticLog");
+    }
+
+    public CompletableFuture<Boolean> clearAllDiagnosticLogs(String deviceType, String deviceId) {
+        return sendForStatus("delete", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/logs",
+                "clearAllDiagnosticLogs");
+    }
+
+    public CompletableFuture<JsonArray> getAllDiagnosticErrorCodes(String deviceType, String deviceId) {
+        return sendForArray("get", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/errorCodes",
+                null, null, "getAllDiagnosticErrorCodes");
+    }
+
+    public CompletableFuture<Boolean> addDiagnosticErrorCode(String deviceType, String deviceId,
+            JsonElement errorcode) {
+        return send("post", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/errorCodes",
+                errorcode, null, "addDiagnosticErrorCode").thenApply(json -> Boolean.TRUE);
+    }
+
+    public CompletableFuture<Boolean> clearAllDiagnosticErrorCodes(String deviceType, String deviceId) {
+        return sendForStatus("delete", "/device/types/" + deviceType + "/devices/" + deviceId + "/diag/errorCodes",
+                "clearAllDiagnosticErrorCodes");
+    }
+
+    /*
+     * ***************************************************** Device management requests
+     */
+
+    public CompletableFuture<JsonObject> getAllDeviceManagementRequests(List<NameValuePair> parameters) {
+        return sendForObject("get", "/mgmt/requests", null, parameters, "getAllDeviceManagementRequests");
+    }
+
+    public CompletableFuture<JsonObject> initiateDMRequest(JsonObject request) {
+        return sendForObject("post", "/mgmt/requests", request, null, "initiateDMRequest");
+    }
+
+    public CompletableFuture<Boolean> initiateDeviceManagementRequest(JsonObject request) {
+        return initiateDMRequest(request).thenApply(json -> Boolean.TRUE);
+    }
+
+    public CompletableFuture<JsonObject> getDeviceManagementRequest(String requestId) {
+        return sendForObject("get", "/mgmt/requests/" + requestId, null, null, "getDeviceManagementRequest");
+    }
+
+    public CompletableFuture<Boolean> deleteDeviceManagementRequest(String requestId) {
+        return sendForStatus("delete", "/mgmt/requests/" + requestId, "deleteDeviceManagementRequest");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceManagementRequestStatus(String requestId,
+            List<NameValuePair> parameters) {
+        return sendForObject("get", "/mgmt/requests/" + requestId + "/deviceStatus", null, parameters,
+                "getDeviceManagementRequestStatus");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceManagementRequestStatus(String requestId) {
+        return getDeviceManagementRequestStatus(requestId, null);
+    }
+
+    public CompletableFuture<JsonObject> getDeviceManagementRequestStatusByDevice(String requestId,
+            String deviceType, String deviceId) {
+        return sendForObject("get", "/mgmt/requests/" + requestId + "/deviceStatus/" + deviceType + "/" + deviceId,
+                null, null, "getDeviceManagementRequestStatusByDevice");
+    }
+
+    public CompletableFuture<JsonObject> addDeviceManagementExtension(JsonObject request) {
+        return sendForObject("post", "/mgmt/custom/bundle", request, null, "addDeviceManagementExtension");
+    }
+
+    public CompletableFuture<JsonObject> addDeviceManagementExtension(String request) {
+        return addDeviceManagementExtension(JSON_PARSER.parse(request).getAsJsonObject());
+    }
+
+    public CompletableFuture<JsonObject> getDeviceManagementExtension(String bundleId) {
+        return sendForObject("get", "/mgmt/custom/bundle/" + bundleId, null, null, "getDeviceManagementExtension");
+    }
+
+    public CompletableFuture<Boolean> deleteDeviceManagementExtension(String bundleId) {
+        return sendForStatus("delete", "/mgmt/custom/bundle/" + bundleId, "deleteDeviceManagementExtension");
+    }
+
+    /*
+     * ***************************************************** Usage and service status
+     */
+
+    public CompletableFuture<JsonObject> getActiveDevices(String startDate, String endDate, boolean detail) {
+        return getUsage("/usage/active-devices", startDate, endDate, detail, "getActiveDevices");
+    }
+
+    public CompletableFuture<JsonObject> getHistoricalDataUsage(String startDate, String endDate, boolean detail) {
+        return getUsage("/usage/historical-data", startDate, endDate, detail, "getHistoricalDataUsage");
+    }
+
+    public CompletableFuture<JsonObject> getDataTraffic(String startDate, String endDate, boolean detail) {
+        return getUsage("/usage/data-traffic", startDate, endDate, detail, "getDataTraffic");
+    }
+
+    public CompletableFuture<JsonObject> getServiceStatus() {
+        return sendForObject("get", "/service-status", null, null, "getServiceStatus");
+    }
+
+    /*
+     * ***************************************************** Device types
+     */
+
+    public CompletableFuture<JsonObject> getAllDeviceTypes(List<NameValuePair> parameters) {
+        return sendForObject("get", "/device/types", null, parameters, "getAllDeviceTypes");
+    }
+
+    public CompletableFuture<JsonObject> getAllDeviceTypes() {
+        return getAllDeviceTypes(null);
+    }
+
+    public CompletableFuture<Boolean> isDeviceTypeExist(String deviceType) {
+        return exists("/device/types/" + deviceType, "isDeviceTypeExist");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceType(String deviceType) {
+        return sendForObject("get", "/device/types/" + deviceType, null, null, "getDeviceType");
+    }
+
+    public CompletableFuture<JsonObject> addDeviceType(JsonElement deviceType) {
+        return sendForObject("post", "/device/types", deviceType, null, "addDeviceType");
+    }
+
+    public CompletableFuture<JsonObject> addDeviceType(String id, String description, JsonElement deviceInfo,
+            JsonElement metadata) {
+        JsonObject input = new JsonObject();
+        if (id != null) {
+            input.addProperty("id", id);
+        }
+        if (description != null) {
+            input.addProperty("description", description);
+        }
+        if (deviceInfo != null) {
+            input.add("deviceInfo", deviceInfo);
+        }
+        if (metadata != null) {
+            input.add("metadata", metadata);
+        }
+        return addDeviceType(input);
+    }
+
+    public CompletableFuture<JsonObject> addGatewayDeviceType(JsonElement deviceType) {
+        if (deviceType != null && !deviceType.getAsJsonObject().has("classId")) {
+            deviceType.getAsJsonObject().addProperty("classId", "Gateway");
+        }
+        return addDeviceType(deviceType);
+    }
+
+    public CompletableFuture<JsonObject> updateDeviceType(String deviceType, JsonElement updatedValues) {
+        return sendForObject("put", "/device/types/" + deviceType, updatedValues, null, "updateDeviceType");
+    }
+
+    public CompletableFuture<Boolean> deleteDeviceType(String typeId) {
+        return sendForStatus("delete", "/device/types/" + typeId, "deleteDeviceType");
+    }
+
+    public CompletableFuture<JsonObject> getDeviceTypeDeployedConfiguration(String deviceType) {
+        return sendForObject("get", "/device/types/" + deviceType + "/deployedconfiguration", null, null,
+                "getDeviceTypeDeployedConfiguration");
+    }
+
+    private CompletableFuture<JsonObject> patchDeviceType(String deviceType, String operation) {
+        JsonObject request = new JsonObject();
+        request.addProperty("operation", operation);
+        return sendForObject("patch", "/device/types/" + deviceType, request, null, "patchDeviceType");
+    }
+
+    public CompletableFuture<JsonObject> validateConfiguration(String deviceType) {
+        return patchDeviceType(deviceType, "validate-configuration");
+    }
+
+    public CompletableFuture<JsonObject> deployConfiguration(String deviceType) {
+        return patchDeviceType(deviceType, "deploy-configuration");
+    }
+
+    public CompletableFuture<JsonObject> listDifferences(String deviceType) {
+        return patchDeviceType(deviceType, "list-differences");
+    }
+
+    public CompletableFuture<JsonObject> removeDeployedConfiguration(String deviceType) {
+        return patchDeviceType(deviceType, "remove-deployed-configuration");
+    }
+
+    /*
+     * ***************************************************** Mappings
+     */
+
+    public CompletableFuture<JsonArray> getMappings(String deviceType) {
+        return sendForArray("get", "/device/types/" + deviceType + "/mappings", null, null, "getMappings");
+    }
+
+    public CompletableFuture<JsonObject> getMappings(String deviceType, String applicationInterfaceId) {
+        return sendForObject("get", "/device/types/" + deviceType + "/mappings/" + applicationInterfaceId, null,
+                null, "getMappings");
+    }
+
+    public CompletableFuture<JsonObject> addMappings(String deviceType, JsonElement propertyMappings) {
+        return sendForObject("post", "/device/types/" + deviceType + "/mappings", propertyMappings, null,
+                "addMappings");
+    }
+
+    public CompletableFuture<JsonObject> updateMappings(String deviceType, JsonObject propertiesToBeModified) {
+        String applicationInterfaceId = propertiesToBeModified.get("applicationInterfaceId").getAsString();
+        return sendForObject("put", "/device/types/" + deviceType + "/mappings/" + applicationInterfaceId,
+                propertiesToBeModified, null, "updateMappings");
+    }
+
+    public CompletableFuture<Boolean> deleteMappings(String deviceType, String applicationInterfaceId) {
+        return sendForStatus("delete", "/device/types/" + deviceType + "/mappings/" + applicationInterfaceId,
+                "deleteMappings");
+    }
+
+    /*
+     * ***************************************************** Schemas
+     */
+
+    public CompletableFuture<JsonObject> getAllSchemas(List<NameValuePair> parameters) {
+        return sendForObject("get", "/schemas", null, parameters, "getAllSchemas");
+    }
+
+    public CompletableFuture<JsonObject> getAllSchemas() {
+        return getAllSchemas(null);
+    }
+
+    public CompletableFuture<JsonObject> getSchemaByName(String name) {
+        return getAllSchemas(byName(name));
+    }
+
+    public CompletableFuture<Boolean> isSchemaExistByName(String name) {
+        return getSchemaByName(name).thenApply(json -> !idsByName(json, name).isEmpty());
+    }
+
+    public CompletableFuture<Boolean> deleteSchemaByName(String name) {
+        return deleteByName(getSchemaByName(name), name, this::deleteSchema);
+    }
+
+    /**
+     * @return completed with null if there is no schema with the name
+     */
+    public CompletableFuture<JsonObject> updateSchemaByName(String name, String schemaFileName) {
+        return getSchemaByName(name).thenCompose(json -> {
+            List<String> ids = idsByName(json, name);
+            return ids.isEmpty() ? CompletableFuture.completedFuture((JsonObject) null)
+                    : updateSchema(ids.get(0), schemaFileName);
+        });
+    }
+
+    public CompletableFuture<Boolean> isSchemaExist(String schemaId) {
+        return exists("/schemas/" + schemaId, "isSchemaExist");
+    }
+
+    public CompletableFuture<JsonObject> getSchema(String schemaId) {
+        return sendForObject("get", "/schemas/" + schemaId, null, null, "getSchema");
+    }
+
+    public CompletableFuture<JsonObject> addSchema(String schemaName, String schemaFileName, String description) {
+        MultipartEntityBuilder entity = MultipartEntityBuilder.create().setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .setContentType(ContentType.MULTIPART_FORM_DATA).addTextBody("name", schemaName)
+                .addBinaryBody("schemaFile", new File(schemaFileName), ContentType.APPLICATION_OCTET_STREAM,
+                        schemaName + ".json");
+        if (description != null) {
+            entity.addTextBody("description", description);
+        }
+        return sendMultipart("post", "/schemas", entity.build(), "addSchema");
+    }
+
+    public CompletableFuture<JsonObject> updateSchema(String schemaId, String schemaFileName) {
+        MultipartEntityBuilder entity = MultipartEntityBuilder.create().setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .setContentType(ContentType.MULTIPART_FORM_DATA).addTextBody("schemaId", schemaId)
+                .addBinaryBody("schemaFile", new File(schemaFileName));
+        return sendMultipart("put", "/schemas/" + schemaId + "/content", entity.build(), "updateSchema");
+    }
+
+    public CompletableFuture<Boolean> deleteSchema(String schemaId) {
+        return sendForStatus("delete", "/schemas/" + schemaId, "deleteSchema");
+    }
+
+    public CompletableFuture<JsonElement> getSchemaContent(String schemaId) {
+        return send("get", "/schemas/" + schemaId + "/content", null, null, "getSchemaContent");
+    }
+
+    /**
+     * The NIO engine streams request entities through a channel, which the multipart entity doesn't support,
+     * so the (small) schema upload is serialized up front.
+     */
+    private CompletableFuture<JsonObject> sendMultipart(String operation, String path, HttpEntity multipart,
+            final String method) {
+        HttpEntityEnclosingRequestBase request = (HttpEntityEnclosingRequestBase) createRequest(operation, path,
+                null);
+        request.addHeader("Accept-Language", "en-US");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            multipart.writeTo(out);
+            ByteArrayEntity entity = new ByteArrayEntity(out.toByteArray());
+            entity.setContentType(multipart.getContentType());
+            request.setEntity(entity);
+        } catch (IOException e) {
+            CompletableFuture<JsonObject> failed = new CompletableFuture<JsonObject>();
+            IoTFCReSTException ex = new IoTFCReSTException("Failure in reading the schema file ::" + e.getMessage());
+            ex.initCause(e);
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return unwrapped(submit(request, method).thenApply(response -> readResponse(response, method)))
+                .thenApply(json -> json.isJsonObject() ? json.getAsJsonObject() : new JsonObject());
+    }
+
+    /*
+     * ***************************************************** Event types
+     */
+
+    public CompletableFuture<JsonObject> getAllEventTypes(List<NameValuePair> parameters) {
+        return sendForObject("get", "/event/types", null, parameters, "getAllEventTypes");
+    }
+
+    public CompletableFuture<JsonObject> getAllEventTypes() {
+        return getAllEventTypes(null);
+    }
+
+    public CompletableFuture<JsonObject> getEventTypeByName(String name) {
+        return getAllEventTypes(byName(name));
+    }
+
+    public CompletableFuture<Boolean> isEventTypeExistByName(String name) {
+        return getEventTypeByName(name).thenApply(json -> !idsByName(json, name).isEmpty());
+    }
+
+    public CompletableFuture<Boolean> deleteEventTypeByName(String name) {
+        return deleteByName(getEventTypeByName(name), name, this::deleteEventType);
+    }
+
+    public CompletableFuture<Boolean> isEventTypeExist(String eventTypeId) {
+        return exists("/event/types/" + eventTypeId, "isEventTypeExist");
+    }
+
+    public CompletableFuture<JsonObject> getEventType(String eventTypeId) {
+        return sendForObject("get", "/event/types/" + eventTypeId, null, null, "getEventType");
+    }
+
+    public CompletableFuture<JsonObject> addEventType(JsonElement eventType) {
+        return sendForObject("post", "/event/types", eventType, null, "addEventType");
+    }
+
+    public CompletableFuture<JsonObject> addEventType(String name, String description, String schemaId) {
+        JsonObject input = new JsonObject();
+        if (name != null) {
+            input.addProperty("name", name);
+        }
+        if (description != null) {
+            input.addProperty("description", description);
+        }
+        if (schemaId != null) {
+            input.addProperty("schemaId", schemaId);
+        }
+        return addEventType(input);
+    }
+
+    public CompletableFuture<JsonObject> updateEventType(String eventTypeId, JsonElement propertiesToBeModified) {
+        return sendForObject("put", "/event/types/" + eventTypeId, propertiesToBeModified, null,
+                "updateEventType");
+    }
+
+    public CompletableFuture<Boolean> deleteEventType(String eventTypeId) {
+        return sendForStatus("delete", "/event/types/" + eventTypeId, "deleteEventType");
+    }
+
+    /*
+     * ***************************************************** Physical interfaces
+     */
+
+    public CompletableFuture<JsonObject> getAllPhysicalInterfaces(List<NameValuePair> parameters) {
+        return sendForObject("get", "/physicalinterfaces", null, parameters, "getAllPhysicalInterfaces");
+    }
+
+    public CompletableFuture<JsonObject> getAllPhysicalInterfaces() {
+        return getAllPhysicalInterfaces(null);
+    }
+
+    public CompletableFuture<JsonObject> getPhysicalInterfaceByName(String name) {
+        return getAllPhysicalInterfaces(byName(name));
+    }
+
+    public CompletableFuture<Boolean> isPhysicalInterfaceExistByName(String name) {
+        return getPhysicalInterfaceByName(name).thenApply(json -> !idsByName(json, name).isEmpty());
+    }
+
+    public CompletableFuture<Boolean> deletePhysicalInterfaceByName(String name) {
+        return deleteByName(getPhysicalInterfaceByName(name), name, this::deletePhysicalInterface);
+    }
+
+    public CompletableFuture<JsonObject> getPhysicalInterface(String physicalInterfaceId) {
+        return sendForObject("get", "/physicalinterfaces/" + physicalInterfaceId, null, null,
+                "getPhysicalInterface");
+    }
+
+    public CompletableFuture<JsonObject> addPhysicalInterface(String name, String description) {
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("name", name);
+        jsonRequest.addProperty("description", description);
+        return sendForObject("post", "/physicalinterfaces", jsonRequest, null, "addPhysicalInterface");
+    }
+
+    public CompletableFuture<JsonObject> updatePhysicalInterface(String physicalInterfaceId,
+            JsonElement propertiesToBeModified) {
+        return sendForObject("put", "/physicalinterfaces/" + physicalInterfaceId, propertiesToBeModified, null,
+                "updatePhysicalInterface");
+    }
+
+    public CompletableFuture<Boolean> deletePhysicalInterface(String physicalInterfaceId) {
+        return sendForStatus("delete", "/physicalinterfaces/" + physicalInterfaceId, "deletePhysicalInterface");
+    }
+
+    public CompletableFuture<JsonObject> addPhysicalInterfaceToDeviceType(String deviceType,
+            String physicalInterfaceId) {
+        JsonObject request = new JsonObject();
+        request.addProperty("physicalInterfaceId", physicalInterfaceId);
+        return sendForObject("put", "/device/types/" + deviceType, request, null,
+                "addPhysicalInterfaceToDeviceType");
+    }
+
+    public CompletableFuture<Boolean> removePhysicalInterfaceFromDeviceType(String deviceType) {
+        return sendForStatus("delete", "/device/types/" + deviceType + "/physicalinterface",
+                "removePhysicalInterfaceFromDeviceType");
+    }
+
+    public CompletableFuture<JsonObject> attachEventId(String physicalInterfaceId, String eventId,
+            String eventTypeId) {
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("eventId", eventId);
+        jsonRequest.addProperty("eventTypeId", eventTypeId);
+        return sendForObject("post", "/physicalinterfaces/" + physicalInterfaceId + "/events", jsonRequest, null,
+                "attachEventId");
+    }
+
+    public CompletableFuture<JsonArray> getEventIds(String physicalInterfaceId) {
+        return sendForArray("get", "/physicalinterfaces/" + physicalInterfaceId + "/events", null, null,
+                "getEventIds");
+    }
+
+    public CompletableFuture<Boolean> isEventIdExist(String physicalInterfaceId, String eventId) {
+        return getEventIds(physicalInterfaceId).thenApply(eventIds -> {
+            for (JsonElement id : eventIds) {
+                if (id.getAsJsonObject().get("eventId").getAsString().equals(eventId)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    public CompletableFuture<Boolean> removeEventId(String physicalInterfaceId, String eventId) {
+        return sendForStatus("delete", "/physicalinterfaces/" + physicalInterfaceId + "/events/" + eventId,
+                "removeEventId");
+    }
+
+    /*
+     * ***************************************************** Application interfaces
+     */
+
+    public CompletableFuture<JsonObject> getAllApplicationInterfaces(List<NameValuePair> parameters) {
+        return sendForObject("get", "/applicationinterfaces", null, parameters, "getAllApplicationInterfaces");
+    }
+
+    public CompletableFuture<JsonObject> getAllApplicationInterfaces() {
+        return getAllApplicationInterfaces(null);
+    }
+
+    public CompletableFuture<JsonObject> getApplicationInterfaceByName(String name) {
+        return getAllApplicationInterfaces(byName(name));
+    }
+
+    public CompletableFuture<Boolean> isApplicationInterfaceExistByName(String name) {
+        return getApplicationInterfaceByName(name).thenApply(json -> !idsByName(json, name).isEmpty());
+    }
+
+    public CompletableFuture<Boolean> deleteApplicationInterfaceByName(String name) {
+        return deleteByName(getApplicationInterfaceByName(name), name, this::deleteApplicationInterface);
+    }
+
+    public CompletableFuture<JsonObject> getApplicationInterface(String applicationInterfaceId) {
+        return sendForObject("get", "/applicationinterfaces/" + applicationInterfaceId, null, null,
+                "getApplicationInterface");
+    }
+
+    public CompletableFuture<JsonObject> addApplicationInterface(String name, String description,
+            String schemaId) {
+        JsonObject jsonRequest = new JsonObject();
+        jsonRequest.addProperty("name", name);
+        jsonRequest.addProperty("description", description);
+        jsonRequest.addProperty("schemaId", schemaId);
+        return sendForObject("post", "/applicationinterfaces", jsonRequest, null, "addApplicationInterface");
+    }
+
+    public CompletableFuture<JsonObject> updateApplicationInterface(String applicationInterfaceId,
+            JsonElement propertiesToBeModified) {
+        return sendForObject("put", "/applicationinterfaces/" + applicationInterfaceId, propertiesToBeModified,
+                null, "updateApplicationInterface");
+    }
+
+    public CompletableFuture<Boolean> deleteApplicationInterface(String applicationInterfaceId) {
+        return sendForStatus("delete", "/applicationinterfaces/" + applicationInterfaceId,
+                "deleteApplicationInterface");
+    }
+
+    public CompletableFuture<JsonArray> getDeviceTypeApplicationInterfaces(String deviceType) {
+        return sendForArray("get", "/device/types/" + deviceType + "/applicationinterfaces", null, null,
+                "getDeviceTypeApplicationInterfaces");
+    }
+
+    public CompletableFuture<JsonObject> attachApplicationInterface(String deviceType,
+            JsonObject applicationInterface) {
+        return sendForObject("post", "/device/types/" + deviceType + "/applicationinterfaces",
+                applicationInterface, null, "attachApplicationInterface");
+    }
+
+    public CompletableFuture<Boolean> removeApplicationInterface(String deviceType, String applicationInterfaceId) {
+        return sendForStatus("delete",
+                "/device/types/" + deviceType + "/applicationinterfaces/" + applicationInterfaceId,
+                "removeApplicationInterface");
+    }
+}
@@ -0,0 +1,152 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the command handlers of the attached devices on a fixed set of worker threads.
+ *
+ * The tasks are sharded by device key, so the commands of one device are processed one at a time and in arrival
+ * order, while the commands of different devices are processed in parallel. A slow device only holds up the
+ * devices sharing its worker. The commands for the gateway itself have a lane of their own.
+ *
+ * Every lane has a bounded queue, the overflow policy decides what happens when it is full. Once stopped, new
+ * tasks are discarded and counted as dropped, and a caller blocked on a full queue is released.
+ */
+public class CommandDispatcher {
+
+    public enum OverflowPolicy {
+        /** Wait for room in the queue, slowing down the caller (the MQTT client) */
+        BLOCK,
+        /** Discard the new command */
+        DROP_NEWEST,
+        /** Discard the oldest queued command of the lane to make room */
+        DROP_OLDEST
+    }
+
+    private final OverflowPolicy overflowPolicy;
+    private final Lane[] workers;
+    private final Lane gatewayLane;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean stopped;
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private final Thread thread;
+
+        Lane(String name, int capacity) {
+            queue = new ArrayBlockingQueue<Runnable>(capacity);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void submit(Runnable task) throws InterruptedException {
+            if (stopped) {
+                dropped.incrementAndGet();
+                return;
+            }
+            switch (overflowPolicy) {
+                case BLOCK:
+                    // wait in slices, so stop() releases the caller
+                    while (!queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                        if (stopped) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                    }
+                    break;
+                case DROP_NEWEST:
+                    if (!queue.offer(task)) {
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(task)) {
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // A failing device must not take down the other devices of this lane
+                    System.err.println("Command processing failed in " + thread.getName() + " :: " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param workerCount number of worker threads for the attached devices
+     * @param queueCapacity capacity of the queue of every worker and of the gateway lane
+     * @param overflowPolicy what to do with a command when its queue is full
+     */
+    public CommandDispatcher(int workerCount, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Lane[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Lane("command-worker-" + i, Math.max(1, queueCapacity));
+        }
+        this.gatewayLane = new Lane("command-gateway", Math.max(1, queueCapacity));
+    }
+
+    public void start() {
+        for (Lane worker : workers) {
+            worker.thread.start();
+        }
+        gatewayLane.thread.start();
+    }
+
+    /**
+     * Stops the workers, commands still queued or dispatched from now on are discarded
+     */
+    public void stop() {
+        stopped = true;
+        for (Lane worker : workers) {
+            worker.thread.interrupt();
+            worker.queue.clear();
+        }
+        gatewayLane.thread.interrupt();
+        gatewayLane.queue.clear();
+    }
+
+    /**
+     * Queues the task on the worker owning the device key
+     */
+    public void dispatch(String deviceKey, Runnable task) throws InterruptedException {
+        int hash = deviceKey.hashCode();
+        // spread the bits, keys of the same type and organization only differ at the end
+        hash ^= (hash >>> 16);
+        workers[(hash & Integer.MAX_VALUE) % workers.length].submit(task);
+    }
+
+    /**
+     * Queues the task on the gateway lane
+     */
+    public void dispatchGateway(Runnable task) throws InterruptedException {
+        gatewayLane.submit(task);
+    }
+
+    /**
+     * @return number of commands discarded because of a full queue
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
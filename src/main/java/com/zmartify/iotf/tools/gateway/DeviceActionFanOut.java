@@ -0,0 +1,478 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults;
+import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
+import com.zmartify.iotf.tools.gateway.home.Device;
+
+/**
+ * Fans a device management action out to many attached devices and collects the results.
+ *
+ * A bulk action is sent to Watson IoT Platform as one DM request per device type, split into requests of at most
+ * <code>maxDevicesPerRequest</code> devices, instead of one request per device. At most <code>parallelism</code>
+ * requests are sent at the same time.
+ *
+ * The platform still delivers the action to every device, and every device confirms it with a manage request of
+ * its own. These completions are queued and sent by a flusher, grouped by action and device type, at most
+ * <code>maxPerFlush</code> per interval on <code>parallelism</code> threads, and reported with one line per group
+ * and flush instead of one per device.
+ *
+ * {@link #reconcile} reads the device statuses of the requests of a bulk action from the platform, and sends the
+ * completion again for the devices that completed locally but are still in progress there. Only the completions of
+ * the devices of a bulk action are kept for this, until the platform reports the device complete.
+ *
+ * Only the device actions (reboot, factory reset) are fanned out, as their completions are manage requests sent
+ * through {@link #complete}. Firmware downloads and updates report their status through the firmware handler of
+ * the device, which can neither be batched nor sent again here; they are rolled out by the
+ * {@link FirmwareRolloutOrchestrator}.
+ */
+public class DeviceActionFanOut {
+
+    public static final String ACTION_REBOOT = "device/reboot";
+    public static final String ACTION_FACTORY_RESET = "device/factoryReset";
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_DEVICES_PER_REQUEST = 500;
+    public static final long DEFAULT_FLUSH_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PER_FLUSH = 200;
+
+    private static final int STATUS_SUCCESS = 0;
+
+    private final ZmartifyAPIClient apiClient;
+    private final DeviceRegistry registry;
+    private final int maxDevicesPerRequest;
+    private final long flushMillis;
+    private final int maxPerFlush;
+    private final ExecutorService executor;
+    private final Thread flusher;
+    private final Queue<Completion> pending = new ConcurrentLinkedQueue<Completion>();
+    // action and device of the devices of the bulk actions, until the platform reports them complete
+    private final Set<String> targets = ConcurrentHashMap.newKeySet();
+    // completions sent for the targets, by action and device, until the platform reports them complete
+    private final ConcurrentMap<String, Completion> completed = new ConcurrentHashMap<String, Completion>();
+
+    private volatile boolean running;
+
+    private static final class Completion {
+        private final String action;
+        private final Device device;
+        private final BooleanSupplier task;
+
+        Completion(String action, Device device, BooleanSupplier task) {
+            this.action = action;
+            this.device = device;
+            this.task = task;
+        }
+
+        String key() {
+            return DeviceActionFanOut.key(action, device.getDeviceType(), device.getDeviceId());
+        }
+    }
+
+    /**
+     * The DM requests of a bulk action
+     */
+    public static final class BulkRequest {
+        private final String action;
+        private final List<String> requestIds;
+        private final Map<String, Integer> devicesByType;
+        private final int failed;
+
+        BulkRequest(String action, List<String> requestIds, Map<String, Integer> devicesByType, int failed) {
+            this.action = action;
+            this.requestIds = Collections.unmodifiableList(requestIds);
+            this.devicesByType = Collections.unmodifiableMap(devicesByType);
+            this.failed = failed;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public List<String> getRequestIds() {
+            return requestIds;
+        }
+
+        /**
+         * @return number of targeted devices per device type
+         */
+        public Map<String, Integer> getDevicesByType() {
+            return devicesByType;
+        }
+
+        /**
+         * @return number of devices whose request could not be initiated
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return action + " for " + devicesByType + " in " + requestIds.size() + " requests"
+                    + (failed > 0 ? ", " + failed + " devices failed" : "");
+        }
+    }
+
+    /**
+     * The device statuses of a bulk action
+     */
+    public static final class Summary {
+        private final int succeeded;
+        private final int failed;
+        private final int inProgress;
+        private final int resent;
+
+        Summary(int succeeded, int failed, int inProgress, int resent) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.inProgress = inProgress;
+            this.resent = resent;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getInProgress() {
+            return inProgress;
+        }
+
+        /**
+         * @return number of devices in progress whose local completion was sent again
+         */
+        public int getResent() {
+            return resent;
+        }
+
+        public boolean isComplete() {
+            return inProgress == 0;
+        }
+
+        @Override
+        public String toString() {
+            return succeeded + " succeeded, " + failed + " failed, " + inProgress + " in progress (" + resent
+                    + " completions sent again)";
+        }
+    }
+
+    public DeviceActionFanOut(ZmartifyAPIClient apiClient, DeviceRegistry registry) {
+        this(apiClient, registry, DEFAULT_PARALLELISM, DEFAULT_MAX_DEVICES_PER_REQUEST, DEFAULT_FLUSH_MILLIS,
+                TimeUnit.MILLISECONDS, DEFAULT_MAX_PER_FLUSH);
+    }
+
+    /**
+     * @param parallelism number of DM requests or completion groups sent at the same time
+     * @param maxDevicesPerRequest maximum number of devices of a DM request
+     * @param flushInterval interval between two deliveries of completions
+     * @param maxPerFlush maximum number of completions delivered per interval
+     */
+    public DeviceActionFanOut(ZmartifyAPIClient apiClient, DeviceRegistry registry, int parallelism,
+            int maxDevicesPerRequest, long flushInterval, TimeUnit unit, int maxPerFlush) {
+        this.apiClient = apiClient;
+        this.registry = registry;
+        this.maxDevicesPerRequest = Math.max(1, maxDevicesPerRequest);
+        this.flushMillis = Math.max(1, unit.toMillis(flushInterval));
+        this.maxPerFlush = Math.max(1, maxPerFlush);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "device-action-fanout-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.flusher = new Thread(this::run, "device-action-completions");
+        this.flusher.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        flusher.start();
+    }
+
+    /**
+     * Stops after delivering the pending completions
+     */
+    public void stop() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (!pending.isEmpty()) {
+            flush(Integer.MAX_VALUE);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Initiates the action for the devices, with one DM request per device type and at most
+     * maxDevicesPerRequest devices
+     *
+     * @param action {@link #ACTION_REBOOT} or {@link #ACTION_FACTORY_RESET}
+     * @param parameters parameters of the action, may be null
+     * @throws IllegalArgumentException for other actions
+     */
+    public BulkRequest initiate(String action, JsonArray parameters, Collection<Device> devices) {
+        if (!ACTION_REBOOT.equals(action) && !ACTION_FACTORY_RESET.equals(action)) {
+            throw new IllegalArgumentException("Unsupported bulk action " + action);
+        }
+        Map<String, List<Device>> devicesByType = new LinkedHashMap<String, List<Device>>();
+        for (Device device : devices) {
+            devicesByType.computeIfAbsent(device.getDeviceType(), t -> new ArrayList<Device>()).add(device);
+        }
+
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        List<Future<String>> requests = new ArrayList<Future<String>>();
+        List<List<Device>> chunks = new ArrayList<List<Device>>();
+        for (Map.Entry<String, List<Device>> entry : devicesByType.entrySet()) {
+            List<Device> ofType = entry.getValue();
+            counts.put(entry.getKey(), ofType.size());
+            for (int from = 0; from < ofType.size(); from += maxDevicesPerRequest) {
+                List<Device> chunk = ofType.subList(from, Math.min(ofType.size(), from + maxDevicesPerRequest));
+                JsonObject request = createRequest(action, parameters, entry.getKey(), chunk);
+                // before the request, the first devices may complete before it returns
+                setTargets(action, chunk, true);
+                requests.add(executor.submit(() -> initiate(request)));
+                chunks.add(chunk);
+            }
+        }
+
+        List<String> requestIds = new ArrayList<String>();
+        int failed = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            List<Device> chunk = chunks.get(i);
+            try {
+                String requestId = requests.get(i).get();
+                if (requestId != null) {
+                    requestIds.add(requestId);
+                } else {
+                    setTargets(action, chunk, false);
+                }
+            } catch (ExecutionException e) {
+                System.err.println("Failed to initiate " + action + " for " + chunk.size() + " devices :: "
+                        + e.getCause());
+                setTargets(action, chunk, false);
+                failed += chunk.size();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                setTargets(action, chunk, false);
+                failed += chunk.size();
+            }
+        }
+        BulkRequest bulkRequest = new BulkRequest(action, requestIds, counts, failed);
+        System.out.println("Initiated " + bulkRequest);
+        return bulkRequest;
+    }
+
+    /**
+     * Initiates the action for all attached devices having the capability, e.g. DEVICE_ACTION for a reboot
+     */
+    public BulkRequest initiate(String action, JsonArray parameters, DeviceRegistry.Capability capability) {
+        return initiate(action, parameters, registry.getDevices(capability));
+    }
+
+    private void setTargets(String action, List<Device> devices, boolean target) {
+        for (Device device : devices) {
+            String key = key(action, device.getDeviceType(), device.getDeviceId());
+            if (target) {
+                targets.add(key);
+            } else {
+                targets.remove(key);
+                completed.remove(key);
+            }
+        }
+    }
+
+    private static JsonObject createRequest(String action, JsonArray parameters, String typeId,
+            List<Device> devices) {
+        JsonObject request = new JsonObject();
+        request.addProperty("action", action);
+        if (parameters != null) {
+            request.add("parameters", parameters);
+        }
+        JsonArray targets = new JsonArray();
+        for (Device device : devices) {
+            JsonObject target = new JsonObject();
+            target.addProperty("typeId", typeId);
+            target.addProperty("deviceId", device.getDeviceId());
+            targets.add(target);
+        }
+        request.add("devices", targets);
+        return request;
+    }
+
+    private String initiate(JsonObject request) throws IoTFCReSTException {
+        JsonObject response = apiClient.initiateDMRequest(request);
+        JsonElement requestId = response == null ? null : response.get("reqId");
+        return requestId == null || requestId.isJsonNull() ? null : requestId.getAsString();
+    }
+
+    /**
+     * Queues the completion of an action of a device, e.g. the manage request ending a reboot, for the next
+     * flush
+     *
+     * @param task sends the completion, returns false if it could not be sent
+     */
+    public void complete(String action, Device device, BooleanSupplier task) {
+        Completion completion = new Completion(action, device, task);
+        if (running) {
+            pending.add(completion);
+        } else {
+            run(Collections.singletonList(completion));
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            flush(maxPerFlush);
+        }
+    }
+
+    private void flush(int max) {
+        Map<String, List<Completion>> groups = new LinkedHashMap<String, List<Completion>>();
+        Completion completion;
+        for (int i = 0; i < max && (completion = pending.poll()) != null; i++) {
+            String group = completion.action + " of " + completion.device.getDeviceType();
+            groups.computeIfAbsent(group, g -> new ArrayList<Completion>()).add(completion);
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (List<Completion> group : groups.values()) {
+            tasks.add(() -> run(group));
+        }
+        try {
+            List<Future<Integer>> results = executor.invokeAll(tasks);
+            int i = 0;
+            for (Map.Entry<String, List<Completion>> group : groups.entrySet()) {
+                int sent = results.get(i++).get();
+                System.out.println("Completed " + group.getKey() + " for " + sent + " devices"
+                        + (sent < group.getValue().size() ? ", " + (group.getValue().size() - sent) + " failed"
+                                : ""));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException e) {
+            // stopped
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of completions sent
+     */
+    private int run(List<Completion> completions) {
+        int sent = 0;
+        for (Completion completion : completions) {
+            try {
+                boolean success = completion.task.getAsBoolean();
+                String key = completion.key();
+                if (targets.contains(key)) {
+                    // sent again by reconcile if the platform didn't get it
+                    completed.put(key, completion);
+                }
+                if (success) {
+                    sent++;
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Completion of " + completion.key() + " failed :: " + e);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Reads the device statuses of the requests of the bulk action from the platform. The completion of a device
+     * still in progress there is queued again if it was sent already.
+     *
+     * @throws IoTFCReSTException if a status could not be read
+     */
+    public Summary reconcile(BulkRequest request) throws IoTFCReSTException {
+        int succeeded = 0;
+        int failed = 0;
+        int inProgress = 0;
+        int resent = 0;
+        for (String requestId : request.getRequestIds()) {
+            try {
+                for (JsonObject status : apiClient.getDeviceManagementRequestStatusPaged(requestId)) {
+                    String key = key(request.getAction(), getString(status, "typeId"),
+                            getString(status, "deviceId"));
+                    JsonElement complete = status.get("complete");
+                    if (complete != null && !complete.isJsonNull() && complete.getAsBoolean()) {
+                        targets.remove(key);
+                        completed.remove(key);
+                        JsonElement code = status.get("status");
+                        if (code != null && !code.isJsonNull() && code.getAsInt() == STATUS_SUCCESS) {
+                            succeeded++;
+                        } else {
+                            failed++;
+                        }
+                    } else {
+                        inProgress++;
+                        Completion completion = completed.remove(key);
+                        if (completion != null) {
+                            pending.add(completion);
+                            resent++;
+                        }
+                    }
+                }
+            } catch (PagedResults.PageException e) {
+                throw e.getCause();
+            }
+        }
+        Summary summary = new Summary(succeeded, failed, inProgress, resent);
+        System.out.println(request.getAction() + " " + summary);
+        return summary;
+    }
+
+    private static String getString(JsonObject object, String member) {
+        JsonElement value = object.get(member);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    private static String key(String action, String typeId, String deviceId) {
+        return action + ':' + typeId + ':' + deviceId;
+    }
+
+    /**
+     * @return number of completions waiting for the next flush
+     */
+    public int getPending() {
+        return pending.size();
+    }
+}
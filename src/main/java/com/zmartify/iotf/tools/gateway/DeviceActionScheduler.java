@@ -0,0 +1,231 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the device management actions (reboot, factory reset) of the gateway and the attached devices.
+ *
+ * An action runs in steps. A step returns the time until the next step, which is scheduled on a timer instead of
+ * a worker thread sleeping, so rebooting 1000 devices that each need a couple of seconds to come back occupies the
+ * workers only while the steps actually run.
+ *
+ * The actions of the gateway itself have a lane of their own that the workers always serve first, a storm of
+ * device actions never delays them. Continuing steps go ahead of new actions in their lane, so started actions
+ * finish first. Every lane holds at most <code>capacity</code> actions in flight, queued or waiting for their next
+ * step; more actions are rejected.
+ *
+ * An action is identified by a key, like the action name and the device. An action submitted while one with the
+ * same key is in flight is a duplicate and is not run again, the action in flight completes both.
+ */
+public class DeviceActionScheduler {
+
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_CAPACITY = 5000;
+
+    public enum Priority {
+        /** Actions of the gateway itself */
+        GATEWAY,
+        /** Actions of the attached devices */
+        DEVICE
+    }
+
+    public enum Outcome {
+        /** The action will run */
+        QUEUED,
+        /** An action with the same key is in flight */
+        DUPLICATE,
+        /** The lane holds <code>capacity</code> actions already */
+        REJECTED
+    }
+
+    /**
+     * A device management action
+     */
+    public interface Action {
+        /**
+         * Runs the next step of the action on a worker thread
+         *
+         * @return the delay in milliseconds before the next step, negative when the action is done
+         */
+        long step() throws Exception;
+    }
+
+    private final int capacity;
+    private final Thread[] workers;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    // all fields below guarded by this
+    private final Deque<Entry> gatewayLane = new ArrayDeque<Entry>();
+    private final Deque<Entry> deviceLane = new ArrayDeque<Entry>();
+    private final Set<String> gatewayKeys = new HashSet<String>();
+    private final Set<String> deviceKeys = new HashSet<String>();
+    private boolean running;
+
+    private static final class Entry {
+        private final Priority priority;
+        private final String key;
+        private final Action action;
+
+        Entry(Priority priority, String key, Action action) {
+            this.priority = priority;
+            this.key = key;
+            this.action = action;
+        }
+    }
+
+    public DeviceActionScheduler() {
+        this(DEFAULT_WORKERS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param workerCount number of threads running the steps of the actions
+     * @param capacity maximum number of actions in flight per lane
+     */
+    public DeviceActionScheduler(int workerCount, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.workers = new Thread[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::run, "device-action-" + i);
+            workers[i].setDaemon(true);
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "device-action-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void start() {
+        running = true;
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers, queued actions and actions waiting for their next step are abandoned
+     */
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        timer.shutdownNow();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queues a new action
+     *
+     * @param key identity of the action, e.g. the action name with the device type and id
+     */
+    public synchronized Outcome submit(Priority priority, String key, Action action) {
+        Set<String> keys = keys(priority);
+        if (keys.contains(key)) {
+            duplicates.incrementAndGet();
+            return Outcome.DUPLICATE;
+        }
+        if (keys.size() >= capacity) {
+            rejected.incrementAndGet();
+            return Outcome.REJECTED;
+        }
+        keys.add(key);
+        lane(priority).add(new Entry(priority, key, action));
+        notify();
+        return Outcome.QUEUED;
+    }
+
+    private Set<String> keys(Priority priority) {
+        return priority == Priority.GATEWAY ? gatewayKeys : deviceKeys;
+    }
+
+    private Deque<Entry> lane(Priority priority) {
+        return priority == Priority.GATEWAY ? gatewayLane : deviceLane;
+    }
+
+    private synchronized void resume(Entry entry) {
+        lane(entry.priority).addFirst(entry);
+        notify();
+    }
+
+    private synchronized void done(Entry entry) {
+        keys(entry.priority).remove(entry.key);
+    }
+
+    private synchronized Entry take() throws InterruptedException {
+        while (running) {
+            Entry entry = gatewayLane.poll();
+            if (entry == null) {
+                entry = deviceLane.poll();
+            }
+            if (entry != null) {
+                return entry;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (entry == null) {
+                break;
+            }
+            long delay = -1;
+            try {
+                delay = entry.action.step();
+            } catch (Exception e) {
+                // A failing device must not take down the actions of the other devices
+                System.err.println("Device action " + entry.key + " failed :: " + e);
+                e.printStackTrace();
+            }
+            if (delay < 0) {
+                done(entry);
+            } else {
+                try {
+                    timer.schedule(() -> resume(entry), delay, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    // stopped
+                    done(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of actions not run because the same action was in flight
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return number of actions rejected because their lane was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of actions in flight of the lane
+     */
+    public synchronized int getInFlight(Priority priority) {
+        return keys(priority).size();
+    }
+}
@@ -0,0 +1,280 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.home.Device;
+import com.zmartify.iotf.tools.gateway.home.Device.DeviceType;
+
+/**
+ * Thread-safe registry of the devices attached to the gateway, shared by the command, firmware and device action
+ * handlers.
+ *
+ * The devices are kept in a two-level map, device type to device id to device. All devices belong to the
+ * organization of the gateway, so the type and id (as delivered with the command or request) identify a device,
+ * and a lookup doesn't need to build a composite key.
+ *
+ * Next to the primary map the registry keeps indexes by device management capability and by gateway, so queries
+ * like "all Lights" or "all devices accepting firmware" cost in proportion to their result rather than to the
+ * number of attached devices. Reads never lock, changes are serialized so the indexes always agree with the
+ * primary map. A registered device reports changes of its capabilities, which moves it between the indexes.
+ */
+public class DeviceRegistry {
+
+    public enum Capability {
+        /** Accepts firmware or device actions */
+        MANAGEABLE,
+        /** Has been made managed in Watson IoT Platform */
+        MANAGED,
+        FIRMWARE_ACTION,
+        DEVICE_ACTION
+    }
+
+    /**
+     * Notified after a device is added, removed or its capabilities changed, on the thread making the change
+     */
+    public interface Listener {
+        void deviceAdded(Device device);
+
+        void deviceRemoved(Device device);
+
+        void deviceUpdated(Device device);
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Device>> devicesByType =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Device>>();
+    private final Map<Capability, Set<Device>> devicesByCapability = new EnumMap<Capability, Set<Device>>(
+            Capability.class);
+    private final ConcurrentMap<String, Set<Device>> devicesByGateway = new ConcurrentHashMap<String, Set<Device>>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Object writeLock = new Object();
+
+    public DeviceRegistry() {
+        for (Capability capability : Capability.values()) {
+            devicesByCapability.put(capability, ConcurrentHashMap.<Device> newKeySet());
+        }
+    }
+
+    /**
+     * Adds the device under its own type and id, replacing a device registered before with the same type and id
+     */
+    public void register(Device device) {
+        register(device.getDeviceType(), device.getDeviceId(), device);
+    }
+
+    public void register(String typeId, String deviceId, Device device) {
+        Device previous;
+        synchronized (writeLock) {
+            ConcurrentMap<String, Device> devices = devicesByType.get(typeId);
+            if (devices == null) {
+                devices = new ConcurrentHashMap<String, Device>();
+                devicesByType.put(typeId, devices);
+            }
+            previous = devices.put(deviceId, device);
+            if (previous != null) {
+                removeFromIndexes(previous);
+            }
+            addToIndexes(device);
+            device.setChangeListener(this::update);
+        }
+        if (previous != null && previous != device) {
+            for (Listener listener : listeners) {
+                listener.deviceRemoved(previous);
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.deviceAdded(device);
+        }
+    }
+
+    public Device unregister(String typeId, String deviceId) {
+        Device device;
+        synchronized (writeLock) {
+            ConcurrentMap<String, Device> devices = devicesByType.get(typeId);
+            device = devices == null ? null : devices.remove(deviceId);
+            if (device == null) {
+                return null;
+            }
+            removeFromIndexes(device);
+            device.setChangeListener(null);
+        }
+        for (Listener listener : listeners) {
+            listener.deviceRemoved(device);
+        }
+        return device;
+    }
+
+    /**
+     * Re-indexes a registered device after its capabilities changed, called by the device itself
+     */
+    public void update(Device device) {
+        synchronized (writeLock) {
+            if (get(device.getDeviceType(), device.getDeviceId()) != device) {
+                return;
+            }
+            removeFromIndexes(device);
+            addToIndexes(device);
+        }
+        for (Listener listener : listeners) {
+            listener.deviceUpdated(device);
+        }
+    }
+
+    private void addToIndexes(Device device) {
+        for (Capability capability : Capability.values()) {
+            if (hasCapability(device, capability)) {
+                devicesByCapability.get(capability).add(device);
+            }
+        }
+        String gatewayKey = getGatewayKey(device.getGwClient());
+        if (gatewayKey != null) {
+            Set<Device> devices = devicesByGateway.get(gatewayKey);
+            if (devices == null) {
+                devices = ConcurrentHashMap.<Device> newKeySet();
+                devicesByGateway.put(gatewayKey, devices);
+            }
+            devices.add(device);
+        }
+    }
+
+    private void removeFromIndexes(Device device) {
+        for (Set<Device> devices : devicesByCapability.values()) {
+            devices.remove(device);
+        }
+        String gatewayKey = getGatewayKey(device.getGwClient());
+        if (gatewayKey != null) {
+            Set<Device> devices = devicesByGateway.get(gatewayKey);
+            if (devices != null) {
+                devices.remove(device);
+            }
+        }
+    }
+
+    private static boolean hasCapability(Device device, Capability capability) {
+        switch (capability) {
+            case MANAGEABLE:
+                return device.isManagable();
+            case MANAGED:
+                return device.isManaged();
+            case FIRMWARE_ACTION:
+                return device.isFirmwareAction();
+            case DEVICE_ACTION:
+                return device.isDeviceAction();
+            default:
+                return false;
+        }
+    }
+
+    private static String getGatewayKey(GatewayClient gateway) {
+        return getGatewayKey(gateway == null ? null : gateway.getGWDeviceType(),
+                gateway == null ? null : gateway.getGWDeviceId());
+    }
+
+    private static String getGatewayKey(String gatewayType, String gatewayId) {
+        if (gatewayType == null || gatewayId == null) {
+            return null;
+        }
+        return gatewayType + ':' + gatewayId;
+    }
+
+    /**
+     * @return the device or null if no device with this type and id is attached
+     */
+    public Device get(String typeId, String deviceId) {
+        if (typeId == null || deviceId == null) {
+            return null;
+        }
+        ConcurrentMap<String, Device> devices = devicesByType.get(typeId);
+        return devices == null ? null : devices.get(deviceId);
+    }
+
+    /**
+     * @return a snapshot of all attached devices
+     */
+    public List<Device> getDevices() {
+        List<Device> all = new ArrayList<Device>();
+        for (ConcurrentMap<String, Device> devices : devicesByType.values()) {
+            all.addAll(devices.values());
+        }
+        return all;
+    }
+
+    /**
+     * @return a snapshot of the attached devices of the given type
+     */
+    public List<Device> getDevices(String typeId) {
+        ConcurrentMap<String, Device> devices = devicesByType.get(typeId);
+        return devices == null ? Collections.<Device> emptyList() : new ArrayList<Device>(devices.values());
+    }
+
+    public List<Device> getDevices(DeviceType deviceType) {
+        return getDevices(deviceType.getDeviceType());
+    }
+
+    /**
+     * @return a snapshot of the attached devices having the capability
+     */
+    public List<Device> getDevices(Capability capability) {
+        return new ArrayList<Device>(devicesByCapability.get(capability));
+    }
+
+    /**
+     * @return a snapshot of the devices of the given type having the capability
+     */
+    public List<Device> getDevices(String typeId, Capability capability) {
+        ConcurrentMap<String, Device> ofType = devicesByType.get(typeId);
+        Set<Device> withCapability = devicesByCapability.get(capability);
+        List<Device> devices = new ArrayList<Device>();
+        if (ofType == null) {
+            return devices;
+        }
+        // iterate the smaller of the two
+        if (ofType.size() <= withCapability.size()) {
+            for (Device device : ofType.values()) {
+                if (withCapability.contains(device)) {
+                    devices.add(device);
+                }
+            }
+        } else {
+            for (Device device : withCapability) {
+                if (typeId.equals(device.getDeviceType())) {
+                    devices.add(device);
+                }
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * @return a snapshot of the devices attached through the given gateway
+     */
+    public List<Device> getDevicesOfGateway(String gatewayType, String gatewayId) {
+        String gatewayKey = getGatewayKey(gatewayType, gatewayId);
+        Set<Device> devices = gatewayKey == null ? null : devicesByGateway.get(gatewayKey);
+        return devices == null ? Collections.<Device> emptyList() : new ArrayList<Device>(devices);
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentMap<String, Device> devices : devicesByType.values()) {
+            size += devices.size();
+        }
+        return size;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,171 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.ibm.iotf.devicemgmt.LogSeverity;
+import com.ibm.iotf.devicemgmt.gateway.ManagedGateway;
+
+/**
+ * Bounded buffer of the diagnostic logs and error codes of a device (or of the gateway itself) waiting to be
+ * added to Watson IoT Platform.
+ *
+ * The entries are kept in a ring in the order they were added. When the ring is full the oldest entry is dropped,
+ * so a device that is never managed, or a platform that is not reachable, costs a fixed amount of memory.
+ *
+ * Progress logs are coalesced: a progress log replaces the pending progress log with the same key in place, so a
+ * firmware download reporting every percent adds a single entry carrying the latest progress.
+ */
+public class DiagnosticsBuffer {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final Entry[] ring;
+    private int head;
+    private int size;
+    private long dropped;
+    private long coalesced;
+
+    /**
+     * A diagnostic log or an error code
+     */
+    public static final class Entry {
+        private final LogSeverity severity;
+        private final String data;
+        private final boolean isErrorCode;
+        private final int errorCode;
+        private final String progressKey;
+        private String message;
+        private Date date;
+
+        private Entry(LogSeverity severity, String message, String data, Date date, boolean isErrorCode,
+                int errorCode, String progressKey) {
+            this.severity = severity;
+            this.message = message;
+            this.data = data;
+            this.date = date;
+            this.isErrorCode = isErrorCode;
+            this.errorCode = errorCode;
+            this.progressKey = progressKey;
+        }
+
+        public static Entry log(LogSeverity severity, String message, String data, Date date) {
+            return new Entry(severity, message, data, date, false, 0, null);
+        }
+
+        /**
+         * A progress log, replacing the pending progress log with the same key
+         */
+        public static Entry progress(String key, String message, Date date) {
+            return new Entry(LogSeverity.informational, message, null, date, false, 0, key);
+        }
+
+        public static Entry errorCode(int errorCode) {
+            return new Entry(null, null, null, null, true, errorCode, null);
+        }
+
+        public boolean isErrorCode() {
+            return isErrorCode;
+        }
+
+        /**
+         * Adds the entry to the device in Watson IoT Platform, to the gateway itself if the device type is null
+         *
+         * @return the response code
+         */
+        int send(ManagedGateway gateway, String typeId, String deviceId) {
+            if (isErrorCode()) {
+                return typeId == null ? gateway.addGatewayErrorCode(errorCode)
+                        : gateway.addDeviceErrorCode(typeId, deviceId, errorCode);
+            }
+            return typeId == null ? gateway.addGatewayLog(message, date, severity)
+                    : gateway.addDeviceLog(typeId, deviceId, message, date, severity);
+        }
+
+        @Override
+        public String toString() {
+            return isErrorCode() ? "errorCode " + errorCode : message;
+        }
+    }
+
+    public DiagnosticsBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DiagnosticsBuffer(int capacity) {
+        this.ring = new Entry[Math.max(1, capacity)];
+    }
+
+    public synchronized void add(Entry entry) {
+        if (entry.progressKey != null) {
+            for (int i = 0; i < size; i++) {
+                Entry pending = ring[(head + i) % ring.length];
+                if (entry.progressKey.equals(pending.progressKey)) {
+                    pending.message = entry.message;
+                    pending.date = entry.date;
+                    coalesced++;
+                    return;
+                }
+            }
+        }
+        if (size == ring.length) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            dropped++;
+        }
+        ring[(head + size) % ring.length] = entry;
+        size++;
+    }
+
+    /**
+     * Removes up to max of the oldest entries
+     */
+    public synchronized List<Entry> poll(int max) {
+        int count = Math.min(max, size);
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        size -= count;
+        return entries;
+    }
+
+    /**
+     * Sends up to max of the oldest entries to Watson IoT Platform
+     *
+     * @param typeId type of the device, null for the gateway itself
+     * @return number of entries sent
+     */
+    public int deliver(ManagedGateway gateway, String typeId, String deviceId, int max) {
+        List<Entry> entries = poll(max);
+        for (Entry entry : entries) {
+            int rc = entry.send(gateway, typeId, deviceId);
+            if (rc != 200) {
+                System.err.println("Error in adding " + entry + " :: " + rc);
+            }
+        }
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return number of entries dropped because the buffer was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of progress logs merged into a pending one
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+}
@@ -0,0 +1,153 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.ibm.iotf.devicemgmt.LogSeverity;
+import com.ibm.iotf.devicemgmt.gateway.ManagedGateway;
+import com.zmartify.iotf.tools.gateway.home.Device;
+
+/**
+ * Delivers the diagnostic logs and error codes of the gateway and the attached devices to Watson IoT Platform in
+ * the background.
+ *
+ * The devices add their entries to their own {@link DiagnosticsBuffer} and return immediately. Every flush
+ * interval a single thread sends the pending entries of the managed devices, at most <code>maxPerFlush</code>
+ * entries of a device per interval, so a fleet-wide firmware rollout logging progress on every device produces a
+ * predictable number of DM requests. Entries of a device that is not managed yet stay in its buffer until it is.
+ *
+ * As a DeviceRegistry listener the pipeline attaches itself to every registered device.
+ */
+public class DiagnosticsPipeline implements DeviceRegistry.Listener {
+
+    public static final long DEFAULT_FLUSH_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PER_FLUSH = 5;
+
+    private final ManagedGateway gateway;
+    private final long flushMillis;
+    private final int maxPerFlush;
+    private final DiagnosticsBuffer gatewayDiagnostics = new DiagnosticsBuffer();
+    // devices with entries to deliver
+    private final Set<Device> pending = ConcurrentHashMap.<Device> newKeySet();
+    private final Thread flusher;
+
+    private volatile boolean running;
+
+    public DiagnosticsPipeline(ManagedGateway gateway) {
+        this(gateway, DEFAULT_FLUSH_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_PER_FLUSH);
+    }
+
+    /**
+     * @param flushInterval interval between two deliveries
+     * @param maxPerFlush maximum number of entries of the gateway or a device delivered per interval
+     */
+    public DiagnosticsPipeline(ManagedGateway gateway, long flushInterval, TimeUnit unit, int maxPerFlush) {
+        this.gateway = gateway;
+        this.flushMillis = Math.max(1, unit.toMillis(flushInterval));
+        this.maxPerFlush = Math.max(1, maxPerFlush);
+        this.flusher = new Thread(this::run, "diagnostics");
+        this.flusher.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        flusher.start();
+    }
+
+    /**
+     * Stops after delivering the pending entries of the gateway and the managed devices
+     */
+    public void stop() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Queues a log of the gateway itself
+     */
+    public void addGatewayLog(LogSeverity severity, String message, Date date) {
+        gatewayDiagnostics.add(DiagnosticsBuffer.Entry.log(severity, message, null, date));
+    }
+
+    /**
+     * Queues a progress log of the gateway itself, replacing the pending progress log with the same key
+     */
+    public void addGatewayProgress(String key, String message, Date date) {
+        gatewayDiagnostics.add(DiagnosticsBuffer.Entry.progress(key, message, date));
+    }
+
+    /**
+     * Delivers the entries of the device with the next flush, called by the device when it has entries and is
+     * managed
+     */
+    public void schedule(Device device) {
+        pending.add(device);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            flush(maxPerFlush);
+        }
+    }
+
+    private void flush(int max) {
+        try {
+            gatewayDiagnostics.deliver(gateway, null, null, max);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        for (Iterator<Device> it = pending.iterator(); it.hasNext();) {
+            Device device = it.next();
+            if (!device.isManaged()) {
+                // scheduled again once it is managed
+                it.remove();
+                continue;
+            }
+            DiagnosticsBuffer diagnostics = device.getDiagnostics();
+            try {
+                diagnostics.deliver(gateway, device.getDeviceType(), device.getDeviceId(), max);
+            } catch (RuntimeException e) {
+                System.err.println("Delivery of diagnostics of device " + device.getDeviceId() + " failed :: " + e);
+            }
+            if (diagnostics.isEmpty()) {
+                it.remove();
+                // an entry may have been added before the device was removed
+                if (!diagnostics.isEmpty()) {
+                    pending.add(device);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deviceAdded(Device device) {
+        device.setDiagnosticsPipeline(this);
+    }
+
+    @Override
+    public void deviceRemoved(Device device) {
+        device.setDiagnosticsPipeline(null);
+        pending.remove(device);
+    }
+
+    @Override
+    public void deviceUpdated(Device device) {
+        if (device.isManaged() && !device.getDiagnostics().isEmpty()) {
+            schedule(device);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Precompiled encoder of a fixed-shape device event, writing the payload straight into a reusable byte buffer
+ * instead of building a JsonObject tree and a String for every event.
+ *
+ * The field names are encoded once when the encoder is created, an event is written by passing the values in
+ * the same order:
+ *
+ * <pre>
+ * byte[] payload = encoder.begin().value(brightness).value(status).toBytes();
+ * </pre>
+ *
+ * Every thread writes into a buffer of its own per format, shared by all encoders of that format, so an encoder
+ * can be shared, but a thread must finish an event (toBytes) before beginning the next one with any encoder.
+ *
+ * The JSON encoding produces <code>{"d":{...}}</code>, the envelope the gateway client uses for JSON events. The
+ * CBOR encoding (RFC 7049) produces the map of the fields only.
+ */
+public abstract class EventEncoder {
+
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_CBOR = "cbor";
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // the encoded field names, written in front of the values
+    protected final byte[][] names;
+
+    /**
+     * Writes the values of one event, in the order of the field names of the encoder
+     */
+    public abstract static class Writer {
+        protected byte[] buffer = new byte[INITIAL_CAPACITY];
+        protected int length;
+        protected int field;
+        protected byte[][] names;
+
+        public abstract Writer value(int value);
+
+        public abstract Writer value(long value);
+
+        public abstract Writer value(double value);
+
+        public abstract Writer value(boolean value);
+
+        public abstract Writer value(String value);
+
+        /**
+         * @return a copy of the encoded event, which stays valid after the next event is written
+         */
+        public abstract byte[] toBytes();
+
+        protected final void ensureCapacity(int additional) {
+            if (length + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+            }
+        }
+
+        protected final void write(int b) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) b;
+        }
+
+        protected final void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        protected final void name() {
+            write(names[field++]);
+        }
+    }
+
+    protected EventEncoder(byte[][] names) {
+        this.names = names;
+    }
+
+    /**
+     * @param format {@link #FORMAT_JSON} or {@link #FORMAT_CBOR}
+     * @param fieldNames names of the fields of the event
+     */
+    public static EventEncoder create(String format, String... fieldNames) {
+        if (FORMAT_CBOR.equalsIgnoreCase(format)) {
+            return new CborEncoder(fieldNames);
+        } else if (format == null || FORMAT_JSON.equalsIgnoreCase(format)) {
+            return new JsonEncoder(fieldNames);
+        }
+        throw new IllegalArgumentException("Unsupported event format " + format);
+    }
+
+    /**
+     * @return the format to publish the events with
+     */
+    public abstract String getFormat();
+
+    /**
+     * @return the writer of the calling thread for the format
+     */
+    protected abstract Writer writer();
+
+    /**
+     * Starts a new event in the buffer of the calling thread
+     */
+    public Writer begin() {
+        Writer writer = writer();
+        writer.names = names;
+        writer.length = 0;
+        writer.field = 0;
+        start(writer);
+        return writer;
+    }
+
+    protected abstract void start(Writer writer);
+
+    /**
+     * Writes the event as JSON text directly in UTF-8
+     */
+    private static final class JsonEncoder extends EventEncoder {
+        private static final byte[] PREFIX = "{\"d\":{".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] SUFFIX = "}}".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+        private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+
+        JsonEncoder(String[] fieldNames) {
+            super(encodeNames(fieldNames));
+        }
+
+        /**
+         * @return "name": of every field, with the separating comma for all but the first
+         */
+        private static byte[][] encodeNames(String[] fieldNames) {
+            byte[][] names = new byte[fieldNames.length][];
+            for (int i = 0; i < fieldNames.length; i++) {
+                JsonWriter writer = new JsonWriter();
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.string(fieldNames[i]);
+                writer.write(':');
+                names[i] = Arrays.copyOf(writer.buffer, writer.length);
+            }
+            return names;
+        }
+
+        @Override
+        public String getFormat() {
+            return FORMAT_JSON;
+        }
+
+        @Override
+        protected Writer writer() {
+            return WRITERS.get();
+        }
+
+        @Override
+        protected void start(Writer writer) {
+            writer.write(PREFIX);
+        }
+
+        private static final class JsonWriter extends Writer {
+
+            @Override
+            public Writer value(int value) {
+                return value((long) value);
+            }
+
+            @Override
+            public Writer value(long value) {
+                name();
+                if (value == Long.MIN_VALUE) {
+                    write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                    return this;
+                }
+                if (value < 0) {
+                    write('-');
+                    value = -value;
+                }
+                ensureCapacity(19);
+                int start = length;
+                do {
+                    buffer[length++] = (byte) ('0' + (value % 10));
+                    value /= 10;
+                } while (value != 0);
+                // digits were written least significant first
+                for (int i = start, j = length - 1; i < j; i++, j--) {
+                    byte b = buffer[i];
+                    buffer[i] = buffer[j];
+                    buffer[j] = b;
+                }
+                return this;
+            }
+
+            @Override
+            public Writer value(double value) {
+                name();
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    write(NULL);
+                } else if (value == (long) value && Math.abs(value) < 1e15) {
+                    field--;
+                    return value((long) value);
+                } else {
+                    write(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+                }
+                return this;
+            }
+
+            @Override
+            public Writer value(boolean value) {
+                name();
+                write(value ? TRUE : FALSE);
+                return this;
+            }
+
+            @Override
+            public Writer value(String value) {
+                name();
+                if (value == null) {
+                    write(NULL);
+                } else {
+                    string(value);
+                }
+                return this;
+            }
+
+            void string(String value) {
+                write('"');
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        write('\\');
+                        write(c);
+                    } else if (c < 0x20) {
+                        write('\\');
+                        write('u');
+                        write('0');
+                        write('0');
+                        write(HEX[c >> 4]);
+                        write(HEX[c & 0xF]);
+                    } else if (c < 0x80) {
+                        write(c);
+                    } else if (c < 0x800) {
+                        write(0xC0 | (c >> 6));
+                        write(0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, value.charAt(++i));
+                        write(0xF0 | (cp >> 18));
+                        write(0x80 | ((cp >> 12) & 0x3F));
+                        write(0x80 | ((cp >> 6) & 0x3F));
+                        write(0x80 | (cp & 0x3F));
+                    } else {
+                        write(0xE0 | (c >> 12));
+                        write(0x80 | ((c >> 6) & 0x3F));
+                        write(0x80 | (c & 0x3F));
+                    }
+                }
+                write('"');
+            }
+
+            @Override
+            public byte[] toBytes() {
+                write(SUFFIX);
+                return Arrays.copyOf(buffer, length);
+            }
+        }
+    }
+
+    /**
+     * Writes the event as a CBOR map of the fields
+     */
+    private static final class CborEncoder extends EventEncoder {
+        private static final int MAJOR_UNSIGNED = 0;
+        private static final int MAJOR_NEGATIVE = 1;
+        private static final int MAJOR_TEXT = 3;
+        private static final int MAJOR_MAP = 5;
+
+        private static final ThreadLocal<CborWriter> WRITERS = ThreadLocal.withInitial(CborWriter::new);
+
+        private final byte[] header;
+
+        CborEncoder(String[] fieldNames) {
+            super(encodeNames(fieldNames));
+            CborWriter writer = new CborWriter();
+            writer.head(MAJOR_MAP, fieldNames.length);
+            header = Arrays.copyOf(writer.buffer, writer.length);
+        }
+
+        private static byte[][] encodeNames(String[] fieldNames) {
+            CborWriter writer = new CborWriter();
+            byte[][] names = new byte[fieldNames.length][];
+            for (int i = 0; i < fieldNames.length; i++) {
+                writer.length = 0;
+                writer.text(fieldNames[i]);
+                names[i] = Arrays.copyOf(writer.buffer, writer.length);
+            }
+            return names;
+        }
+
+        @Override
+        public String getFormat() {
+            return FORMAT_CBOR;
+        }
+
+        @Override
+        protected Writer writer() {
+            return WRITERS.get();
+        }
+
+        @Override
+        protected void start(Writer writer) {
+            writer.write(header);
+        }
+
+        private static final class CborWriter extends Writer {
+
+            void head(int major, long value) {
+                int type = major << 5;
+                if (value < 24) {
+                    write(type | (int) value);
+                } else if (value < 0x100) {
+                    write(type | 24);
+                    write((int) value);
+                } else if (value < 0x10000) {
+                    write(type | 25);
+                    write((int) (value >> 8));
+                    write((int) value);
+                } else if (value < 0x100000000L) {
+                    write(type | 26);
+                    for (int shift = 24; shift >= 0; shift -= 8) {
+                        write((int) (value >> shift));
+                    }
+                } else {
+                    write(type | 27);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        write((int) (value >> shift));
+                    }
+                }
+            }
+
+            void text(String value) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                head(MAJOR_TEXT, bytes.length);
+                write(bytes);
+            }
+
+            @Override
+            public Writer value(int value) {
+                return value((long) value);
+            }
+
+            @Override
+            public Writer value(long value) {
+                name();
+                if (value >= 0) {
+                    head(MAJOR_UNSIGNED, value);
+                } else {
+                    // -1 - n, which is never negative for a negative long
+                    head(MAJOR_NEGATIVE, -1 - value);
+                }
+                return this;
+            }
+
+            @Override
+            public Writer value(double value) {
+                name();
+                long bits = Double.doubleToLongBits(value);
+                write(0xFB);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    write((int) (bits >> shift));
+                }
+                return this;
+            }
+
+            @Override
+            public Writer value(boolean value) {
+                name();
+                write(value ? 0xF5 : 0xF4);
+                return this;
+            }
+
+            @Override
+            public Writer value(String value) {
+                name();
+                if (value == null) {
+                    write(0xF6);
+                } else {
+                    text(value);
+                }
+                return this;
+            }
+
+            @Override
+            public byte[] toBytes() {
+                return Arrays.copyOf(buffer, length);
+            }
+        }
+    }
+}
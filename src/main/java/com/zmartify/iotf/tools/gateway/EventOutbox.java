@@ -0,0 +1,541 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.ibm.iotf.client.gateway.GatewayClient;
+
+/**
+ * Store-and-forward outbox keeping the device events that could not be published, e.g. while the gateway is
+ * disconnected, and replaying them in order once the gateway is connected again.
+ *
+ * The events are appended to a log of memory-mapped segment files in a local directory. Every record carries a
+ * CRC, so a record torn by a crash ends the log on recovery. A replay thread publishes the oldest event at no more
+ * than <code>replayRate</code> events per second and moves the acknowledged position, persisted in
+ * <code>outbox.ack</code>, past it once the gateway client accepted it. Segments that are fully acknowledged are
+ * deleted.
+ *
+ * Disk usage is bounded by <code>maxSegments</code> segments of <code>segmentSize</code> bytes: when the log is
+ * full the oldest segment is dropped, keeping the most recent events. Nothing is held on the heap, whatever the
+ * length of the outage.
+ *
+ * The mapped segments are written back by the operating system, so the outbox survives a crash of the gateway
+ * process. The segments are forced to disk when they are rolled over and when the outbox is closed.
+ */
+public class EventOutbox {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+    /** Events replayed per second */
+    public static final int DEFAULT_REPLAY_RATE = 50;
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE = "outbox.ack";
+    // length and CRC of the record
+    private static final int RECORD_HEADER = 8;
+    // format of events whose data is kept as JSON text and published as an object again
+    private static final String FORMAT_OBJECT = "";
+    private static final long IDLE_MILLIS = 500;
+    private static final long RETRY_MILLIS = 5000;
+
+    private static final Gson GSON = new Gson();
+    private static final JsonParser JSON_PARSER = new JsonParser();
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long replayIntervalNanos;
+    private final GatewayClient gwClient;
+    // segments by sequence, guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final FileChannel ackChannel;
+    private final MappedByteBuffer ackBuffer;
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // events stored and not acknowledged yet
+    private final AtomicLong backlog = new AtomicLong();
+    private final Thread replayer;
+
+    private Segment writeSegment;
+    private long ackSegment;
+    private int ackOffset;
+    private volatile boolean running;
+    private boolean closed;
+
+    private static final class Segment {
+        private final long sequence;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        // end of the written records, only maintained for the segment being written
+        private int position;
+
+        Segment(long sequence, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Record {
+        private final long segment;
+        private final int offset;
+        private final int next;
+        private final String deviceType;
+        private final String deviceId;
+        private final String event;
+        private final String format;
+        private final byte[] data;
+
+        Record(long segment, int offset, int next, String deviceType, String deviceId, String event, String format,
+                byte[] data) {
+            this.segment = segment;
+            this.offset = offset;
+            this.next = next;
+            this.deviceType = deviceType;
+            this.deviceId = deviceId;
+            this.event = event;
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    public EventOutbox(GatewayClient gwClient, File directory) throws IOException {
+        this(gwClient, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_REPLAY_RATE);
+    }
+
+    /**
+     * Opens the outbox in the directory, recovering the events left by an earlier run
+     *
+     * @param segmentSize size of a segment file in bytes, also the maximum size of an event
+     * @param maxSegments maximum number of segment files (at least 2)
+     * @param replayRate maximum number of events replayed per second
+     */
+    public EventOutbox(GatewayClient gwClient, File directory, int segmentSize, int maxSegments, int replayRate)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + directory);
+        }
+        this.gwClient = gwClient;
+        this.directory = directory;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, replayRate);
+
+        RandomAccessFile ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        this.ackChannel = ackFile.getChannel();
+        this.ackBuffer = ackChannel.map(FileChannel.MapMode.READ_WRITE, 0, 12);
+        recover();
+
+        this.replayer = new Thread(this::replay, "event-outbox");
+        this.replayer.setDaemon(true);
+    }
+
+    private synchronized void recover() throws IOException {
+        ackSegment = ackBuffer.getLong(0);
+        ackOffset = ackBuffer.getInt(8);
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                long sequence;
+                try {
+                    sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (sequence < ackSegment) {
+                    // acknowledged before the last run ended
+                    delete(file);
+                } else {
+                    segments.put(sequence, open(file, sequence, (int) Math.max(file.length(), segmentSize)));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            writeSegment = open(segmentFile(ackSegment), ackSegment, segmentSize);
+            segments.put(ackSegment, writeSegment);
+            ackOffset = 0;
+        } else {
+            writeSegment = segments.lastEntry().getValue();
+            // the log of the last segment ends at the first record that is missing or torn
+            int position = 0;
+            Record record;
+            while ((record = read(writeSegment, position)) != null) {
+                position = record.next;
+            }
+            writeSegment.position = position;
+            if (position + RECORD_HEADER <= writeSegment.buffer.capacity()) {
+                writeSegment.buffer.putInt(position, 0);
+            }
+            if (!segments.containsKey(ackSegment)) {
+                ackSegment = segments.firstKey();
+                ackOffset = 0;
+            }
+            backlog.set(countBacklog());
+        }
+        writeAck();
+    }
+
+    /**
+     * @return number of records from the acknowledged position to the end of the log
+     */
+    private long countBacklog() {
+        long count = 0;
+        for (Segment segment : segments.tailMap(ackSegment).values()) {
+            int position = segment.sequence == ackSegment ? ackOffset : 0;
+            int end = segment == writeSegment ? segment.position : segment.buffer.capacity();
+            Record record;
+            while (position < end && (record = read(segment, position)) != null) {
+                position = record.next;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%020d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private static Segment open(File file, long sequence, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        try {
+            return new Segment(sequence, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void delete(File file) {
+        // a mapping that is still referenced stays valid after the file is deleted
+        if (!file.delete()) {
+            System.err.println("Failed to delete outbox segment " + file);
+        }
+    }
+
+    private void close(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void start() {
+        running = true;
+        replayer.start();
+    }
+
+    /**
+     * Stops the replay and forces the outbox to disk, the events not replayed yet are kept for the next run
+     */
+    public void close() {
+        running = false;
+        replayer.interrupt();
+        try {
+            replayer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                close(segment);
+            }
+            ackBuffer.force();
+            try {
+                ackChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Appends an event to the outbox
+     *
+     * @param data an encoded event (byte[]) or an object the gateway client publishes as JSON
+     * @param format format of encoded data, null for JSON
+     * @return false if the event could not be stored
+     */
+    public boolean append(String deviceType, String deviceId, String event, Object data, String format) {
+        byte[] payload;
+        if (data instanceof byte[]) {
+            payload = (byte[]) data;
+            if (format == null) {
+                format = EventEncoder.FORMAT_JSON;
+            }
+        } else {
+            payload = GSON.toJson(data).getBytes(StandardCharsets.UTF_8);
+            format = FORMAT_OBJECT;
+        }
+        byte[] type = deviceType.getBytes(StandardCharsets.UTF_8);
+        byte[] id = deviceId.getBytes(StandardCharsets.UTF_8);
+        byte[] name = event.getBytes(StandardCharsets.UTF_8);
+        byte[] fmt = format.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + type.length + 2 + id.length + 2 + name.length + 2 + fmt.length + 4 + payload.length;
+        if (RECORD_HEADER + length > segmentSize) {
+            System.err.println("Event " + event + " of device " + deviceId + " too large for the outbox");
+            dropped.incrementAndGet();
+            return false;
+        }
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (writeSegment.position + RECORD_HEADER + length > writeSegment.buffer.capacity()) {
+                    roll();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to add an outbox segment :: " + e);
+                e.printStackTrace();
+                return false;
+            }
+            ByteBuffer buffer = writeSegment.buffer;
+            int start = writeSegment.position;
+            int end = start + RECORD_HEADER + length;
+            buffer.position(start + RECORD_HEADER);
+            putBytes(buffer, type);
+            putBytes(buffer, id);
+            putBytes(buffer, name);
+            putBytes(buffer, fmt);
+            buffer.putInt(payload.length);
+            buffer.put(payload);
+            if (end + RECORD_HEADER <= buffer.capacity()) {
+                // the segment may hold a torn record from before a crash here
+                buffer.putInt(end, 0);
+            }
+            buffer.putInt(start + 4, crc(buffer, start + RECORD_HEADER, length));
+            // the length is written last, making the record visible
+            buffer.putInt(start, length);
+            writeSegment.position = end;
+            backlog.incrementAndGet();
+        }
+        appended.incrementAndGet();
+        return true;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(offset + length).position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private void roll() throws IOException {
+        writeSegment.buffer.force();
+        while (segments.size() >= maxSegments) {
+            dropOldest();
+        }
+        long sequence = writeSegment.sequence + 1;
+        writeSegment = open(segmentFile(sequence), sequence, segmentSize);
+        segments.put(sequence, writeSegment);
+    }
+
+    /**
+     * Makes room by dropping the oldest segment, with the events not replayed yet
+     */
+    private void dropOldest() {
+        Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+        Segment segment = oldest.getValue();
+        int count = 0;
+        int position = segment.sequence == ackSegment ? ackOffset : 0;
+        Record record;
+        while ((record = read(segment, position)) != null) {
+            position = record.next;
+            count++;
+        }
+        if (count > 0) {
+            System.err.println("Outbox full, dropped " + count + " events");
+            dropped.addAndGet(count);
+            backlog.addAndGet(-count);
+        }
+        close(segment);
+        delete(segment.file);
+        if (ackSegment <= segment.sequence) {
+            ackSegment = segments.firstKey();
+            ackOffset = 0;
+            writeAck();
+        }
+    }
+
+    private void writeAck() {
+        ackBuffer.putLong(0, ackSegment);
+        ackBuffer.putInt(8, ackOffset);
+    }
+
+    /**
+     * @return the record at the offset, or null at the end of the log of the segment
+     */
+    private static Record read(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        if (offset + RECORD_HEADER > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER) {
+            return null;
+        }
+        if (buffer.getInt(offset + 4) != crc(buffer, offset + RECORD_HEADER, length)) {
+            return null;
+        }
+        buffer.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+        try {
+            String deviceType = getString(buffer);
+            String deviceId = getString(buffer);
+            String event = getString(buffer);
+            String format = getString(buffer);
+            byte[] data = new byte[buffer.getInt()];
+            buffer.get(data);
+            return new Record(segment.sequence, offset, offset + RECORD_HEADER + length, deviceType, deviceId, event,
+                    format, data);
+        } catch (RuntimeException e) {
+            // a record with a valid CRC but a broken layout
+            return null;
+        }
+    }
+
+    /**
+     * @return the oldest event not acknowledged yet, deleting the segments that are fully acknowledged
+     */
+    private synchronized Record peek() {
+        while (!closed) {
+            Segment segment = segments.get(ackSegment);
+            if (segment == null) {
+                return null;
+            }
+            if (segment == writeSegment) {
+                return ackOffset < segment.position ? read(segment, ackOffset) : null;
+            }
+            Record record = read(segment, ackOffset);
+            if (record != null) {
+                return record;
+            }
+            // end of a segment that is no longer written, compact it
+            segments.remove(segment.sequence);
+            close(segment);
+            delete(segment.file);
+            ackSegment = segments.firstKey();
+            ackOffset = 0;
+            writeAck();
+        }
+        return null;
+    }
+
+    private synchronized void acknowledge(Record record) {
+        // the record may have been dropped while it was published
+        if (!closed && ackSegment == record.segment && ackOffset == record.offset) {
+            ackOffset = record.next;
+            writeAck();
+            backlog.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of events stored and not replayed yet
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * @return true if all events of the outbox have been replayed
+     */
+    public synchronized boolean isEmpty() {
+        return ackSegment == writeSegment.sequence && ackOffset >= writeSegment.position;
+    }
+
+    private void replay() {
+        long next = System.nanoTime();
+        try {
+            while (running) {
+                Record record = gwClient.isConnected() ? peek() : null;
+                if (record == null) {
+                    TimeUnit.MILLISECONDS.sleep(IDLE_MILLIS);
+                    continue;
+                }
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                next = Math.max(next, System.nanoTime() - replayIntervalNanos) + replayIntervalNanos;
+                if (publish(record)) {
+                    acknowledge(record);
+                    replayed.incrementAndGet();
+                } else {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private boolean publish(Record record) {
+        // QoS 1, the event is only acknowledged once the broker has it
+        try {
+            if (FORMAT_OBJECT.equals(record.format)) {
+                return gwClient.publishDeviceEvent(record.deviceType, record.deviceId, record.event,
+                        JSON_PARSER.parse(new String(record.data, StandardCharsets.UTF_8)), 1);
+            }
+            return gwClient.publishDeviceEvent(record.deviceType, record.deviceId, record.event, record.data,
+                    record.format, 1);
+        } catch (RuntimeException e) {
+            System.err.println("Replay of event " + record.event + " of device " + record.deviceId + " failed :: "
+                    + e);
+            return false;
+        }
+    }
+
+    /**
+     * @return number of events stored since the outbox was opened
+     */
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return number of events dropped because the outbox was full or the event too large
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
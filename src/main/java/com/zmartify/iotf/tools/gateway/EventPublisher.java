@@ -0,0 +1,414 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.home.Device;
+
+/**
+ * Publishing pipeline between the attached devices and the GatewayClient.
+ *
+ * The devices hand their events to {@link #publish} and return immediately. The events are queued in a bounded
+ * lock-free ring and sent to MQTT by a drain thread in batches, with at most <code>maxInFlight</code> publishes
+ * running at the same time.
+ *
+ * State events are coalesced: while an event of a device with a given event id is still queued, a newer one
+ * replaces its data instead of being queued as well, so only the latest state is sent (like the
+ * <code>on-state-change</code> notification strategy of the mappings). Events that must not be coalesced are
+ * queued as they are.
+ *
+ * When the ring is full the publishing device waits for room, so a fleet that produces more than MQTT accepts
+ * slows down rather than losing state.
+ *
+ * With an {@link EventOutbox} the events that could not be published are stored and replayed later instead of
+ * being lost. While the gateway is disconnected, or the outbox holds fewer than <code>reorderWindow</code> events,
+ * new events are stored behind them, keeping the order. A larger backlog (e.g. after a long outage) is replayed at
+ * the replay rate of the outbox while new events are published live again, so they may overtake stored ones.
+ *
+ * As a DeviceRegistry listener the publisher attaches itself to every registered device.
+ */
+public class EventPublisher implements DeviceRegistry.Listener {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    /** Stored events new events still queue behind */
+    public static final int DEFAULT_REORDER_WINDOW = 1000;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final GatewayClient gwClient;
+    private final Ring ring;
+    private final int batchSize;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private final ConcurrentMap<EventKey, PendingEvent> pending = new ConcurrentHashMap<EventKey, PendingEvent>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final ConcurrentMap<String, String> eventFormats = new ConcurrentHashMap<String, String>();
+    private final Thread drainer;
+
+    private volatile EventOutbox outbox;
+    private volatile int reorderWindow = DEFAULT_REORDER_WINDOW;
+    private volatile boolean running;
+    private volatile boolean idle;
+
+    /**
+     * Identifies the state coalesced into a single pending event
+     */
+    private static final class EventKey {
+        private final String deviceType;
+        private final String deviceId;
+        private final String event;
+        private final int hash;
+
+        EventKey(String deviceType, String deviceId, String event) {
+            this.deviceType = deviceType;
+            this.deviceId = deviceId;
+            this.event = event;
+            this.hash = (deviceType.hashCode() * 31 + deviceId.hashCode()) * 31 + event.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof EventKey)) {
+                return false;
+            }
+            EventKey other = (EventKey) obj;
+            return hash == other.hash && deviceId.equals(other.deviceId) && event.equals(other.event)
+                    && deviceType.equals(other.deviceType);
+        }
+    }
+
+    private static final class PendingEvent {
+        private final String deviceType;
+        private final String deviceId;
+        private final String event;
+        private final Object data;
+        private final String format;
+
+        PendingEvent(String deviceType, String deviceId, String event, Object data, String format) {
+            this.deviceType = deviceType;
+            this.deviceId = deviceId;
+            this.event = event;
+            this.data = data;
+            this.format = format;
+        }
+    }
+
+    /**
+     * Bounded multi-producer multi-consumer ring, every slot carries a sequence number telling whether it is free
+     * for the producer or filled for the consumer of a given position.
+     */
+    private static final class Ring {
+        private final AtomicReferenceArray<Object> buffer;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            buffer = new AtomicReferenceArray<Object>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        boolean offer(Object element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        buffer.lazySet(index, element);
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        Object poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        Object element = buffer.get(index);
+                        buffer.lazySet(index, null);
+                        sequences.lazySet(index, position + mask + 1);
+                        return element;
+                    }
+                    position = head.get();
+                } else if (difference < 0) {
+                    return null;
+                } else {
+                    position = head.get();
+                }
+            }
+        }
+    }
+
+    public EventPublisher(GatewayClient gwClient) {
+        this(gwClient, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param capacity number of events that can be queued, rounded up to a power of two
+     * @param batchSize number of events taken from the ring at once
+     * @param maxInFlight number of publishes running at the same time
+     */
+    public EventPublisher(GatewayClient gwClient, int capacity, int batchSize, int maxInFlight) {
+        this.gwClient = gwClient;
+        this.ring = new Ring(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxInFlight), r -> {
+            Thread t = new Thread(r, "event-publisher-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.drainer = new Thread(this::drain, "event-drainer");
+        this.drainer.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        drainer.start();
+    }
+
+    /**
+     * Stops after the queued events are sent, and waits for the sends in flight so they are done before the gateway
+     * disconnects
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(drainer);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(10));
+            executor.shutdown();
+            if (!executor.awaitTermination(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                System.err.println("Event publisher stopped with events still being sent");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdown();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a state event, replacing the data of a queued event with the same device and event id
+     *
+     * @return false if the publisher is stopped
+     */
+    public boolean publish(String deviceType, String deviceId, String event, Object data) {
+        return publish(deviceType, deviceId, event, data, true);
+    }
+
+    /**
+     * Queues an event
+     *
+     * @param coalesce whether the event may replace (and be replaced by) a queued event with the same device and
+     *            event id
+     * @return false if the publisher is stopped
+     */
+    public boolean publish(String deviceType, String deviceId, String event, Object data, boolean coalesce) {
+        return publish(deviceType, deviceId, event, data, null, coalesce);
+    }
+
+    /**
+     * Queues an event already encoded by the device
+     *
+     * @param format format of the encoded data (e.g. json or cbor), null to let the client encode the data as JSON
+     * @param coalesce whether the event may replace (and be replaced by) a queued event with the same device and
+     *            event id
+     * @return false if the publisher is stopped
+     */
+    public boolean publish(String deviceType, String deviceId, String event, Object data, String format,
+            boolean coalesce) {
+        if (!running) {
+            return false;
+        }
+        PendingEvent pendingEvent = new PendingEvent(deviceType, deviceId, event, data, format);
+        if (!coalesce) {
+            return enqueue(pendingEvent);
+        }
+        EventKey key = new EventKey(deviceType, deviceId, event);
+        if (pending.put(key, pendingEvent) != null) {
+            // the key is queued already, the drain picks up the new data
+            coalesced.incrementAndGet();
+            return true;
+        }
+        if (enqueue(key)) {
+            return true;
+        }
+        pending.remove(key, pendingEvent);
+        return false;
+    }
+
+    private boolean enqueue(Object element) {
+        while (!ring.offer(element)) {
+            if (!running) {
+                return false;
+            }
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        if (idle) {
+            LockSupport.unpark(drainer);
+        }
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            int taken = 0;
+            Object element;
+            while (taken < batchSize && (element = ring.poll()) != null) {
+                PendingEvent event = element instanceof EventKey ? pending.remove(element) : (PendingEvent) element;
+                if (event != null) {
+                    send(event);
+                }
+                taken++;
+            }
+            if (taken == 0) {
+                if (!running) {
+                    return;
+                }
+                idle = true;
+                // check again, an event may have been queued before idle was visible
+                if (ring.head.get() == ring.tail.get()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    /**
+     * Sets the outbox storing the events that could not be published, null to drop them
+     */
+    public void setOutbox(EventOutbox outbox) {
+        setOutbox(outbox, DEFAULT_REORDER_WINDOW);
+    }
+
+    /**
+     * @param reorderWindow up to this many stored events new events are stored behind rather than published live
+     */
+    public void setOutbox(EventOutbox outbox, int reorderWindow) {
+        this.reorderWindow = Math.max(0, reorderWindow);
+        this.outbox = outbox;
+    }
+
+    private void send(PendingEvent event) {
+        EventOutbox outbox = this.outbox;
+        if (outbox != null && !outbox.isEmpty()
+                && (!gwClient.isConnected() || outbox.getBacklog() < reorderWindow)) {
+            // queue behind the stored events
+            if (!store(outbox, event)) {
+                failed.incrementAndGet();
+            }
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
+                try {
+                    boolean sent = event.format == null
+                            ? gwClient.publishDeviceEvent(event.deviceType, event.deviceId, event.event, event.data)
+                            : gwClient.publishDeviceEvent(event.deviceType, event.deviceId, event.event, event.data,
+                                    event.format, 0);
+                    if (sent) {
+                        published.incrementAndGet();
+                    } else if (outbox == null || !store(outbox, event)) {
+                        failed.incrementAndGet();
+                        System.err.println("Event publish from device " + event.deviceId + " failed");
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            failed.incrementAndGet();
+        }
+    }
+
+    private static boolean store(EventOutbox outbox, PendingEvent event) {
+        return outbox.append(event.deviceType, event.deviceId, event.event, event.data, event.format);
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return number of events replaced by a newer event before they were sent
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Sets the format the devices of the type encode their events in, applied as the devices are registered
+     *
+     * @param format {@link EventEncoder#FORMAT_JSON} or {@link EventEncoder#FORMAT_CBOR}
+     */
+    public void setEventFormat(String deviceType, String format) {
+        // fail on an unsupported format now rather than on the first event
+        eventFormats.put(deviceType, EventEncoder.create(format).getFormat());
+    }
+
+    @Override
+    public void deviceAdded(Device device) {
+        String format = eventFormats.get(device.getDeviceType());
+        if (format != null) {
+            device.setEventFormat(format);
+        }
+        device.setEventPublisher(this);
+    }
+
+    @Override
+    public void deviceRemoved(Device device) {
+        device.setEventPublisher(null);
+    }
+
+    @Override
+    public void deviceUpdated(Device device) {
+    }
+}
@@ -0,0 +1,342 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local cache of firmware images shared by the firmware requests of the gateway and all attached devices.
+ *
+ * An image is identified by its URL and verifier, the cache file is named after the SHA-256 of both. A rollout to
+ * many identical devices downloads the image once: requests arriving while it is downloaded wait for that
+ * download, later requests are served from disk. Every request gets its own file, a hard link to the cached image
+ * where the file system allows it (a copy otherwise), so deleting it after the update leaves the cache intact.
+ *
+ * Only images with a verifier are cached, as nothing else tells whether the image at a URL is still the same: a
+ * request without one downloads the image into its file every time. Images failing verification are never
+ * cached. The cache is limited to <code>maxBytes</code>, the least recently used images are evicted beyond; the
+ * image just added is always kept. The cache survives restarts, the access order is restored from the
+ * modification times of the files.
+ */
+public class FirmwareCache {
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final String IMAGE_SUFFIX = ".img";
+    private static final String PART_SUFFIX = ".part";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+    private final long maxBytes;
+    private final FirmwareDownloader downloader;
+    // images in access order, guarded by this
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+    private final ConcurrentMap<String, CompletableFuture<Image>> downloads =
+            new ConcurrentHashMap<String, CompletableFuture<Image>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long size;
+
+    /**
+     * The image has no content
+     */
+    public static class EmptyImageException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public EmptyImageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The MD5 sum of the image doesn't match the verifier
+     */
+    public static class VerificationFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public VerificationFailedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Image {
+        private final Path path;
+        private final long size;
+
+        Image(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    public FirmwareCache(File directory, FirmwareDownloader downloader) throws IOException {
+        this(directory, DEFAULT_MAX_BYTES, downloader);
+    }
+
+    /**
+     * Opens the cache in the directory, keeping the images cached by an earlier run
+     *
+     * @param maxBytes total size of the cached images
+     */
+    public FirmwareCache(File directory, long maxBytes, FirmwareDownloader downloader) throws IOException {
+        this.directory = directory.toPath();
+        this.maxBytes = Math.max(0, maxBytes);
+        this.downloader = downloader;
+        Files.createDirectories(this.directory);
+        load();
+    }
+
+    private synchronized void load() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(PART_SUFFIX)) {
+                    // left by an interrupted download
+                    Files.deleteIfExists(path);
+                } else if (name.endsWith(IMAGE_SUFFIX)) {
+                    paths.add(path);
+                }
+            }
+        }
+        paths.sort(Comparator.comparingLong(FirmwareCache::lastModified));
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            Image image = new Image(path, Files.size(path));
+            images.put(name.substring(0, name.length() - IMAGE_SUFFIX.length()), image);
+            size += image.size;
+        }
+        evict();
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Provides the image at the URL in the target file, downloading it unless it is cached
+     *
+     * @param verifier expected MD5 sum of the image, null or empty if it is not verified, the image is then
+     *            downloaded without being cached
+     * @param listener notified of the progress if this request downloads the image, may be null
+     * @return the size of the image
+     * @throws EmptyImageException if the image has no content
+     * @throws VerificationFailedException if the image doesn't match the verifier
+     */
+    public long fetch(URL url, String verifier, File target, FirmwareDownloader.ProgressListener listener)
+            throws IOException {
+        if (verifier == null || verifier.isEmpty()) {
+            misses.incrementAndGet();
+            return download(downloader, url, verifier, target, listener);
+        }
+        String key = key(url, verifier);
+        for (int attempt = 0;; attempt++) {
+            Image image = get(key, url, verifier, listener);
+            try {
+                link(image.path, target.toPath());
+                return image.size;
+            } catch (NoSuchFileException e) {
+                // evicted before it was linked, fetch it again once
+                if (attempt > 0) {
+                    throw e;
+                }
+                synchronized (this) {
+                    if (images.get(key) == image) {
+                        images.remove(key);
+                        size -= image.size;
+                    }
+                }
+            }
+        }
+    }
+
+    private Image get(String key, URL url, String verifier, FirmwareDownloader.ProgressListener listener)
+            throws IOException {
+        synchronized (this) {
+            Image image = images.get(key);
+            if (image != null) {
+                hits.incrementAndGet();
+                touch(image);
+                return image;
+            }
+        }
+        CompletableFuture<Image> download = new CompletableFuture<Image>();
+        CompletableFuture<Image> running = downloads.putIfAbsent(key, download);
+        if (running != null) {
+            // downloaded by another request
+            hits.incrementAndGet();
+            return await(running);
+        }
+        try {
+            Image image;
+            synchronized (this) {
+                // may have been added between the lookup and the registration of the download
+                image = images.get(key);
+            }
+            if (image == null) {
+                misses.incrementAndGet();
+                image = download(key, url, verifier, listener);
+            }
+            download.complete(image);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloads.remove(key, download);
+        }
+    }
+
+    private static Image await(CompletableFuture<Image> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the firmware download");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Firmware download failed", cause);
+        }
+    }
+
+    private Image download(String key, URL url, String verifier, FirmwareDownloader.ProgressListener listener)
+            throws IOException {
+        Path part = directory.resolve(key + PART_SUFFIX);
+        try {
+            long length = download(downloader, url, verifier, part.toFile(), listener);
+            Path path = directory.resolve(key + IMAGE_SUFFIX);
+            Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Image image = new Image(path, length);
+            synchronized (this) {
+                Image previous = images.put(key, image);
+                if (previous != null) {
+                    size -= previous.size;
+                }
+                size += image.size;
+                evict();
+            }
+            return image;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Downloads and verifies an image without caching it
+     *
+     * @return the size of the image
+     * @throws EmptyImageException if the image has no content
+     * @throws VerificationFailedException if the image doesn't match the verifier
+     */
+    public static long download(FirmwareDownloader downloader, URL url, String verifier, File target,
+            FirmwareDownloader.ProgressListener listener) throws IOException {
+        FirmwareDownloader.Result result = downloader.download(url, target, listener);
+        if (result.getSize() == 0) {
+            throw new EmptyImageException("No firmware image at " + url);
+        }
+        System.out.println("Downloaded Firmware MD5 sum:: " + result.getMd5());
+        if (verifier != null && !verifier.isEmpty() && !verifier.equalsIgnoreCase(result.getMd5())) {
+            throw new VerificationFailedException("Download firmware checksum verification failed.. Expected "
+                    + verifier + " found " + result.getMd5());
+        }
+        return result.getSize();
+    }
+
+    private void evict() {
+        for (Iterator<Image> it = images.values().iterator(); it.hasNext() && size > maxBytes
+                && images.size() > 1;) {
+            Image image = it.next();
+            it.remove();
+            size -= image.size;
+            try {
+                // a file linked from the image keeps its content
+                Files.deleteIfExists(image.path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void touch(Image image) {
+        try {
+            Files.setLastModifiedTime(image.path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only affects the eviction order after a restart
+        }
+    }
+
+    private static void link(Path image, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, image);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. another file system
+            Files.copy(image, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String key(URL url, String verifier) {
+        String identity = url.toExternalForm() + '\n' + verifier.toLowerCase();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of requests served from the cache or by a download of another request
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of images downloaded
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return total size of the cached images
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,237 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads firmware images into a local file with constant memory.
+ *
+ * The image is read into a large direct buffer that is written to the file with a FileChannel and fed to the MD5
+ * digest in place, so the verifier is known when the download ends and the file is never read back.
+ *
+ * When the connection is lost the download continues where it stopped with an HTTP Range request, guarded by
+ * If-Range with the ETag or Last-Modified of the first response, so a changed image starts over rather than being
+ * spliced. A server that ignores the range restarts the download from the beginning as well. The download fails
+ * after <code>maxAttempts</code> attempts in a row that made no progress.
+ */
+public class FirmwareDownloader {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 2000;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int bufferSize;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final int timeoutMillis;
+    // a direct buffer is expensive to allocate and slow to free, keep one per download thread
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    /**
+     * Notified after every block written, with size -1 if the server didn't tell the size
+     */
+    public interface ProgressListener {
+        void progress(long downloaded, long size);
+    }
+
+    /**
+     * A downloaded image
+     */
+    public static final class Result {
+        private final long size;
+        private final String md5;
+        private final int attempts;
+
+        Result(long size, String md5, int attempts) {
+            this.size = size;
+            this.md5 = md5;
+            this.attempts = attempts;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the MD5 sum of the image as lower case hex
+         */
+        public String getMd5() {
+            return md5;
+        }
+
+        /**
+         * @return number of connections the download needed
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    public FirmwareDownloader() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param bufferSize size of the direct buffer of a download
+     * @param maxAttempts number of attempts in a row without progress before the download fails
+     * @param retryDelayMillis delay before the first retry, growing linearly with the failed attempts
+     * @param timeoutMillis connect and read timeout
+     */
+    public FirmwareDownloader(int bufferSize, int maxAttempts, long retryDelayMillis, int timeoutMillis) {
+        this.bufferSize = Math.max(4096, bufferSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMillis = Math.max(0, retryDelayMillis);
+        this.timeoutMillis = Math.max(0, timeoutMillis);
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(this.bufferSize));
+    }
+
+    /**
+     * Downloads the image into the file, replacing its content
+     *
+     * @param listener notified of the progress, may be null
+     * @throws IOException if the download failed maxAttempts times in a row
+     */
+    public Result download(URL url, File file, ProgressListener listener) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = buffers.get();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel out = raf.getChannel();
+            out.truncate(0);
+
+            long downloaded = 0;
+            long size = -1;
+            String validator = null;
+            int attempts = 0;
+            int failures = 0;
+            while (true) {
+                attempts++;
+                long start = downloaded;
+                buffer.clear();
+                URLConnection connection = url.openConnection();
+                connection.setConnectTimeout(timeoutMillis);
+                connection.setReadTimeout(timeoutMillis);
+                HttpURLConnection http = connection instanceof HttpURLConnection ? (HttpURLConnection) connection
+                        : null;
+                if (http != null && downloaded > 0) {
+                    connection.setRequestProperty("Range", "bytes=" + downloaded + "-");
+                    if (validator != null) {
+                        connection.setRequestProperty("If-Range", validator);
+                    }
+                }
+                boolean permanent = false;
+                try {
+                    int code = http == null ? -1 : http.getResponseCode();
+                    if (code >= 400 && code < 500) {
+                        permanent = true;
+                        throw new IOException("Firmware download failed with HTTP " + code);
+                    }
+                    if (downloaded > 0 && code != HttpURLConnection.HTTP_PARTIAL) {
+                        // range not honoured or the image changed, start over
+                        System.out.println("Firmware download restarts from the beginning");
+                        downloaded = 0;
+                        out.truncate(0);
+                        md5.reset();
+                    }
+                    if (downloaded == 0) {
+                        size = connection.getContentLengthLong();
+                        validator = getValidator(connection);
+                    }
+                    try (InputStream is = connection.getInputStream();
+                            ReadableByteChannel in = Channels.newChannel(is)) {
+                        while (in.read(buffer) != -1) {
+                            // write when the buffer is full, keeping the number of writes low
+                            if (!buffer.hasRemaining()) {
+                                downloaded += write(buffer, out, downloaded, md5);
+                                notify(listener, downloaded, size);
+                            }
+                        }
+                        if (buffer.position() > 0) {
+                            downloaded += write(buffer, out, downloaded, md5);
+                            notify(listener, downloaded, size);
+                        }
+                    }
+                    if (size >= 0 && downloaded < size) {
+                        throw new IOException("Connection closed after " + downloaded + " of " + size + " bytes");
+                    }
+                    return new Result(downloaded, toHex(md5.digest()), attempts);
+                } catch (IOException e) {
+                    // keep what was read before the connection was lost
+                    if (buffer.position() > 0) {
+                        downloaded += write(buffer, out, downloaded, md5);
+                    }
+                    failures = downloaded > start ? 1 : failures + 1;
+                    if (permanent || failures >= maxAttempts) {
+                        throw e;
+                    }
+                    System.err.println("Firmware download interrupted at " + downloaded + " bytes, resuming :: " + e);
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(retryDelayMillis * failures);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                } finally {
+                    if (http != null) {
+                        http.disconnect();
+                    }
+                }
+            }
+        }
+    }
+
+    private static int write(ByteBuffer buffer, FileChannel out, long position, MessageDigest md5)
+            throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        md5.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        buffer.clear();
+        return length;
+    }
+
+    private static void notify(ProgressListener listener, long downloaded, long size) {
+        if (listener != null) {
+            listener.progress(downloaded, size);
+        }
+    }
+
+    private static String getValidator(URLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        // a weak ETag can't be used with If-Range
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,430 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the firmware downloads and installs requested for the gateway and the attached devices in waves.
+ *
+ * Downloads (I/O bound) and installs (process or device bound) run on separate pools of their own size, so a
+ * large rollout neither waits for installs behind downloads nor takes threads from command handling or device
+ * actions. The installs on the attached devices are a stage of their own: they wait for the devices, not for an
+ * installer process on the gateway, so they don't share the few install slots of the gateway and run with a
+ * concurrency of their own on a single thread, as an {@link AsyncTask}.
+ *
+ * The requests of a stage are queued and started in waves. A wave takes up to the current wave size of the
+ * queued requests and runs them with the concurrency of the stage. The next wave starts when all requests of the
+ * wave are done. The first wave is small, like a canary, and the wave size doubles after every successful wave up
+ * to the maximum wave size. When more than <code>maxFailureRate</code> of the requests of a wave fail (and at least
+ * <code>minFailures</code> of them), the stage is paused: the queued requests wait until {@link #resume} is called,
+ * or the auto resume time passed, rather than rolling a broken image out to the whole fleet. A resumed stage
+ * starts over with a wave of the first wave size.
+ *
+ * An {@link AsyncTask} waiting for something else, like an installer process, gives its thread back to the stage
+ * while it waits; it still counts against the concurrency of the stage until its completion is done.
+ */
+public class FirmwareRolloutOrchestrator {
+
+    public static final int DEFAULT_DOWNLOAD_THREADS = 8;
+    public static final int DEFAULT_INSTALL_THREADS = 2;
+    public static final int DEFAULT_DEVICE_INSTALLS = 100;
+    public static final int DEFAULT_FIRST_WAVE_SIZE = 10;
+    public static final int DEFAULT_MAX_WAVE_SIZE = 200;
+    public static final double DEFAULT_MAX_FAILURE_RATE = 0.2;
+    public static final int DEFAULT_MIN_FAILURES = 2;
+    public static final long DEFAULT_AUTO_RESUME_MINUTES = 30;
+
+    public enum Stage {
+        DOWNLOAD,
+        /** Installs on the gateway itself */
+        INSTALL,
+        /** Installs on the attached devices */
+        DEVICE_INSTALL
+    }
+
+    /**
+     * A download or install of one device
+     */
+    public interface Task {
+        /**
+         * @return true if the download or install succeeded
+         */
+        boolean execute() throws Exception;
+    }
+
+    /**
+     * A download or install of one device that completes without holding a thread of the stage
+     */
+    public interface AsyncTask {
+        /**
+         * Starts the download or install on the thread of the stage
+         *
+         * @return completed with true if the download or install succeeded
+         */
+        CompletionStage<Boolean> start() throws Exception;
+    }
+
+    /**
+     * Snapshot of the progress of a stage
+     */
+    public static final class Progress {
+        private final Stage stage;
+        private final int queued;
+        private final int running;
+        private final int succeeded;
+        private final int failed;
+        private final int wave;
+        private final int waveSize;
+        private final boolean paused;
+
+        Progress(Stage stage, int queued, int running, int succeeded, int failed, int wave, int waveSize,
+                boolean paused) {
+            this.stage = stage;
+            this.queued = queued;
+            this.running = running;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.wave = wave;
+            this.waveSize = waveSize;
+            this.paused = paused;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * @return number of requests waiting for a wave, or in the current wave waiting for a thread
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return number of the current or last wave, starting at 1
+         */
+        public int getWave() {
+            return wave;
+        }
+
+        /**
+         * @return size of the next wave
+         */
+        public int getWaveSize() {
+            return waveSize;
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public String toString() {
+            return "Firmware " + stage.name().toLowerCase() + " wave " + wave + (paused ? " (paused)" : "")
+                    + ": " + succeeded + " succeeded, " + failed + " failed, " + running + " running, " + queued
+                    + " queued";
+        }
+    }
+
+    private final Map<Stage, StageRunner> stages = new EnumMap<Stage, StageRunner>(Stage.class);
+    private final int maxWaveSize;
+    private final double maxFailureRate;
+    private final int minFailures;
+    private final long autoResumeMillis;
+    private final ScheduledExecutorService timer;
+
+    private static final class Request {
+        private final String deviceId;
+        private final AsyncTask task;
+
+        Request(String deviceId, AsyncTask task) {
+            this.deviceId = deviceId;
+            this.task = task;
+        }
+    }
+
+    private final class StageRunner {
+        private final Stage stage;
+        private final int concurrency;
+        private final ExecutorService executor;
+        private final int firstWaveSize;
+        // all fields below guarded by this
+        private final Deque<Request> queue = new ArrayDeque<Request>();
+        private final Deque<Request> wave = new ArrayDeque<Request>();
+        private int waveNumber;
+        private int waveSize;
+        private int waveTotal;
+        private int waveRemaining;
+        private int waveFailed;
+        private int running;
+        private int succeeded;
+        private int failed;
+        private boolean paused;
+        private ScheduledFuture<?> autoResume;
+
+        StageRunner(Stage stage, int threads, int concurrency, int firstWaveSize) {
+            this.stage = stage;
+            this.concurrency = Math.max(1, concurrency);
+            this.firstWaveSize = Math.max(1, firstWaveSize);
+            this.waveSize = this.firstWaveSize;
+            AtomicInteger count = new AtomicInteger();
+            String prefix = "firmware-" + stage.name().toLowerCase().replace('_', '-') + "-";
+            this.executor = Executors.newFixedThreadPool(Math.min(Math.max(1, threads), this.concurrency), r -> {
+                Thread t = new Thread(r, prefix + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        synchronized void submit(Request request) {
+            queue.add(request);
+            pump();
+        }
+
+        private void pump() {
+            if (waveRemaining == 0 && !paused && !queue.isEmpty()) {
+                waveNumber++;
+                waveTotal = Math.min(waveSize, queue.size());
+                waveRemaining = waveTotal;
+                waveFailed = 0;
+                for (int i = 0; i < waveTotal; i++) {
+                    wave.add(queue.poll());
+                }
+                System.out.println("Firmware " + stage.name().toLowerCase() + " wave " + waveNumber + " started with "
+                        + waveTotal + " devices, " + queue.size() + " queued");
+            }
+            while (running < concurrency && !wave.isEmpty()) {
+                Request request = wave.poll();
+                running++;
+                try {
+                    executor.execute(() -> run(request));
+                } catch (RuntimeException e) {
+                    // shut down
+                    running--;
+                    throw e;
+                }
+            }
+        }
+
+        private void run(Request request) {
+            CompletionStage<Boolean> completion;
+            try {
+                completion = request.task.start();
+            } catch (Exception | Error e) {
+                failed(request, e);
+                done(false);
+                return;
+            }
+            completion.whenComplete((success, e) -> {
+                if (e != null) {
+                    failed(request, e);
+                }
+                done(e == null && Boolean.TRUE.equals(success));
+            });
+        }
+
+        private void failed(Request request, Throwable e) {
+            System.err.println("Firmware " + stage.name().toLowerCase() + " of device " + request.deviceId
+                    + " failed :: " + e);
+            e.printStackTrace();
+        }
+
+        private synchronized void done(boolean success) {
+            running--;
+            if (running == 0) {
+                notifyAll();
+            }
+            waveRemaining--;
+            if (success) {
+                succeeded++;
+            } else {
+                failed++;
+                waveFailed++;
+            }
+            if (waveRemaining == 0) {
+                if (waveFailed >= minFailures && waveFailed > maxFailureRate * waveTotal) {
+                    paused = true;
+                    System.err.println("Firmware " + stage.name().toLowerCase() + " paused after wave " + waveNumber
+                            + ": " + waveFailed + " of " + waveTotal + " failed, " + queue.size()
+                            + " devices waiting");
+                    scheduleAutoResume();
+                } else {
+                    waveSize = Math.min(maxWaveSize, waveSize * 2);
+                }
+                System.out.println(progress());
+            }
+            try {
+                pump();
+            } catch (RuntimeException e) {
+                // shut down, the remaining requests are abandoned
+            }
+        }
+
+        /**
+         * Waits until the running requests, including the asynchronous ones, are done
+         */
+        synchronized void awaitIdle(long deadline) throws InterruptedException {
+            long now;
+            while (running > 0 && (now = System.currentTimeMillis()) < deadline) {
+                wait(deadline - now);
+            }
+        }
+
+        private void scheduleAutoResume() {
+            if (autoResumeMillis > 0) {
+                try {
+                    autoResume = timer.schedule(this::resume, autoResumeMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+        }
+
+        synchronized void resume() {
+            if (paused) {
+                paused = false;
+                if (autoResume != null) {
+                    autoResume.cancel(false);
+                    autoResume = null;
+                }
+                // a canary wave again, the failures may not be over
+                waveSize = firstWaveSize;
+                System.out.println("Firmware " + stage.name().toLowerCase() + " resumed, " + queue.size()
+                        + " devices waiting");
+                try {
+                    pump();
+                } catch (RuntimeException e) {
+                    // shut down
+                }
+            }
+        }
+
+        synchronized Progress progress() {
+            return new Progress(stage, queue.size() + wave.size(), running, succeeded, failed, waveNumber, waveSize,
+                    paused);
+        }
+    }
+
+    public FirmwareRolloutOrchestrator() {
+        this(DEFAULT_DOWNLOAD_THREADS, DEFAULT_INSTALL_THREADS, DEFAULT_DEVICE_INSTALLS, DEFAULT_FIRST_WAVE_SIZE,
+                DEFAULT_MAX_WAVE_SIZE, DEFAULT_MAX_FAILURE_RATE, DEFAULT_MIN_FAILURES, DEFAULT_AUTO_RESUME_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param downloadThreads number of downloads running at the same time
+     * @param installThreads number of installs on the gateway running at the same time
+     * @param deviceInstalls number of installs on the attached devices running at the same time
+     * @param firstWaveSize number of devices of the first wave
+     * @param maxWaveSize maximum number of devices of a wave
+     * @param maxFailureRate fraction of failed requests of a wave that pauses the stage (0 - 1)
+     * @param minFailures minimum number of failed requests of a wave that pauses the stage
+     * @param autoResume time after which a paused stage continues on its own, 0 to wait for {@link #resume}
+     */
+    public FirmwareRolloutOrchestrator(int downloadThreads, int installThreads, int deviceInstalls, int firstWaveSize,
+            int maxWaveSize, double maxFailureRate, int minFailures, long autoResume, TimeUnit unit) {
+        this.maxWaveSize = Math.max(1, maxWaveSize);
+        this.maxFailureRate = Math.max(0, Math.min(1, maxFailureRate));
+        this.minFailures = Math.max(1, minFailures);
+        this.autoResumeMillis = Math.max(0, unit.toMillis(autoResume));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "firmware-resume");
+            t.setDaemon(true);
+            return t;
+        });
+        int firstWave = Math.min(firstWaveSize, this.maxWaveSize);
+        stages.put(Stage.DOWNLOAD, new StageRunner(Stage.DOWNLOAD, downloadThreads, downloadThreads, firstWave));
+        stages.put(Stage.INSTALL, new StageRunner(Stage.INSTALL, installThreads, installThreads, firstWave));
+        // a device install only starts the steps on the device, one thread starts them all
+        stages.put(Stage.DEVICE_INSTALL, new StageRunner(Stage.DEVICE_INSTALL, 1, deviceInstalls, firstWave));
+    }
+
+    /**
+     * Queues a download or install of a device for the next wave of the stage
+     */
+    public void submit(Stage stage, String deviceId, Task task) {
+        submit(stage, deviceId, () -> CompletableFuture.completedFuture(task.execute()));
+    }
+
+    /**
+     * Queues a download or install of a device for the next wave of the stage, the thread of the stage is free
+     * once the task is started
+     */
+    public void submit(Stage stage, String deviceId, AsyncTask task) {
+        stages.get(stage).submit(new Request(deviceId, task));
+    }
+
+    /**
+     * Continues a stage paused because too many requests of a wave failed
+     */
+    public void resume(Stage stage) {
+        stages.get(stage).resume();
+    }
+
+    public Progress getProgress(Stage stage) {
+        return stages.get(stage).progress();
+    }
+
+    /**
+     * @return true if a stage is paused because too many requests of a wave failed
+     */
+    public boolean isPaused() {
+        for (StageRunner runner : stages.values()) {
+            if (runner.progress().isPaused()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Continues the paused stages
+     */
+    public void resume() {
+        for (Stage stage : stages.keySet()) {
+            resume(stage);
+        }
+    }
+
+    /**
+     * Stops accepting requests and waits a while for the running ones, queued requests are abandoned
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        timer.shutdownNow();
+        for (StageRunner runner : stages.values()) {
+            runner.executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            for (StageRunner runner : stages.values()) {
+                runner.executor.awaitTermination(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                runner.awaitIdle(deadline);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
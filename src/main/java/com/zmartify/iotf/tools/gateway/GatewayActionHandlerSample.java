@@ -16,9 +16,7 @@
 package com.zmartify.iotf.tools.gateway;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.ibm.iotf.devicemgmt.DeviceAction;
 import com.ibm.iotf.devicemgmt.DeviceAction.Status;
@@ -32,22 +30,34 @@ import com.zmartify.iotf.tools.gateway.home.Device;
  */
 public class GatewayActionHandlerSample extends DeviceActionHandler {
 	
-	private Map<String, Device> deviceMap = new HashMap<String, Device>();
+	private DeviceRegistry deviceRegistry = new DeviceRegistry();
 	private ManagedGateway gateway;
+	private ProcessSupervisor processSupervisor = new ProcessSupervisor();
 	
-	public void addDeviceInterface(String clientId, Device device) {
-		deviceMap.put(clientId, device);
+	public void addDeviceInterface(Device device) {
+		deviceRegistry.register(device);
+	}
+
+	/**
+	 * Shares the registry of the attached devices with the other handlers
+	 */
+	public void setDeviceRegistry(DeviceRegistry deviceRegistry) {
+		this.deviceRegistry = deviceRegistry;
 	}
 	
 	/**
 	 * If reboot attempt fails, set status to FAILED and the "message" 
 	 * field should be set accordingly, if the reboot is not supported, 
 	 * set status to NOTSUPPORTED and optionally set "message" accordingly
+	 * 
+	 * The reboot of an attached device runs in two steps, the scheduler waits
+	 * for the device to come back without holding a thread.
 	 */
-	private static class RebootTask implements Runnable {
+	private static class RebootTask implements DeviceActionScheduler.Action {
 		
 		private DeviceAction deviceAction;
 		private GatewayActionHandlerSample handler;
+		private Device rebooting;
 
 		public RebootTask(DeviceAction deviceAction, GatewayActionHandlerSample handler) {
 			this.deviceAction = deviceAction;
@@ -55,14 +65,18 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 		}
 
 		@Override
-		public void run() {
+		public long step() {
+			if(rebooting != null) {
+				handler.completeReboot(rebooting, deviceAction);
+				return -1;
+			}
 			System.out.println(" --> Reboot action requested for device " + deviceAction.getDeviceId());
-			Device device = handler.getDevice(handler.getKey(deviceAction));
+			Device device = handler.getDevice(deviceAction.getTypeId(), deviceAction.getDeviceId());
 			if(device != null) {
-				device.reboot(deviceAction);
+				rebooting = device;
+				return device.startReboot(deviceAction);
 			} else if(handler.isGateway(deviceAction)) {
 				ProcessBuilder processBuilder = null;
-				Process p = null;
 				
 				String osname = System.getProperty("os.name");
 				
@@ -75,29 +89,26 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 				processBuilder.redirectErrorStream(true);
 				processBuilder.inheritIO();
 				
-				
-				boolean status = false;
-				String msg = null;
 				try {
-					p = processBuilder.start();
-					// wait for say 2 minutes before giving it up
-					status = waitForCompletion(p, 2);
-					System.out.println("Executed restart command "+status);
+					// wait for say 2 minutes before giving it up, without holding the pool thread
+					handler.processSupervisor.start(processBuilder, 2, TimeUnit.MINUTES, null)
+							.whenComplete((result, e) -> {
+						boolean status = e == null && result.isSuccess();
+						System.out.println("Executed restart command status ("+status+")");
+						if(status == false) {
+							deviceAction.setStatus(DeviceAction.Status.FAILED,
+									e != null ? e.getMessage() : "Restart command " + result);
+						}
+					});
 				} catch (IOException e) {
-					msg = e.getMessage();
-				} catch (InterruptedException e) {
-					msg = e.getMessage();
-				}
-				
-				System.out.println("Executed restart command status ("+status+")");
-				if(status == false) {
-					deviceAction.setStatus(DeviceAction.Status.FAILED, msg);
+					System.out.println("Executed restart command status (false)");
+					deviceAction.setStatus(DeviceAction.Status.FAILED, e.getMessage());
 				}
 			} else {
 				System.err.println("Device "+deviceAction.getDeviceId() +" not found");
 				deviceAction.setStatus(DeviceAction.Status.FAILED, "Device Not found");
-				return;
 			}
+			return -1;
 		}
 		
 	}
@@ -107,7 +118,7 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 	 * field should be set accordingly, if the factory reset is not supported, 
 	 * set status to NOTSUPPORTED and optionally set "message" accordingly
 	 */
-	private static class FactoryResetTask implements Runnable {
+	private static class FactoryResetTask implements DeviceActionScheduler.Action {
 		
 		private DeviceAction deviceAction;
 		private GatewayActionHandlerSample handler;
@@ -118,20 +129,22 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 		}
 
 		@Override
-		public void run() {
+		public long step() {
 			System.out.println(" --> factory reset requested for device " + deviceAction.getDeviceId());
 			/**
 			 * This sample doesn't support factory reset, so respond accordingly
 			 */
 			deviceAction.setStatus(DeviceAction.Status.UNSUPPORTED);
 			System.out.println("<-- factory reset not supported");
+			return -1;
 		}
 	}
 	
-	private ExecutorService threadPoolExecutor = null;
+	private DeviceActionScheduler actionScheduler = null;
+	private DeviceActionFanOut actionFanOut = null;
 	
-	public Device getDevice(String key) {
-		return this.deviceMap.get(key);
+	public Device getDevice(String typeId, String deviceId) {
+		return this.deviceRegistry.get(typeId, deviceId);
 	}
 
 	public boolean isGateway(DeviceAction deviceAction) {
@@ -142,37 +155,6 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 		return false;
 	}
 
-	/**
-	 * Since JDK7 doesn't take any timeout parameter, we provide an workaround
-	 * that wakes up every second and checks for the completion status of the process.
-	 * @param process
-	 * @param minutes
-	 * @return
-	 * @throws InterruptedException 
-	 */
-	public static boolean waitForCompletion(Process process, int minutes) throws InterruptedException {
-		long timeToWait = (60 * minutes);
-		
-		int exitValue = -1;
-		for(int i = 0; i < timeToWait; i++) {
-			try {
-				exitValue = process.exitValue();
-			} catch(IllegalThreadStateException  e) {
-				// Process is still running
-			}
-			if(exitValue == 0) {
-				return true;
-			}
-			Thread.sleep(1000);
-		}
-		// Destroy the process forcibly
-		try {
-			process.destroy();
-		} catch(Exception e) {}
-	
-		return false;
-	}
-
 	public void setGateway(ManagedGateway gwClient) {
 		this.gateway = gwClient;
 	}
@@ -182,14 +164,45 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 		// set the support before handing over to the pool
 		action.setStatus(Status.ACCEPTED);
 		RebootTask task = new RebootTask(action, this);
-		threadPoolExecutor.execute(task);
-		
+		schedule(action, "reboot", task);
+	}
+
+	/**
+	 * Sends the manage request completing the reboot of an attached device,
+	 * batched with the completions of the other devices if there is a fan-out
+	 */
+	private void completeReboot(Device device, DeviceAction action) {
+		DeviceActionFanOut fanOut = this.actionFanOut;
+		if(fanOut != null) {
+			fanOut.complete(DeviceActionFanOut.ACTION_REBOOT, device, () -> device.completeReboot(action));
+		} else {
+			boolean status = device.completeReboot(action);
+			System.out.println("Executed restart command status ("+status+")");
+		}
+	}
+
+	/**
+	 * Queues the action in the lane of the gateway or of the attached devices,
+	 * an action repeated while the same action for the device is pending is
+	 * completed by the pending one
+	 */
+	private void schedule(DeviceAction action, String name, DeviceActionScheduler.Action task) {
+		DeviceActionScheduler.Priority priority = isGateway(action) ?
+				DeviceActionScheduler.Priority.GATEWAY : DeviceActionScheduler.Priority.DEVICE;
+		String key = name + ":" + action.getTypeId() + ":" + action.getDeviceId();
+		DeviceActionScheduler.Outcome outcome = actionScheduler.submit(priority, key, task);
+		if(outcome == DeviceActionScheduler.Outcome.DUPLICATE) {
+			System.out.println("Action " + key + " is already in progress");
+		} else if(outcome == DeviceActionScheduler.Outcome.REJECTED) {
+			System.err.println("Action " + key + " rejected, too many pending actions");
+			action.setStatus(DeviceAction.Status.FAILED, "Too many pending actions");
+		}
 	}
 
 	@Override
 	public void handleFactoryReset(DeviceAction action) {
 		/*FactoryResetTask task = new FactoryResetTask(action, this);
-		threadPoolExecutor.execute(task);*/
+		schedule(action, "factoryReset", task);*/
 		
 		// As the sample doesn't support factory Rest, it just sends unsupported message now
 		action.setStatus(Status.UNSUPPORTED);
@@ -197,22 +210,25 @@ public class GatewayActionHandlerSample extends DeviceActionHandler {
 		action.setMessage("Not supported at the moment");
 	}
 
-	public void setExecutor(ExecutorService threadPoolExecutor) {
-		this.threadPoolExecutor = threadPoolExecutor;
+	/**
+	 * Shares the supervisor of the restart process with the other handlers
+	 */
+	public void setProcessSupervisor(ProcessSupervisor processSupervisor) {
+		this.processSupervisor = processSupervisor;
 	}
-	
+
 	/**
-	 * Let us use the WIoTP client Id as the key to identify the device
-	 * @return
+	 * Sets the scheduler running the reboot and reset actions
 	 */
-	private String getKey(DeviceAction deviceAction) {
-		return new StringBuilder("d:").
-				append(this.gateway.getOrgId()).
-				append(':').
-				append(deviceAction.getTypeId()).
-				append(':').
-				append(deviceAction.getDeviceId()).toString();
+	public void setActionScheduler(DeviceActionScheduler actionScheduler) {
+		this.actionScheduler = actionScheduler;
 	}
 
+	/**
+	 * Batches the completions of the actions of the attached devices
+	 */
+	public void setActionFanOut(DeviceActionFanOut actionFanOut) {
+		this.actionFanOut = actionFanOut;
+	}
 
 }
@@ -15,83 +15,104 @@
 
 package com.zmartify.iotf.tools.gateway;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
 import com.ibm.iotf.client.gateway.Command;
 import com.ibm.iotf.client.gateway.GatewayCallback;
 import com.ibm.iotf.client.gateway.GatewayClient;
 import com.ibm.iotf.client.gateway.Notification;
+import com.zmartify.iotf.tools.gateway.CommandDispatcher.OverflowPolicy;
 import com.zmartify.iotf.tools.gateway.home.Device;
 
 /**
- * A Command call back class that handles the LED blink command
+ * A Command call back class that handles the commands for the gateway and the attached devices
  * 
  * The callback method processCommand() is invoked by the GatewayClient when it receives any command 
- * for Arduino Uno from Watson IoT Platform. The Gateway CommandCallback defines a BlockingQueue 
- * to store and process the commands (in separate thread) for smooth handling of MQTT publish message.
+ * from Watson IoT Platform. The commands are handed to a CommandDispatcher, which processes them on
+ * worker threads sharded by device, for smooth handling of MQTT publish message. A slow device
+ * therefore doesn't hold up the commands for the other devices.
  */
-public class GatewayCommandCallback implements GatewayCallback, Runnable {
+public class GatewayCommandCallback implements GatewayCallback {
+
+	public static final int DEFAULT_WORKERS = 4;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	public static final String RESUME_FIRMWARE_COMMAND = "resumeFirmware";
 
 	private GatewayClient gateway = null;
 	
-	// A queue to hold & process the commands
-	private BlockingQueue<Command> queue = new LinkedBlockingQueue<Command>();
-	private Map<String, Device> deviceMap = new HashMap<String, Device>();
+	// Processes the commands on the worker threads
+	private CommandDispatcher dispatcher;
+	private DeviceRegistry deviceRegistry;
+	private FirmwareRolloutOrchestrator rolloutOrchestrator;
 
 	public GatewayCommandCallback(GatewayClient gateway) {
+		this(gateway, new DeviceRegistry(), DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	public GatewayCommandCallback(GatewayClient gateway, DeviceRegistry deviceRegistry, int workers,
+			int queueCapacity, OverflowPolicy overflowPolicy) {
 		this.gateway = gateway;
+		this.deviceRegistry = deviceRegistry;
+		this.dispatcher = new CommandDispatcher(workers, queueCapacity, overflowPolicy);
 	}
 	
-	public void addDeviceInterface(String deviceId, Device device) {
-		deviceMap.put(deviceId, device);
+	public void addDeviceInterface(Device device) {
+		deviceRegistry.register(device);
+	}
+
+	/**
+	 * Starts the worker threads processing the commands
+	 */
+	public void start() {
+		dispatcher.start();
+	}
+
+	public void stop() {
+		dispatcher.stop();
+	}
+
+	/**
+	 * Lets the resumeFirmware command of the gateway continue a firmware rollout
+	 * paused because too many devices of a wave failed
+	 */
+	public void setRolloutOrchestrator(FirmwareRolloutOrchestrator rolloutOrchestrator) {
+		this.rolloutOrchestrator = rolloutOrchestrator;
 	}
 
 	@Override
 	public void processCommand(Command cmd) {
 		try {
-			queue.put(cmd);
+			Device device = deviceRegistry.get(cmd.getDeviceType(), cmd.getDeviceId());
+			// check if this command is for the gateway
+			if(device == null && cmd.getDeviceId().equals(this.gateway.getGWDeviceId()) &&
+					cmd.getDeviceType().equals(this.gateway.getGWDeviceType())) {
+				dispatcher.dispatchGateway(() -> processGatewayCommand(cmd));
+			} else if(device == null) {
+				System.out.println("-->(DE) Got command for an unknown device:: "+cmd.getDeviceId());
+			} else {
+				dispatcher.dispatch(device.getKey(), () -> {
+					System.out.println("-->(DE) Got command for the device:: "+cmd.getDeviceId());
+					device.processCommand(cmd.getPayload());
+				});
+			}
 		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}			
 	}
 
-	@Override
-	public void run() {
-		while(true) {
-			Command cmd = null;
-			try {
-				cmd = queue.take();
-				Device device = deviceMap.get(getKey(cmd));
-				// check if this command is for the gateway
-				if(device == null && cmd.getDeviceId().equals(this.gateway.getGWDeviceId()) &&
-						cmd.getDeviceType().equals(this.gateway.getGWDeviceType())) {
-					System.out.println("-->(GW) Got command for this gateway:: "+cmd);
-					return;
-				} else {
-					System.out.println("-->(DE) Got command for the device:: "+cmd.getDeviceId());
-				}
-				device.processCommand(cmd.getPayload());
-			} catch (InterruptedException e1) {
-					// Ignore the Interuppted exception, retry
-					continue;
+	private void processGatewayCommand(Command cmd) {
+		System.out.println("-->(GW) Got command for this gateway:: "+cmd);
+		if(RESUME_FIRMWARE_COMMAND.equals(cmd.getCommand()) && rolloutOrchestrator != null) {
+			rolloutOrchestrator.resume();
+			for(FirmwareRolloutOrchestrator.Stage stage : FirmwareRolloutOrchestrator.Stage.values()) {
+				System.out.println(rolloutOrchestrator.getProgress(stage));
 			}
-				
 		}
 	}
 
 	/**
-	 * Let us use the WIoTP client Id as the key to identify the device
-	 * @return
+	 * @return number of commands discarded because the queue of the device was full
 	 */
-	private String getKey(Command cmd) {
-		return new StringBuilder("d:").
-				append(this.gateway.getOrgId()).
-				append(':').
-				append(cmd.getDeviceType()).
-				append(':').
-				append(cmd.getDeviceId()).toString();
+	public long getDroppedCommands() {
+		return dispatcher.getDropped();
 	}
 
 	@Override
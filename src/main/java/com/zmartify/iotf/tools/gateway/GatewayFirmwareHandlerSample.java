@@ -15,23 +15,19 @@
  */
 package com.zmartify.iotf.tools.gateway;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 import com.ibm.iotf.devicemgmt.DeviceFirmware;
 import com.ibm.iotf.devicemgmt.DeviceFirmwareHandler;
@@ -60,7 +56,10 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 	private static final String CLASS_NAME = GatewayFirmwareHandlerSample.class.getName();
 	private static final String DEPENDENCY_ERROR_MSG = "dependency problems - leaving unconfigured";
 	private static final String ERROR_MSG = "Errors were encountered while processing";
-	private static final String INSTALL_LOG_FILE = "install.log";
+	private static final String[] DEPENDENCY_ERROR_MARKERS = {
+			DEPENDENCY_ERROR_MSG, "dependency problems prevent configuration" };
+	private static final String[] ERROR_MARKERS = {
+			ERROR_MSG, "dpkg-deb: error:", "dpkg: error:" };
 	
 	private enum InstalStatus {
 		SUCCESS(0),
@@ -75,12 +74,95 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 		
 	}
 	
-	private Map<String, Device> deviceMap = new HashMap<String, Device>();
+	private DeviceRegistry deviceRegistry = new DeviceRegistry();
 	private ManagedGateway gateway;
+	private DiagnosticsPipeline diagnosticsPipeline;
+	private final FirmwareDownloader downloader = new FirmwareDownloader();
+	private FirmwareCache firmwareCache;
+	private ProcessSupervisor processSupervisor = new ProcessSupervisor();
+	private MarkerMatcher<InstalStatus> installMarkers = createInstallMarkers(
+			Collections.<String>emptyList(), Collections.<String>emptyList());
+	private boolean abortInstallOnError;
 	public String gatewayDownloadFirmwareName;
 	
-	public void addDeviceInterface(String key, Device device) {
-		deviceMap.put(key, device);
+	public void addDeviceInterface(Device device) {
+		deviceRegistry.register(device);
+	}
+
+	/**
+	 * Shares the registry of the attached devices with the other handlers
+	 */
+	public void setDeviceRegistry(DeviceRegistry deviceRegistry) {
+		this.deviceRegistry = deviceRegistry;
+	}
+
+	/**
+	 * Shares the downloaded images between the requests for the same firmware,
+	 * without a cache every request downloads its image
+	 */
+	public void setFirmwareCache(FirmwareCache firmwareCache) {
+		this.firmwareCache = firmwareCache;
+	}
+
+	/**
+	 * Provides the firmware image in the file, from the cache if there is one
+	 * @return the size of the image
+	 */
+	private long fetchFirmware(URL url, String verifier, File file,
+			FirmwareDownloader.ProgressListener listener) throws IOException {
+		FirmwareCache cache = this.firmwareCache;
+		if(cache != null) {
+			return cache.fetch(url, verifier, file, listener);
+		}
+		return FirmwareCache.download(downloader, url, verifier, file, listener);
+	}
+
+	/**
+	 * Shares the supervisor of the installer processes with the other handlers
+	 */
+	public void setProcessSupervisor(ProcessSupervisor processSupervisor) {
+		this.processSupervisor = processSupervisor;
+	}
+
+	/**
+	 * Adds markers of the installer output to the known dpkg error markers,
+	 * the first marker found in the output decides the install status
+	 */
+	public void setInstallMarkers(List<String> dependencyErrorMarkers, List<String> errorMarkers) {
+		this.installMarkers = createInstallMarkers(dependencyErrorMarkers, errorMarkers);
+	}
+
+	/**
+	 * Destroys the installer as soon as its output reports an error rather
+	 * than waiting for it to give up
+	 */
+	public void setAbortInstallOnError(boolean abortInstallOnError) {
+		this.abortInstallOnError = abortInstallOnError;
+	}
+
+	private static MarkerMatcher<InstalStatus> createInstallMarkers(List<String> dependencyErrorMarkers,
+			List<String> errorMarkers) {
+		LinkedHashMap<String, InstalStatus> markers = new LinkedHashMap<String, InstalStatus>();
+		for(String marker : DEPENDENCY_ERROR_MARKERS) {
+			markers.put(marker, InstalStatus.DEPENDENCY_ERROR);
+		}
+		for(String marker : dependencyErrorMarkers) {
+			markers.putIfAbsent(marker, InstalStatus.DEPENDENCY_ERROR);
+		}
+		for(String marker : ERROR_MARKERS) {
+			markers.putIfAbsent(marker, InstalStatus.ERROR);
+		}
+		for(String marker : errorMarkers) {
+			markers.putIfAbsent(marker, InstalStatus.ERROR);
+		}
+		return new MarkerMatcher<InstalStatus>(markers);
+	}
+
+	/**
+	 * Delivers the gateway logs in the background instead of on the download thread
+	 */
+	public void setDiagnosticsPipeline(DiagnosticsPipeline diagnosticsPipeline) {
+		this.diagnosticsPipeline = diagnosticsPipeline;
 	}
 	
 	public GatewayFirmwareHandlerSample() {
@@ -91,7 +173,9 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 	 * the download process is common for all the devices wherein one need to
 	 * download the firmware image from the given URL.</p>
 	 */
-	private static class FirmwareDownloadTask implements Runnable {
+	private static class FirmwareDownloadTask implements FirmwareRolloutOrchestrator.Task {
+		
+		private static final String PROGRESS_KEY = "firmware-download";
 		
 		private DeviceFirmware deviceFirmware;
 		private GatewayFirmwareHandlerSample handler;
@@ -102,27 +186,23 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 		}
 
 		@Override
-		public void run() {
+		public boolean execute() {
 			System.out.println(" --> Firmware Download requested for device "+deviceFirmware.getDeviceId());
 			boolean success = false;
-			URL firmwareURL = null;
-			URLConnection urlConnection = null;
 			
 			String downloadedFirmwareName = "";
 			
 			// As a first step inform the server about the firmware start
 			deviceFirmware.setState(FirmwareState.DOWNLOADING);
 			
-			Device device = handler.getDevice(handler.getKey(deviceFirmware));
+			Device device = handler.getDevice(deviceFirmware.getTypeId(), deviceFirmware.getDeviceId());
 			/**
 			 * start downloading the firmware image
 			 */
 			try {
 				System.out.println(CLASS_NAME + ": Downloading Firmware from URL " + deviceFirmware.getUrl());
 				
-				firmwareURL = new URL(deviceFirmware.getUrl());
-				urlConnection = firmwareURL.openConnection();
-				int fileSize = urlConnection.getContentLength();
+				URL firmwareURL = new URL(deviceFirmware.getUrl());
 				
 				if(deviceFirmware.getName() != null &&
 						!"".equals(deviceFirmware.getName())) {
@@ -132,78 +212,53 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 					downloadedFirmwareName = deviceFirmware.getDeviceId() + "firmware_" + new Date().getTime() + ".deb";
 				}
 				
-				File file = new File(downloadedFirmwareName);
-				BufferedInputStream bis = new BufferedInputStream(urlConnection.getInputStream());
-				BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file.getName()));
-				
-				// count the download size to send the progress report as DiagLog to Watson IoT Platform
-				int downloadedSize = 0;
+				File file = new File(new File(downloadedFirmwareName).getName());
 				
-				int data = bis.read();
-				downloadedSize += 1;
-				if(data != -1) {
-					bos.write(data);
-					byte[] block = new byte[1024];
-					int previousProgress = 0;
-					while (true) {
-						int len = bis.read(block, 0, block.length);
-						if(len != -1) {
-							downloadedSize += len;
-							// Send the progress update
-							if(fileSize > 0) {
-								int progress = (int) (((float)downloadedSize / fileSize) * 100);
-								if(progress > previousProgress) {
-									String message = "Firmware Download progress: "+progress + "%";
-									if(device != null) {
-										// This download is for device, so send device log
-										device.setLog(LogSeverity.informational, message, null, new Date());
-									} else {
-										handler.addGatewayLog(message, new Date(), LogSeverity.informational);
-									}
-									System.out.println(message);
-								}
-							} else {
-								// If we can't retrieve the filesize, let us update how much we have download so far
-								String message = "Downloaded : "+ downloadedSize + " bytes so far";
-								if(device != null) {
-									// This download is for device, so send device log
-									device.setLog(LogSeverity.informational, message, null, new Date());
-								} else {
-									handler.addGatewayLog(message, new Date(), LogSeverity.informational);
-								}
-								System.out.println(message);
+				// send the progress report as DiagLog to Watson IoT Platform
+				handler.fetchFirmware(firmwareURL, deviceFirmware.getVerifier(), file,
+						new FirmwareDownloader.ProgressListener() {
+					private long previousProgress = 0;
+					
+					@Override
+					public void progress(long downloadedSize, long fileSize) {
+						String message;
+						if(fileSize > 0) {
+							long progress = downloadedSize * 100 / fileSize;
+							if(progress <= previousProgress) {
+								return;
 							}
-							bos.write(block, 0, len);
+							previousProgress = progress;
+							message = "Firmware Download progress: "+progress + "%";
+						} else {
+							// If we can't retrieve the filesize, let us update how much we have download so far
+							message = "Downloaded : "+ downloadedSize + " bytes so far";
+						}
+						if(device != null) {
+							// This download is for device, so send device log
+							device.setProgressLog(PROGRESS_KEY, message, new Date());
 						} else {
-							break;
+							handler.addGatewayProgress(message, new Date());
 						}
+						System.out.println(message);
 					}
-					bos.close();
-					bis.close();
-					
-					success = true;
-				} else {
-					//There is no data to read, so throw an exception
-					deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.INVALID_URI);
-				}
+				});
 				
-				// Verify the firmware image if verifier is set
-				if(deviceFirmware.getVerifier() != null && !deviceFirmware.getVerifier().equals("")) {
-					success = verifyFirmware(file, deviceFirmware.getVerifier());
-					
-					/**
-					 * As per the documentation, If a firmware verifier has been set, the device should 
-					 * attempt to verify the firmware image. 
-					 * 
-					 * If the image verification fails, mgmt.firmware.state should be set to 0 (Idle) 
-					 * and mgmt.firmware.updateStatus should be set to the error status value 4 (Verification Failed).
-					 */
-					if(success == false) {
-						deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.VERIFICATION_FAILED);
-						// the firmware state is updated to IDLE below
-					}
-				}
+				success = true;
 				
+			} catch(FirmwareCache.EmptyImageException ee) {
+				//There is no data to read
+				deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.INVALID_URI);
+			} catch(FirmwareCache.VerificationFailedException ve) {
+				/**
+				 * As per the documentation, If a firmware verifier has been set, the device should 
+				 * attempt to verify the firmware image. 
+				 * 
+				 * If the image verification fails, mgmt.firmware.state should be set to 0 (Idle) 
+				 * and mgmt.firmware.updateStatus should be set to the error status value 4 (Verification Failed).
+				 */
+				System.out.println(ve.getMessage());
+				deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.VERIFICATION_FAILED);
+				// the firmware state is updated to IDLE below
 			} catch(MalformedURLException me) {
 				// Invalid URL, so set the status to reflect the same,
 				deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.INVALID_URI);
@@ -233,33 +288,108 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 			}
 			
 			System.out.println("<-- Firmware Download END...("+success+ ")");
+			return success;
 		}
 		
 	}
 	
-	private ExecutorService threadPoolExecutor = null;
+	private FirmwareRolloutOrchestrator rolloutOrchestrator = null;
+	private DeviceActionScheduler actionScheduler = null;
 	
-	private void addGatewayLog(String message, Date date,
-			LogSeverity severity) {
-		gateway.addGatewayLog(message, date, severity);
-		
+	/**
+	 * Progress of the gateway's own download, only the latest progress is
+	 * sent when the logs are delivered by the diagnostics pipeline
+	 */
+	private void addGatewayProgress(String message, Date date) {
+		DiagnosticsPipeline pipeline = this.diagnosticsPipeline;
+		if(pipeline != null) {
+			pipeline.addGatewayProgress(FirmwareDownloadTask.PROGRESS_KEY, message, date);
+		} else {
+			gateway.addGatewayLog(message, date, LogSeverity.informational);
+		}
 	}
 
 	@Override
 	public void downloadFirmware(DeviceFirmware deviceFirmware) {
 		FirmwareDownloadTask task = new FirmwareDownloadTask(deviceFirmware, this);
-		threadPoolExecutor.execute(task);
+		rolloutOrchestrator.submit(FirmwareRolloutOrchestrator.Stage.DOWNLOAD, deviceFirmware.getDeviceId(), task);
 	}
 
 	@Override
 	public void updateFirmware(DeviceFirmware deviceFirmware) {
 		FirmwareUpdateTask task = new FirmwareUpdateTask(deviceFirmware, this);
-		threadPoolExecutor.execute(task);
+		// the installs on the attached devices don't take the install slots of the gateway
+		FirmwareRolloutOrchestrator.Stage stage = getDevice(deviceFirmware.getTypeId(),
+				deviceFirmware.getDeviceId()) != null ? FirmwareRolloutOrchestrator.Stage.DEVICE_INSTALL
+						: FirmwareRolloutOrchestrator.Stage.INSTALL;
+		rolloutOrchestrator.submit(stage, deviceFirmware.getDeviceId(), task);
+	}
+
+	/**
+	 * Updates the firmware of an attached device in steps on the action scheduler,
+	 * which waits between the steps without holding a thread
+	 */
+	private CompletableFuture<Boolean> updateDevice(Device device, DeviceFirmware deviceFirmware) {
+		CompletableFuture<Boolean> update = new CompletableFuture<Boolean>();
+		String key = "firmwareUpdate:" + deviceFirmware.getTypeId() + ":" + deviceFirmware.getDeviceId();
+		DeviceActionScheduler.Outcome outcome = actionScheduler.submit(DeviceActionScheduler.Priority.DEVICE,
+				key, new DeviceUpdateTask(device, deviceFirmware, update));
+		if(outcome == DeviceActionScheduler.Outcome.DUPLICATE) {
+			// the update in progress reports the status
+			System.out.println("Firmware update " + key + " is already in progress");
+			update.complete(false);
+		} else if(outcome == DeviceActionScheduler.Outcome.REJECTED) {
+			System.err.println("Firmware update " + key + " rejected, too many pending actions");
+			deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+			deviceFirmware.setState(FirmwareState.IDLE);
+			update.complete(false);
+		}
+		return update;
+	}
+
+	/**
+	 * The steps of the firmware update of an attached device, completing
+	 * the update future after the last one
+	 */
+	private static class DeviceUpdateTask implements DeviceActionScheduler.Action {
+		private final Device device;
+		private final DeviceFirmware deviceFirmware;
+		private final CompletableFuture<Boolean> update;
+		// steps run one after the other, never concurrently
+		private int step;
+
+		public DeviceUpdateTask(Device device, DeviceFirmware deviceFirmware,
+				CompletableFuture<Boolean> update) {
+			this.device = device;
+			this.deviceFirmware = deviceFirmware;
+			this.update = update;
+		}
+
+		@Override
+		public long step() {
+			try {
+				long delay = step == 0 ? device.startFirmwareUpdate(deviceFirmware)
+						: device.continueFirmwareUpdate(deviceFirmware, step);
+				step++;
+				if(delay < 0) {
+					update.complete(true);
+				}
+				return delay;
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+				deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+				deviceFirmware.setState(FirmwareState.IDLE);
+				update.complete(false);
+				return -1;
+			}
+		}
 	}
 	
-	private static class FirmwareUpdateTask implements Runnable {
+	private static class FirmwareUpdateTask implements FirmwareRolloutOrchestrator.AsyncTask {
 		DeviceFirmware deviceFirmware;
 		GatewayFirmwareHandlerSample handler;
+		// classification of the installer output, written by the watcher thread of the installer
+		private volatile InstalStatus instalStatus = InstalStatus.SUCCESS;
 		
 		public FirmwareUpdateTask(DeviceFirmware deviceFirmware,
 				GatewayFirmwareHandlerSample handler) {
@@ -287,153 +417,123 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 		 * yes to prompts' or 'don't ask me if it's ok, just install it already' 
 		 * option -- very useful for scripted silent installs).</p> 
 		 * 
+		 * <p>The installer output is classified line by line while it runs, and the
+		 * install thread is free until the installer ended. The same goes for the
+		 * steps of the update of an attached device.</p>
 		 */
-		public void run() {
+		@Override
+		public CompletionStage<Boolean> start() {
 			System.out.println("--> Firmware update requested for device = "+deviceFirmware.getDeviceId());
 			// As a first step inform the server about the start of firmware update
 			deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.IN_PROGRESS);
+			CompletableFuture<Boolean> update;
 			try {
 				/**
 				 * Call the attached device interface to update the firmware if its
 				 * targeted for attached devices.
 				 */
-				Device device = handler.getDevice(handler.getKey(deviceFirmware));
+				Device device = handler.getDevice(deviceFirmware.getTypeId(), deviceFirmware.getDeviceId());
 				if(device != null) {
-					device.updateFirmware(deviceFirmware);
-					return;
+					return handler.updateDevice(device, deviceFirmware);
 				}
 				
-				
 				// Code to update the firmware on the Gateway
-				ProcessBuilder pkgInstaller = null;
-				ProcessBuilder dependencyInstaller = null;
-				Process p = null;
-				
-				pkgInstaller = new ProcessBuilder("sudo", "dpkg", "-i", handler.gatewayDownloadFirmwareName);
+				ProcessBuilder pkgInstaller = new ProcessBuilder("sudo", "dpkg", "-i", handler.gatewayDownloadFirmwareName);
 				pkgInstaller.redirectErrorStream(true);
-				pkgInstaller.redirectOutput(new File(INSTALL_LOG_FILE));
 				
-				dependencyInstaller = new ProcessBuilder("sudo", "apt-get", "-fy", "install");
+				update = handler.processSupervisor.start(pkgInstaller, 5, TimeUnit.MINUTES, this::classify)
+						.thenCompose(this::installed);
+			} catch (IOException e) {
+				e.printStackTrace();
+				update = failed(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+			} catch (OutOfMemoryError oom) {
+				update = failed(FirmwareUpdateStatus.OUT_OF_MEMORY);
+			}
+			return update.handle((success, e) -> {
+				if(e != null) {
+					e.printStackTrace();
+					deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+				}
+				deviceFirmware.setState(FirmwareState.IDLE);
+				
+				/**
+				 * Delete the temporary firmware file
+				 */
+				deleteFile(handler.gatewayDownloadFirmwareName);
+				
+				handler.gatewayDownloadFirmwareName = null;
+				System.out.println("<-- Firmware update End...");
+				return e == null && success;
+			});
+		}
+		
+		/**
+		 * Decides the install status on the first marker in the output
+		 * @return false to abort the installer
+		 */
+		private boolean classify(String line) {
+			if(instalStatus == InstalStatus.SUCCESS) {
+				InstalStatus status = handler.installMarkers.match(line);
+				if(status != null) {
+					instalStatus = status;
+					return status != InstalStatus.ERROR || !handler.abortInstallOnError;
+				}
+			}
+			return true;
+		}
+		
+		private CompletableFuture<Boolean> installed(ProcessSupervisor.Result result) {
+			if(result.isTimedOut()) {
+				System.err.println("Installing the image " + handler.gatewayDownloadFirmwareName + " timed out");
+				return failed(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+			}
+			// check for install error
+			if(instalStatus == InstalStatus.DEPENDENCY_ERROR) {
+				System.err.println("Following dependency error occured while "
+						+ "installing the image " + handler.gatewayDownloadFirmwareName);
+				printOutput(result);
+				
+				System.out.println("Trying to update the dependency with the following command...");
+				System.out.println("sudo apt-get -fy install");
+				ProcessBuilder dependencyInstaller = new ProcessBuilder("sudo", "apt-get", "-fy", "install");
 				dependencyInstaller.redirectErrorStream(true);
 				dependencyInstaller.inheritIO();
-	
 				try {
-					p = pkgInstaller.start();
-					boolean status = waitForCompletion(p, 5);
-					if(status == false) {
-						p.destroy();
-						deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
-						return;
-					}
-					// check for install error
-					InstalStatus instalStatus = ParseInstallLog();
-					if(instalStatus == InstalStatus.DEPENDENCY_ERROR) {
-						System.err.println("Following dependency error occured while "
-								+ "installing the image " + handler.gatewayDownloadFirmwareName);
-						System.err.println(getInstallLog(INSTALL_LOG_FILE));
-						
-						System.out.println("Trying to update the dependency with the following command...");
-						System.out.println("sudo apt-get -fy install");
-						p = dependencyInstaller.start();
-						status = waitForCompletion(p, 5);
-					} else if(instalStatus == InstalStatus.ERROR) {
-						System.err.println("Following error occured while "
-								+ "installing the image " + handler.gatewayDownloadFirmwareName);
-						System.err.println(getInstallLog(INSTALL_LOG_FILE));
-						deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
-						return;
-					}
-					System.out.println("Firmware Update command "+status);
-					deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.SUCCESS);
+					return handler.processSupervisor.start(dependencyInstaller, 5, TimeUnit.MINUTES, null)
+							.thenCompose(this::updated);
 				} catch (IOException e) {
 					e.printStackTrace();
-					deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+					return failed(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
 				}
-			} catch (OutOfMemoryError oom) {
-				deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.OUT_OF_MEMORY);
+			} else if(instalStatus == InstalStatus.ERROR || result.getExitCode() != 0) {
+				System.err.println("Following error occured while "
+						+ "installing the image " + handler.gatewayDownloadFirmwareName + " (" + result + ")");
+				printOutput(result);
+				return failed(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
 			}
-			deviceFirmware.setState(FirmwareState.IDLE);
+			return updated(result);
+		}
 		
-			/**
-			 * Delete the temporary firmware file
-			 */
-			deleteFile(handler.gatewayDownloadFirmwareName);
-			deleteFile(INSTALL_LOG_FILE);
-			
-			handler.gatewayDownloadFirmwareName = null;
-			System.out.println("<-- Firmware update End...");
+		private CompletableFuture<Boolean> updated(ProcessSupervisor.Result result) {
+			System.out.println("Firmware Update command "+result.isSuccess());
+			if(!result.isSuccess()) {
+				return failed(FirmwareUpdateStatus.UNSUPPORTED_IMAGE);
+			}
+			deviceFirmware.setUpdateStatus(FirmwareUpdateStatus.SUCCESS);
+			return CompletableFuture.completedFuture(true);
 		}
 		
-	}
-	
-	/**
-	 * Since JDK7 doesn't take any timeout parameter, we provide an workaround
-	 * that wakes up every second and checks for the completion status of the process.
-	 * @param process
-	 * @param minutes
-	 * @return
-	 * @throws InterruptedException 
-	 */
-	public static boolean waitForCompletion(Process process, int minutes) throws InterruptedException {
-		long timeToWait = (60 * minutes);
+		private CompletableFuture<Boolean> failed(FirmwareUpdateStatus status) {
+			deviceFirmware.setUpdateStatus(status);
+			return CompletableFuture.completedFuture(false);
+		}
 		
-		int exitValue = -1;
-		for(int i = 0; i < timeToWait; i++) {
-			try {
-				exitValue = process.exitValue();
-			} catch(IllegalThreadStateException  e) {
-				// Process is still running
-			}
-			if(exitValue == 0) {
-				return true;
+		private static void printOutput(ProcessSupervisor.Result result) {
+			for(String line : result.getOutput()) {
+				System.err.println(line);
 			}
-			Thread.sleep(1000);
-		}
-		// Destroy the process forcibly
-		try {
-			process.destroy();
-		} catch(Exception e) {}
-	
-		return false;
-	}
-
-	
-	private static InstalStatus ParseInstallLog() throws FileNotFoundException {
-		try {
-			File file = new File(INSTALL_LOG_FILE);
-		    Scanner scanner = new Scanner(file);
-
-		    while (scanner.hasNextLine()) {
-		        String line = scanner.nextLine();
-		        if(line.contains(DEPENDENCY_ERROR_MSG)) {
-		        	scanner.close();
-		            return InstalStatus.DEPENDENCY_ERROR;
-		        } else if(line.contains(ERROR_MSG)) {
-		        	scanner.close();
-		        	return InstalStatus.ERROR;
-		        }
-		    }
-		    scanner.close();
-		} catch(FileNotFoundException e) { 
-		    throw e;
 		}
-		return InstalStatus.SUCCESS;
-	}
-	
-	public static String getInstallLog(String fileName) throws FileNotFoundException {
-		File file = new File(fileName);
-	    Scanner scanner = new Scanner(file);
-	    StringBuilder sb = new StringBuilder();
-	    while (scanner.hasNextLine()) {
-	        String line = scanner.nextLine();
-	        sb.append(line);
-	        sb.append('\n');
-	    }
-	    scanner.close();
-	    return sb.toString();
+		
 	}
 	
 	public static void deleteFile(String fileName) {
@@ -448,52 +548,26 @@ public class GatewayFirmwareHandlerSample extends DeviceFirmwareHandler {
 		}
 	}
 	
-	private static boolean verifyFirmware(File file, String verifier) throws IOException {
-		FileInputStream fis = null;
-		String md5 = null;
-		try {
-			fis = new FileInputStream(file);
-			md5 = org.apache.commons.codec.digest.DigestUtils.md5Hex(fis);
-			System.out.println("Downloaded Firmware MD5 sum:: "+ md5);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			fis.close();
-		}
-		if(verifier.equals(md5)) {
-			System.out.println("Firmware verification successful");
-			return true;
-		}
-		System.out.println("Download firmware checksum verification failed.. "
-				+ "Expected "+verifier + " found "+md5);
-		return false;
-	}
-
 	public void setGateway(ManagedGateway gwClient) {
 		this.gateway = gwClient;
 	}
 	
-	public Device getDevice(String key) {
-		return this.deviceMap.get(key);
+	public Device getDevice(String typeId, String deviceId) {
+		return this.deviceRegistry.get(typeId, deviceId);
 	}
-	
+
 	/**
-	 * Let us use the WIoTP client Id as the key to identify the device
-	 * @return
+	 * Sets the orchestrator running the downloads and updates in waves
 	 */
-	private String getKey(DeviceFirmware firmware) {
-		return new StringBuilder("d:").
-				append(this.gateway.getOrgId()).
-				append(':').
-				append(firmware.getTypeId()).
-				append(':').
-				append(firmware.getDeviceId()).toString();
+	public void setRolloutOrchestrator(FirmwareRolloutOrchestrator rolloutOrchestrator) {
+		this.rolloutOrchestrator = rolloutOrchestrator;
 	}
 
-	public void setExecutor(ExecutorService threadPoolExecutor) {
-		this.threadPoolExecutor = threadPoolExecutor;
+	/**
+	 * Sets the scheduler running the steps of the firmware updates of the attached devices
+	 */
+	public void setActionScheduler(DeviceActionScheduler actionScheduler) {
+		this.actionScheduler = actionScheduler;
 	}
 
 }
@@ -0,0 +1,138 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds any of a set of fixed markers in a text in a single pass (Aho-Corasick).
+ *
+ * The markers are compiled into a trie with failure links once, so classifying a line of output costs one step per
+ * character however many markers there are, instead of one scan of the line per marker. Each marker maps to a
+ * value; when a text contains several markers, the value of the marker added first wins.
+ *
+ * A matcher is immutable and can be shared between threads.
+ */
+public final class MarkerMatcher<T> {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final int[] NO_TARGETS = new int[0];
+
+    // per node: the sorted characters of the outgoing edges and their target nodes
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] failure;
+    // per node: the lowest priority of the markers ending here or in a suffix, Integer.MAX_VALUE if none
+    private final int[] priority;
+    private final List<T> values;
+    private final List<String> markers;
+
+    /**
+     * @param markers the markers and their values, in priority order; empty markers are ignored
+     */
+    public MarkerMatcher(LinkedHashMap<String, T> markers) {
+        this.values = new ArrayList<T>();
+        this.markers = new ArrayList<String>();
+        List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+        List<Integer> ends = new ArrayList<Integer>();
+        trie.add(new LinkedHashMap<Character, Integer>());
+        ends.add(Integer.MAX_VALUE);
+        for (Map.Entry<String, T> entry : markers.entrySet()) {
+            String marker = entry.getKey();
+            if (marker == null || marker.isEmpty()) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < marker.length(); i++) {
+                Integer next = trie.get(node).get(marker.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new LinkedHashMap<Character, Integer>());
+                    ends.add(Integer.MAX_VALUE);
+                    trie.get(node).put(marker.charAt(i), next);
+                }
+                node = next;
+            }
+            ends.set(node, Math.min(ends.get(node), this.values.size()));
+            this.values.add(entry.getValue());
+            this.markers.add(marker);
+        }
+
+        int size = trie.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        failure = new int[size];
+        priority = new int[size];
+        for (int node = 0; node < size; node++) {
+            Map<Character, Integer> edges = trie.get(node);
+            char[] k = edges.isEmpty() ? NO_KEYS : new char[edges.size()];
+            int i = 0;
+            for (Character c : edges.keySet()) {
+                k[i++] = c;
+            }
+            Arrays.sort(k);
+            int[] t = edges.isEmpty() ? NO_TARGETS : new int[k.length];
+            for (i = 0; i < k.length; i++) {
+                t[i] = edges.get(k[i]);
+            }
+            keys[node] = k;
+            targets[node] = t;
+            priority[node] = ends.get(node);
+        }
+
+        // failure links in breadth first order, a node inherits the markers of its failure node
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (int child : targets[0]) {
+            failure[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int i = 0; i < keys[node].length; i++) {
+                int child = targets[node][i];
+                int f = failure[node];
+                int next;
+                while ((next = step(f, keys[node][i])) < 0 && f != 0) {
+                    f = failure[f];
+                }
+                failure[child] = next < 0 ? 0 : next;
+                priority[child] = Math.min(priority[child], priority[failure[child]]);
+                queue.add(child);
+            }
+        }
+    }
+
+    private int step(int node, char c) {
+        int i = Arrays.binarySearch(keys[node], c);
+        return i < 0 ? -1 : targets[node][i];
+    }
+
+    /**
+     * @return the value of the highest priority marker contained in the text, null if there is none
+     */
+    public T match(CharSequence text) {
+        int best = Integer.MAX_VALUE;
+        int node = 0;
+        for (int i = 0; i < text.length() && best > 0; i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = step(node, c)) < 0 && node != 0) {
+                node = failure[node];
+            }
+            node = next < 0 ? 0 : next;
+            best = Math.min(best, priority[node]);
+        }
+        return best == Integer.MAX_VALUE ? null : values.get(best);
+    }
+
+    /**
+     * @return the markers in priority order
+     */
+    public List<String> getMarkers() {
+        return new ArrayList<String>(markers);
+    }
+}
@@ -0,0 +1,211 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the installer and reboot commands of the gateway without a pool thread waiting for them.
+ *
+ * {@link #start} returns a future completed with the exit code as soon as the process ends, whatever the code.
+ * Every process gets a watcher thread of its own that reaps the exit code, which is what Process.onExit() does on
+ * newer Java versions, and a thread streaming the output of the process, line by line, to a listener while it
+ * runs. A process still running after its timeout is destroyed, forcibly if it doesn't end within the grace period, and
+ * the future is completed as timed out. The listener can have the process destroyed as well, when the output tells
+ * that it fails anyway.
+ *
+ * The future is completed on the watcher thread once the output is read, so the listener has seen every line;
+ * the dependent stages run there and must not block for long.
+ */
+public class ProcessSupervisor {
+
+    public static final long DEFAULT_GRACE_MILLIS = 5000;
+    public static final int DEFAULT_MAX_OUTPUT_LINES = 200;
+
+    private final long graceMillis;
+    private final int maxOutputLines;
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Notified of every output line of a process on its output thread
+     */
+    public interface OutputListener {
+        /**
+         * @return false to destroy the process, its remaining output is still read but not passed on
+         */
+        boolean line(String line);
+    }
+
+    /**
+     * An ended process
+     */
+    public static final class Result {
+        private final int exitCode;
+        private final boolean timedOut;
+        private final boolean aborted;
+        private final List<String> output;
+
+        Result(int exitCode, boolean timedOut, boolean aborted, List<String> output) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.aborted = aborted;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return true if the process was destroyed because it ran longer than its timeout
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @return true if the process was destroyed on request of the output listener
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        public boolean isSuccess() {
+            return !timedOut && !aborted && exitCode == 0;
+        }
+
+        /**
+         * @return the last lines of the output, empty if the output was not piped
+         */
+        public List<String> getOutput() {
+            return output;
+        }
+
+        @Override
+        public String toString() {
+            return timedOut ? "timed out" : aborted ? "aborted" : "exit code " + exitCode;
+        }
+    }
+
+    public ProcessSupervisor() {
+        this(DEFAULT_GRACE_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_OUTPUT_LINES);
+    }
+
+    /**
+     * @param grace time a destroyed process gets to end before it is destroyed forcibly
+     * @param maxOutputLines number of the last output lines kept in the result
+     */
+    public ProcessSupervisor(long grace, TimeUnit unit, int maxOutputLines) {
+        this.graceMillis = Math.max(0, unit.toMillis(grace));
+        this.maxOutputLines = Math.max(0, maxOutputLines);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "process-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts the process. If the builder pipes the output, the output is streamed to the listener, merge the error
+     * stream with {@link ProcessBuilder#redirectErrorStream} to get both.
+     *
+     * @param listener notified of every output line on the output thread, may be null
+     * @return a future completed when the process ended or was destroyed after the timeout
+     * @throws IOException if the process could not be started
+     */
+    public CompletableFuture<Result> start(ProcessBuilder builder, long timeout, TimeUnit unit,
+            OutputListener listener) throws IOException {
+        boolean piped = builder.redirectOutput() == Redirect.PIPE;
+        Process process = builder.start();
+        CompletableFuture<Result> result = new CompletableFuture<Result>();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        AtomicBoolean aborted = new AtomicBoolean();
+        ScheduledFuture<?> timeoutTask = timer.schedule(() -> {
+            timedOut.set(true);
+            destroy(process);
+        }, timeout, unit);
+
+        String name = "process-" + count.getAndIncrement() + "-" + builder.command().get(0);
+        Deque<String> output = new ArrayDeque<String>();
+        Thread pump = null;
+        if (piped) {
+            // on a thread of its own, a child of the process may keep the output open after the process ended
+            pump = new Thread(() -> pump(process, listener, output, aborted), name + "-output");
+            pump.setDaemon(true);
+            pump.start();
+        }
+        Thread outputPump = pump;
+        Thread watcher = new Thread(() -> {
+            try {
+                int exitCode = process.waitFor();
+                timeoutTask.cancel(false);
+                if (outputPump != null) {
+                    outputPump.join(graceMillis);
+                }
+                List<String> lines;
+                synchronized (output) {
+                    lines = new ArrayList<String>(output);
+                }
+                result.complete(new Result(exitCode, timedOut.get(), aborted.get(), lines));
+            } catch (InterruptedException | RuntimeException e) {
+                timeoutTask.cancel(false);
+                process.destroyForcibly();
+                result.completeExceptionally(e);
+            }
+        }, name);
+        watcher.setDaemon(true);
+        watcher.start();
+        return result;
+    }
+
+    private void destroy(Process process) {
+        process.destroy();
+        timer.schedule(() -> {
+            if (process.isAlive()) {
+                process.destroyForcibly();
+            }
+        }, graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void pump(Process process, OutputListener listener, Deque<String> output, AtomicBoolean aborted) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (maxOutputLines > 0) {
+                    synchronized (output) {
+                        if (output.size() == maxOutputLines) {
+                            output.poll();
+                        }
+                        output.add(line);
+                    }
+                }
+                if (listener != null && !aborted.get()) {
+                    boolean proceed = true;
+                    try {
+                        proceed = listener.line(line);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    if (!proceed && aborted.compareAndSet(false, true)) {
+                        destroy(process);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the output of a destroyed process may be closed under the reader
+        }
+    }
+}
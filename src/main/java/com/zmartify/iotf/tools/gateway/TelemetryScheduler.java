@@ -0,0 +1,247 @@
+package com.zmartify.iotf.tools.gateway;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zmartify.iotf.tools.gateway.home.Device;
+
+/**
+ * Publishes the telemetry of the attached devices by calling their run() method every event update interval.
+ *
+ * A single timer thread drives a hashed timing wheel: every tick it looks at one slot of the wheel and hands the
+ * devices that are due to a small pool of publishing threads, so thousands of devices don't need a thread or a
+ * scheduled future each. The first publish of every device is placed at a random point of its interval and
+ * every following one is moved by a small random jitter, which spreads the publishes evenly instead of sending
+ * them to the MQTT client in bursts. The jitter doesn't accumulate, a device keeps its average rate.
+ *
+ * When a device is due while its previous publish is still running, the tick is skipped, so a slow device never
+ * has more than one publish queued or running. A publish the device runs itself while processing a command is not
+ * tracked here, the devices synchronize run() and processCommand() so both never overlap.
+ *
+ * As a DeviceRegistry listener the scheduler starts and stops publishing for the devices as they are registered
+ * and unregistered, devices without an update interval are left alone.
+ */
+public class TelemetryScheduler implements DeviceRegistry.Listener {
+
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    public static final int DEFAULT_THREADS = 4;
+    /** Maximum jitter of a publish, as a fraction of the interval */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    private final long tickNanos;
+    private final List<Entry>[] wheel;
+    private final int mask;
+    private final double jitter;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+    private final ConcurrentMap<Device, Entry> entries = new ConcurrentHashMap<Device, Entry>();
+    private final AtomicLong skippedTicks = new AtomicLong();
+    private final Thread timer;
+
+    private volatile boolean running;
+    private long startTime;
+    private long currentTick;
+
+    private class Entry implements Runnable {
+        private final Device device;
+        private final long intervalTicks;
+        private final AtomicBoolean inFlight = new AtomicBoolean();
+        private volatile boolean cancelled;
+        // tick of the next publish without jitter, only used by the timer thread
+        private long scheduledTick;
+        private long deadlineTick;
+
+        Entry(Device device, long intervalTicks) {
+            this.device = device;
+            this.intervalTicks = intervalTicks;
+        }
+
+        @Override
+        public void run() {
+            try {
+                device.run();
+            } catch (RuntimeException e) {
+                System.err.println("Telemetry publish from device " + device.getDeviceId() + " failed :: " + e);
+                e.printStackTrace();
+            } finally {
+                inFlight.set(false);
+            }
+        }
+    }
+
+    public TelemetryScheduler() {
+        this(DEFAULT_THREADS, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE, DEFAULT_JITTER);
+    }
+
+    /**
+     * @param threads number of threads publishing the events
+     * @param tick resolution of the timer
+     * @param wheelSize number of slots of the wheel, rounded up to a power of two
+     * @param jitter maximum jitter of a publish as a fraction of the interval of the device (0 - 0.5)
+     */
+    @SuppressWarnings("unchecked")
+    public TelemetryScheduler(int threads, long tick, TimeUnit unit, int wheelSize, double jitter) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<Entry>();
+        }
+        this.mask = size - 1;
+        this.jitter = Math.max(0, Math.min(0.5, jitter));
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "telemetry-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer = new Thread(this::runTimer, "telemetry-timer");
+        this.timer.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        timer.start();
+    }
+
+    public void stop() {
+        running = false;
+        timer.interrupt();
+        executor.shutdown();
+    }
+
+    /**
+     * Publishes the telemetry of the device every event update interval (in seconds) of the device
+     */
+    public void schedule(Device device) {
+        schedule(device, device.getEventUpdateInterval(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Publishes the telemetry of the device every interval, replacing an earlier schedule of the device
+     */
+    public void schedule(Device device, long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        Entry entry = new Entry(device, Math.max(1, unit.toNanos(interval) / tickNanos));
+        Entry previous = entries.put(device, entry);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        added.add(entry);
+    }
+
+    public void cancel(Device device) {
+        Entry entry = entries.remove(device);
+        if (entry != null) {
+            entry.cancelled = true;
+        }
+    }
+
+    /**
+     * @return number of publishes skipped because the previous publish of the device was still running
+     */
+    public long getSkippedTicks() {
+        return skippedTicks.get();
+    }
+
+    @Override
+    public void deviceAdded(Device device) {
+        if (device.getEventUpdateInterval() > 0) {
+            schedule(device);
+        }
+    }
+
+    @Override
+    public void deviceRemoved(Device device) {
+        cancel(device);
+    }
+
+    @Override
+    public void deviceUpdated(Device device) {
+    }
+
+    private void runTimer() {
+        startTime = System.nanoTime();
+        while (running) {
+            long wait = startTime + (currentTick + 1) * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            currentTick++;
+            addNewEntries();
+            expire(wheel[(int) (currentTick & mask)]);
+        }
+    }
+
+    private void addNewEntries() {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            if (!entry.cancelled) {
+                // start at a random point of the interval, spreading the devices over the interval
+                entry.scheduledTick = currentTick + 1 + ThreadLocalRandom.current().nextLong(entry.intervalTicks);
+                place(entry, entry.scheduledTick);
+            }
+        }
+    }
+
+    private void expire(List<Entry> slot) {
+        List<Entry> rescheduled = null;
+        for (Iterator<Entry> it = slot.iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.cancelled) {
+                it.remove();
+                continue;
+            }
+            if (entry.deadlineTick > currentTick) {
+                // due in a later round of the wheel
+                continue;
+            }
+            it.remove();
+            if (entry.inFlight.compareAndSet(false, true)) {
+                executor.execute(entry);
+            } else {
+                skippedTicks.incrementAndGet();
+            }
+            entry.scheduledTick += entry.intervalTicks;
+            if (entry.scheduledTick <= currentTick) {
+                // fell behind (e.g. the system was suspended), continue from now
+                entry.scheduledTick = currentTick + entry.intervalTicks;
+            }
+            if (rescheduled == null) {
+                rescheduled = new ArrayList<Entry>();
+            }
+            rescheduled.add(entry);
+        }
+        if (rescheduled != null) {
+            for (Entry entry : rescheduled) {
+                long maxJitter = (long) (entry.intervalTicks * jitter);
+                long offset = maxJitter == 0 ? 0
+                        : ThreadLocalRandom.current().nextLong(-maxJitter, maxJitter + 1);
+                place(entry, entry.scheduledTick + offset);
+            }
+        }
+    }
+
+    private void place(Entry entry, long tick) {
+        entry.deadlineTick = Math.max(currentTick + 1, tick);
+        wheel[(int) (entry.deadlineTick & mask)].add(entry);
+    }
+}
@@ -18,9 +18,11 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import com.google.gson.Gson;
@@ -31,10 +33,13 @@ import com.ibm.iotf.devicemgmt.DeviceData;
 import com.ibm.iotf.devicemgmt.DeviceInfo;
 import com.ibm.iotf.devicemgmt.gateway.ManagedGateway;
 import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
+import com.zmartify.iotf.tools.gateway.CommandDispatcher.OverflowPolicy;
+import com.zmartify.iotf.tools.gateway.factory.ConfigurationReconciler;
 import com.zmartify.iotf.tools.gateway.factory.FactoryApplicationInterfaces;
 import com.zmartify.iotf.tools.gateway.factory.FactoryDeviceTypes;
 import com.zmartify.iotf.tools.gateway.factory.FactoryEventTypes;
 import com.zmartify.iotf.tools.gateway.factory.FactoryPhysicalInterfaces;
+import com.zmartify.iotf.tools.gateway.factory.ProvisioningGraph;
 
 /**
  * Gateways are a specialized class of devices in Watson IoT Platform which serve as access points
@@ -60,10 +65,22 @@ import com.zmartify.iotf.tools.gateway.factory.FactoryPhysicalInterfaces;
  */
 public class WatsonControl {
     private final static String PROPERTIES_FILE_NAME = "/DMGatewaySample.properties";
+    private final static int DEFAULT_PROVISIONING_THREADS = 8;
 
     private ManagedGateway mgdGateway;
     private ZmartifyAPIClient apiClient;
     private String registrationMode;
+    private int provisioningThreads = DEFAULT_PROVISIONING_THREADS;
+    private GatewayCommandCallback commandCallback;
+    // Devices attached to this gateway, shared by the command, firmware and action handlers
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+    private TelemetryScheduler telemetryScheduler;
+    private EventPublisher eventPublisher;
+    private EventOutbox eventOutbox;
+    private DiagnosticsPipeline diagnosticsPipeline;
+    private FirmwareRolloutOrchestrator rolloutOrchestrator;
+    private DeviceActionScheduler actionScheduler;
+    private DeviceActionFanOut actionFanOut;
 
     // Define factories
     FactoryApplicationInterfaces apiFactory;
@@ -129,11 +146,58 @@ public class WatsonControl {
         options.put("Authentication-Method", "apikey");
         options.put("API-Key", deviceProps.getProperty("API-Key"));
         options.put("Authentication-Token", deviceProps.getProperty("API-Token"));
+        // Pass on the optional connection pool settings of the REST client
+        for (String name : deviceProps.stringPropertyNames()) {
+            if (name.startsWith("HTTP-")) {
+                options.put(name, deviceProps.getProperty(name));
+            }
+        }
 
         apiClient = new ZmartifyAPIClient(options);
 
+        // Number of device types provisioned concurrently by create/clean/deployConfiguration
+        provisioningThreads = Math.max(1, getIntProperty(deviceProps, "Provisioning-Threads", provisioningThreads));
+
         // add command callback for these devices or gateway
-        addCommandCallback();
+        addCommandCallback(deviceProps);
+
+        // Queue, coalesce and batch the events of the devices added to the registry
+        eventPublisher = new EventPublisher(mgdGateway);
+        // Encoding of the status events per device type, e.g. Event-Format.Temperature = cbor
+        for (String name : deviceProps.stringPropertyNames()) {
+            if (name.startsWith("Event-Format.")) {
+                eventPublisher.setEventFormat(name.substring("Event-Format.".length()),
+                        deviceProps.getProperty(name).trim());
+            }
+        }
+        deviceRegistry.addListener(eventPublisher);
+        // Keep the events that could not be published on disk and replay them when connected again
+        String outboxDirectory = deviceProps.getProperty("Outbox-Directory");
+        if (outboxDirectory != null && !outboxDirectory.trim().isEmpty()) {
+            eventOutbox = new EventOutbox(mgdGateway, new File(outboxDirectory.trim()),
+                    getIntProperty(deviceProps, "Outbox-Segment-Size", EventOutbox.DEFAULT_SEGMENT_SIZE),
+                    getIntProperty(deviceProps, "Outbox-Max-Segments", EventOutbox.DEFAULT_MAX_SEGMENTS),
+                    getIntProperty(deviceProps, "Outbox-Replay-Rate", EventOutbox.DEFAULT_REPLAY_RATE));
+            eventPublisher.setOutbox(eventOutbox, getIntProperty(deviceProps, "Outbox-Reorder-Window",
+                    EventPublisher.DEFAULT_REORDER_WINDOW));
+            eventOutbox.start();
+        }
+        eventPublisher.start();
+
+        // Deliver the logs and error codes of the devices in the background, rate limited per device
+        diagnosticsPipeline = new DiagnosticsPipeline(mgdGateway, DiagnosticsPipeline.DEFAULT_FLUSH_MILLIS,
+                TimeUnit.MILLISECONDS, getIntProperty(deviceProps, "Diagnostics-Max-Per-Second",
+                        DiagnosticsPipeline.DEFAULT_MAX_PER_FLUSH));
+        deviceRegistry.addListener(diagnosticsPipeline);
+        diagnosticsPipeline.start();
+
+        // Publish the events of the devices as they are added to the registry
+        int telemetryThreads = Math.max(1,
+                getIntProperty(deviceProps, "Telemetry-Threads", TelemetryScheduler.DEFAULT_THREADS));
+        telemetryScheduler = new TelemetryScheduler(telemetryThreads, TelemetryScheduler.DEFAULT_TICK_MILLIS,
+                TimeUnit.MILLISECONDS, TelemetryScheduler.DEFAULT_WHEEL_SIZE, TelemetryScheduler.DEFAULT_JITTER);
+        deviceRegistry.addListener(telemetryScheduler);
+        telemetryScheduler.start();
 
         // can also not be managed
         mgdGateway.sendGatewayManageRequest(0, true, true);
@@ -142,21 +206,75 @@ public class WatsonControl {
         // attached devices that supports firmware actions
         GatewayFirmwareHandlerSample fwHandler = new GatewayFirmwareHandlerSample();
         fwHandler.setGateway(mgdGateway);
+        fwHandler.setDeviceRegistry(deviceRegistry);
+        fwHandler.setDiagnosticsPipeline(diagnosticsPipeline);
+        // Download every verified firmware image once, however many devices it is requested for
+        String cacheDirectory = deviceProps.getProperty("Firmware-Cache-Directory");
+        if (cacheDirectory != null && !cacheDirectory.trim().isEmpty()) {
+            fwHandler.setFirmwareCache(new FirmwareCache(new File(cacheDirectory.trim()),
+                    getIntProperty(deviceProps, "Firmware-Cache-Size", 1024) * 1024L * 1024L,
+                    new FirmwareDownloader()));
+        }
 
         // Initialize a device action handler that handles the reboot or reset request for the Gateway and
         // attached devices
         GatewayActionHandlerSample actionHandler = new GatewayActionHandlerSample();
         actionHandler.setGateway(mgdGateway);
-
-        // Create a threadpool that can handle the firmware/device action requests from the Watson IoT Platform
-        // in bulk, for example, if a user wants to reboot all the devices connected to the gateway in one go,
-        // gateway should be able to handle the load if there are 1000 or more devices connected to it.
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(10, 10, 60, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>());
-        // Allow core threads to timeout as the firmware/device actions may not be called very frequently
-        threadPoolExecutor.allowCoreThreadTimeOut(true);
-        fwHandler.setExecutor(threadPoolExecutor);
-        actionHandler.setExecutor(threadPoolExecutor);
+        actionHandler.setDeviceRegistry(deviceRegistry);
+
+        // The installer and restart commands are supervised without a pool thread waiting for them
+        ProcessSupervisor processSupervisor = new ProcessSupervisor();
+        fwHandler.setProcessSupervisor(processSupervisor);
+        fwHandler.setInstallMarkers(getListProperty(deviceProps, "Install-Dependency-Error-Markers"),
+                getListProperty(deviceProps, "Install-Error-Markers"));
+        fwHandler.setAbortInstallOnError(Boolean.parseBoolean(
+                deviceProps.getProperty("Install-Abort-On-Error", "false").trim()));
+        actionHandler.setProcessSupervisor(processSupervisor);
+
+        // Run the firmware requests from the Watson IoT Platform in waves, downloads and installs on pools of
+        // their own, so a rollout to 1000 or more devices connected to the gateway doesn't hold up other work
+        // and pauses when too many devices of a wave fail.
+        rolloutOrchestrator = new FirmwareRolloutOrchestrator(
+                getIntProperty(deviceProps, "Firmware-Download-Threads",
+                        FirmwareRolloutOrchestrator.DEFAULT_DOWNLOAD_THREADS),
+                getIntProperty(deviceProps, "Firmware-Install-Threads",
+                        FirmwareRolloutOrchestrator.DEFAULT_INSTALL_THREADS),
+                getIntProperty(deviceProps, "Firmware-Device-Installs",
+                        FirmwareRolloutOrchestrator.DEFAULT_DEVICE_INSTALLS),
+                getIntProperty(deviceProps, "Firmware-First-Wave-Size",
+                        FirmwareRolloutOrchestrator.DEFAULT_FIRST_WAVE_SIZE),
+                getIntProperty(deviceProps, "Firmware-Max-Wave-Size",
+                        FirmwareRolloutOrchestrator.DEFAULT_MAX_WAVE_SIZE),
+                getDoubleProperty(deviceProps, "Firmware-Max-Failure-Rate",
+                        FirmwareRolloutOrchestrator.DEFAULT_MAX_FAILURE_RATE),
+                FirmwareRolloutOrchestrator.DEFAULT_MIN_FAILURES,
+                getIntProperty(deviceProps, "Firmware-Auto-Resume",
+                        (int) FirmwareRolloutOrchestrator.DEFAULT_AUTO_RESUME_MINUTES), TimeUnit.MINUTES);
+        fwHandler.setRolloutOrchestrator(rolloutOrchestrator);
+        commandCallback.setRolloutOrchestrator(rolloutOrchestrator);
+
+        // Run the device action requests from the Watson IoT Platform on a scheduler that handles them in bulk,
+        // for example, if a user wants to reboot all the devices connected to the gateway in one go, gateway
+        // should be able to handle the load if there are 1000 or more devices connected to it. Waiting for the
+        // devices to come back doesn't hold a thread, and the actions of the gateway itself go first.
+        actionScheduler = new DeviceActionScheduler(
+                getIntProperty(deviceProps, "Device-Action-Threads", DeviceActionScheduler.DEFAULT_WORKERS),
+                getIntProperty(deviceProps, "Device-Action-Capacity", DeviceActionScheduler.DEFAULT_CAPACITY));
+        actionScheduler.start();
+        actionHandler.setActionScheduler(actionScheduler);
+        fwHandler.setActionScheduler(actionScheduler);
+
+        // Initiate bulk actions with one DM request per device type, and send the completions of the devices in
+        // batches per device type
+        actionFanOut = new DeviceActionFanOut(apiClient, deviceRegistry,
+                getIntProperty(deviceProps, "Device-Action-Parallelism", DeviceActionFanOut.DEFAULT_PARALLELISM),
+                getIntProperty(deviceProps, "Device-Action-Max-Per-Request",
+                        DeviceActionFanOut.DEFAULT_MAX_DEVICES_PER_REQUEST),
+                DeviceActionFanOut.DEFAULT_FLUSH_MILLIS, TimeUnit.MILLISECONDS,
+                getIntProperty(deviceProps, "Device-Action-Completions-Per-Second",
+                        DeviceActionFanOut.DEFAULT_MAX_PER_FLUSH));
+        actionFanOut.start();
+        actionHandler.setActionFanOut(actionFanOut);
 
         // Add the firmware and device action handler to Gateway
         mgdGateway.addFirmwareHandler(fwHandler);
@@ -180,6 +298,30 @@ public class WatsonControl {
         }
     }
 
+    private int getIntProperty(Properties props, String name, int defaultValue) {
+        return ZmartifyAPIClient.getIntProperty(props, name, defaultValue);
+    }
+
+    private double getDoubleProperty(Properties props, String name, double defaultValue) {
+        return ZmartifyAPIClient.getDoubleProperty(props, name, defaultValue);
+    }
+
+    /**
+     * @return the non-empty values of a property separated by |
+     */
+    private List<String> getListProperty(Properties props, String name) {
+        List<String> values = new ArrayList<String>();
+        String value = props.getProperty(name);
+        if (value != null) {
+            for (String item : value.split("\\|")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
     private void writeJsonFile(String fileName, JsonObject json) {
         FileWriter writer;
         try {
@@ -194,13 +336,58 @@ public class WatsonControl {
         }
     }
 
+    /**
+     * @return the orchestrator of the firmware rollouts, to follow their progress and resume a paused rollout
+     */
+    public FirmwareRolloutOrchestrator getFirmwareRolloutOrchestrator() {
+        return rolloutOrchestrator;
+    }
+
+    /**
+     * @return the fan-out initiating device management actions for many attached devices at once
+     */
+    public DeviceActionFanOut getDeviceActionFanOut() {
+        return actionFanOut;
+    }
+
     public void writeResourceFile(String fileName, JsonObject json, String resourceType) {
         writeJsonFile(WatsonControl.class.getResource("/" + resourceType).getPath() + "/" + fileName + ".json", json);
     }
 
     private void disconnect() {
-        // Disconnect cleanly
+        // Disconnect cleanly, after the queued events are sent
+        if (commandCallback != null) {
+            commandCallback.stop();
+        }
+        if (telemetryScheduler != null) {
+            telemetryScheduler.stop();
+        }
+        if (actionScheduler != null) {
+            actionScheduler.stop();
+        }
+        if (actionFanOut != null) {
+            actionFanOut.stop();
+        }
+        if (rolloutOrchestrator != null) {
+            rolloutOrchestrator.shutdown(10, TimeUnit.SECONDS);
+        }
+        if (eventPublisher != null) {
+            eventPublisher.stop();
+        }
+        if (eventOutbox != null) {
+            eventOutbox.close();
+        }
+        if (diagnosticsPipeline != null) {
+            diagnosticsPipeline.stop();
+        }
         mgdGateway.disconnect();
+        if (apiClient != null) {
+            try {
+                apiClient.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public void abortProgram(int exitCode) {
@@ -208,10 +395,16 @@ public class WatsonControl {
         System.exit(exitCode);
     }
 
+    /**
+     * @return path of the JSON schema resource file
+     */
+    public String getResourcePath(String schemaType, String schemaName) {
+        return WatsonControl.class.getResource("/" + schemaType + "/" + schemaName + ".json").getPath();
+    }
+
     public JsonObject addSchema(String schemaName, String schemaType, String description) {
         String name = schemaType + "/" + schemaName;
-        String schemaFileName = WatsonControl.class.getResource("/" + schemaType + "/" + schemaName + ".json")
-                .getPath();
+        String schemaFileName = getResourcePath(schemaType, schemaName);
         try {
 
             if (apiClient.isSchemaExistByName(name)) {
@@ -263,21 +456,32 @@ public class WatsonControl {
      * 2. Subscribes to commands for the attached device
      *
      * The callback method processCommand() is invoked by the GatewayClient when it receives any command
-     * for the attached devices from Watson IoT Platform. The Gateway CommandCallback defines a BlockingQueue
-     * to store and process the commands (in separate thread) for smooth handling of MQTT publish message.
+     * for the attached devices from Watson IoT Platform. The Gateway CommandCallback hands the commands
+     * to worker threads (sharded by device) for smooth handling of MQTT publish message.
+     *
+     * The optional properties Command-Threads, Command-Queue-Capacity and Command-Overflow-Policy
+     * (BLOCK, DROP_NEWEST or DROP_OLDEST) configure the workers.
      */
-    private void addCommandCallback() {
+    private void addCommandCallback(Properties deviceProps) {
         System.out.println("<-- Subscribing to commands for all the devices..");
-        GatewayCommandCallback callback = new GatewayCommandCallback(this.mgdGateway);
-        mgdGateway.setGatewayCallback(callback);
-
-        try {
-            Thread t = new Thread(callback);
-            t.start();
-        } catch (Exception | Error e) {
-            e.printStackTrace();
+        int workers = Math.max(1,
+                getIntProperty(deviceProps, "Command-Threads", GatewayCommandCallback.DEFAULT_WORKERS));
+        int queueCapacity = Math.max(1,
+                getIntProperty(deviceProps, "Command-Queue-Capacity", GatewayCommandCallback.DEFAULT_QUEUE_CAPACITY));
+        OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        String value = deviceProps.getProperty("Command-Overflow-Policy");
+        if (value != null) {
+            try {
+                overflowPolicy = OverflowPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid value " + value + " for Command-Overflow-Policy, using " + overflowPolicy);
+            }
         }
 
+        commandCallback = new GatewayCommandCallback(this.mgdGateway, deviceRegistry, workers, queueCapacity,
+                overflowPolicy);
+        commandCallback.start();
+        mgdGateway.setGatewayCallback(commandCallback);
     }
 
     private enum RegistrationMode {
@@ -295,8 +499,47 @@ public class WatsonControl {
         }
     }
 
+    /**
+     * Runs the graph on a bounded worker pool, independent device types are handled concurrently.
+     */
+    private boolean executeGraph(ProvisioningGraph graph) {
+        ExecutorService executor = Executors.newFixedThreadPool(provisioningThreads);
+        try {
+            return graph.execute(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Removes the configuration in the reverse order of createConfiguration(): mappings and device type,
+     * then physical interface and application interface, and finally the event types once no physical
+     * interface refers to them any longer. Anything not created by this tool is swept up afterwards.
+     */
     public void cleanConfiguration() {
         System.out.println("We are cleaning up the system");
+        ProvisioningGraph graph = new ProvisioningGraph();
+        for (ZmartifyDeviceType zh : ZmartifyDeviceType.values()) {
+            String deviceType = zh.getDeviceType();
+            graph.addTask("dev:" + deviceType, () -> devFactory.removeDeviceType(deviceType));
+            graph.addTask("phy:" + deviceType,
+                    () -> phyFactory.removePhysicalInterfaceByName(zh.getPhysicalInterfaceName()),
+                    "dev:" + deviceType);
+            graph.addTask("api:" + deviceType, () -> apiFactory.removeApplicationInterfaceByName(deviceType),
+                    "dev:" + deviceType);
+        }
+        for (String eventType : evtFactory.getEventTypeList()) {
+            List<String> users = new ArrayList<String>();
+            for (ZmartifyDeviceType zh : ZmartifyDeviceType.values()) {
+                if (zh.getEventType().equals(eventType)) {
+                    users.add("phy:" + zh.getDeviceType());
+                }
+            }
+            graph.addTask("evt:" + eventType, () -> evtFactory.removeEventType(eventType),
+                    users.toArray(new String[users.size()]));
+        }
+        executeGraph(graph);
+
         devFactory.removeDeviceTypes();
         phyFactory.removePhyscialInterfaces();
         evtFactory.removeEventTypes();
@@ -304,23 +547,63 @@ public class WatsonControl {
         apiFactory.removeSchemas();
     }
 
+    /**
+     * Creates the configuration of all device types. Each device type is a chain of device type, physical
+     * interface (after its event type) and application interface with mappings; the chains run concurrently.
+     */
     public void createConfiguration() {
-        devFactory.createDeviceTypes();
-        evtFactory.createEventTypes();
-        phyFactory.createPhysicalInterfaces();
-        apiFactory.createApplicationInterfaces();
+        ProvisioningGraph graph = new ProvisioningGraph();
+        for (String eventType : evtFactory.getEventTypeList()) {
+            graph.addTask("evt:" + eventType, () -> {
+                System.out.println("Event Type     : " + eventType);
+                return evtFactory.createEventType(eventType, "") != null;
+            });
+        }
+        for (ZmartifyDeviceType zh : ZmartifyDeviceType.values()) {
+            String deviceType = zh.getDeviceType();
+            graph.addTask("dev:" + deviceType, () -> devFactory.createDeviceType(zh));
+            graph.addTask("phy:" + deviceType, () -> phyFactory.createPhysicalInterface(zh), "dev:" + deviceType,
+                    "evt:" + zh.getEventType());
+            graph.addTask("api:" + deviceType, () -> apiFactory.buildApplicationInterface(zh),
+                    "phy:" + deviceType);
+        }
+        if (executeGraph(graph)) {
+            System.out.println("<---- configuration created.");
+        }
+    }
+
+    /**
+     * Converges the configuration in Watson IoT Platform to the local one, creating, updating and deploying only
+     * what differs.
+     */
+    public void reconcileConfiguration() {
+        ConfigurationReconciler reconciler = new ConfigurationReconciler(apiClient, this);
+        ProvisioningGraph graph = reconciler.plan();
+        if (graph != null) {
+            executeGraph(graph);
+            System.out.println("<---- configuration reconciled: " + reconciler.getChanges() + " changes, "
+                    + reconciler.getDeployments() + " device types deployed.");
+        }
     }
 
     public void deployConfiguration() {
+        ProvisioningGraph graph = new ProvisioningGraph();
         for (ZmartifyDeviceType zh : ZmartifyDeviceType.values()) {
-            JsonObject response;
-            try {
-                response = apiClient.deployConfiguration(zh.getDeviceType());
-                System.out.println(response.toString());
-            } catch (IoTFCReSTException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+            graph.addTask("deploy:" + zh.getDeviceType(), () -> {
+                try {
+                    JsonObject response = apiClient.deployConfiguration(zh.getDeviceType());
+                    System.out.println(response.toString());
+                    return true;
+                } catch (IoTFCReSTException e) {
+                    // counted as failed by the graph
+                    System.out.println("Error deploying " + zh.getDeviceType() + " (" + e.getHttpCode() + ") ::"
+                            + e.getMessage());
+                    return false;
+                }
+            });
+        }
+        if (executeGraph(graph)) {
+            System.out.println("<---- configuration deployed.");
         }
     }
 
@@ -340,7 +623,7 @@ public class WatsonControl {
             // System.out.println("Completed cleaning - and we will start to build");
             // app.createConfiguration();
 
-            app.deployConfiguration();
+            app.reconcileConfiguration();
 
         } catch (Exception e) {
             System.out.println(e.getMessage());
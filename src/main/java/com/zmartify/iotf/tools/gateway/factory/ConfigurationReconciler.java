@@ -0,0 +1,407 @@
+package com.zmartify.iotf.tools.gateway.factory;
+
+import static com.zmartify.iotf.tools.gateway.WCConstants.EVENTID;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.FilenameUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults;
+import com.zmartify.iotf.tools.api.PagedResults.PageException;
+import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
+import com.zmartify.iotf.tools.gateway.WatsonControl;
+import com.zmartify.iotf.tools.gateway.ZmartifyDeviceType;
+
+/**
+ * Converges the configuration in Watson IoT Platform to the one described by {@link ZmartifyDeviceType} and the
+ * <code>evt</code>/<code>api</code> schema resources.
+ *
+ * The live state is read in bulk up front, after which only the missing or changed parts are created or updated.
+ * Schemas are compared by a hash of their content, event types and application interfaces by the schema they
+ * reference, mappings by their property mappings, and stale mappings or eventIds on our own interfaces are
+ * removed. A device type is deployed only when its configuration changed, or when the platform lists differences
+ * between its draft and deployed configuration.
+ */
+public class ConfigurationReconciler {
+
+    private final ZmartifyAPIClient apiClient;
+    private final WatsonControl callBack;
+    private final JsonParser parser = new JsonParser();
+
+    private Map<String, JsonObject> schemas;
+    private Map<String, JsonObject> eventTypes;
+    private Map<String, JsonObject> physicalInterfaces;
+    private Map<String, JsonObject> applicationInterfaces;
+    private Map<String, JsonObject> deviceTypes;
+
+    private final Map<String, String> eventTypeIds = new ConcurrentHashMap<String, String>();
+    private final Set<String> changedEventTypes = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger changes = new AtomicInteger();
+    private final AtomicInteger deployments = new AtomicInteger();
+
+    public ConfigurationReconciler(ZmartifyAPIClient apiClient, WatsonControl callBack) {
+        super();
+        this.apiClient = apiClient;
+        this.callBack = callBack;
+    }
+
+    /**
+     * Reads the live state and returns the graph that converges it, event types first and then one task per
+     * device type.
+     *
+     * @return the graph, or null if the live state could not be read
+     */
+    public ProvisioningGraph plan() {
+        try {
+            schemas = byKey(apiClient.getAllSchemasPaged(), "name");
+            eventTypes = byKey(apiClient.getAllEventTypesPaged(), "name");
+            physicalInterfaces = byKey(apiClient.getAllPhysicalInterfacesPaged(), "name");
+            applicationInterfaces = byKey(apiClient.getAllApplicationInterfacesPaged(), "name");
+            deviceTypes = byKey(apiClient.getAllDeviceTypesPaged(), "id");
+        } catch (PageException e) {
+            System.out.println("ERROR: reading the live configuration (" + e.getCause().getHttpCode() + ") ::"
+                    + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+
+        ProvisioningGraph graph = new ProvisioningGraph();
+        for (File file : callBack.getResourceFiles("evt", "json")) {
+            String eventType = FilenameUtils.removeExtension(file.getName());
+            graph.addTask("evt:" + eventType, () -> reconcileEventType(eventType, file));
+        }
+        for (ZmartifyDeviceType zh : ZmartifyDeviceType.values()) {
+            graph.addTask("dt:" + zh.getDeviceType(), () -> reconcileDeviceType(zh), "evt:" + zh.getEventType());
+        }
+        return graph;
+    }
+
+    public int getChanges() {
+        return changes.get();
+    }
+
+    public int getDeployments() {
+        return deployments.get();
+    }
+
+    private static Map<String, JsonObject> byKey(PagedResults results, String key) {
+        Map<String, JsonObject> map = new HashMap<String, JsonObject>();
+        for (JsonObject entry : results) {
+            String value = getString(entry, key);
+            if (value != null) {
+                map.put(value, entry);
+            }
+        }
+        return map;
+    }
+
+    private static String getString(JsonObject json, String member) {
+        if (json == null) {
+            return null;
+        }
+        JsonElement value = json.get(member);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    /**
+     * Counts a change for the reporting and for the task making it, the tasks of the graph run concurrently so a
+     * task decides on its own changes only
+     */
+    private void changed(AtomicInteger taskChanges, String what) {
+        taskChanges.incrementAndGet();
+        changes.incrementAndGet();
+        System.out.println("Reconciled: " + what);
+    }
+
+    /*
+     * ***************************************************** Schemas
+     */
+
+    /**
+     * Hash of the JSON content, independent of formatting and member order
+     */
+    static String contentHash(JsonElement json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(canonical(json).toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonElement canonical(JsonElement json) {
+        if (json.isJsonObject()) {
+            TreeMap<String, JsonElement> sorted = new TreeMap<String, JsonElement>();
+            for (Map.Entry<String, JsonElement> member : json.getAsJsonObject().entrySet()) {
+                sorted.put(member.getKey(), canonical(member.getValue()));
+            }
+            JsonObject result = new JsonObject();
+            for (Map.Entry<String, JsonElement> member : sorted.entrySet()) {
+                result.add(member.getKey(), member.getValue());
+            }
+            return result;
+        } else if (json.isJsonArray()) {
+            JsonArray result = new JsonArray();
+            for (JsonElement element : json.getAsJsonArray()) {
+                result.add(canonical(element));
+            }
+            return result;
+        }
+        return json;
+    }
+
+    private JsonElement readJson(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return parser.parse(reader);
+        }
+    }
+
+    /**
+     * Creates the schema or updates its content when it differs from the local one
+     *
+     * @param file supplies the local schema file, only called when the schema needs to be uploaded
+     * @return the schema id
+     */
+    private String reconcileSchema(String name, JsonElement content, String description, Supplier<File> file,
+            AtomicInteger taskChanges) throws IoTFCReSTException {
+        JsonObject schema = schemas.get(name);
+        if (schema == null) {
+            String schemaId = apiClient.addSchema(name, file.get().getPath(), description).get("id").getAsString();
+            changed(taskChanges, "schema " + name + " created");
+            return schemaId;
+        }
+        String schemaId = getString(schema, "id");
+        if (!contentHash(apiClient.getSchemaContent(schemaId)).equals(contentHash(content))) {
+            apiClient.updateSchema(schemaId, file.get().getPath());
+            changed(taskChanges, "schema " + name + " updated");
+        }
+        return schemaId;
+    }
+
+    /*
+     * ***************************************************** Event types
+     */
+
+    private boolean reconcileEventType(String name, File file) {
+        try {
+            AtomicInteger taskChanges = new AtomicInteger();
+            String schemaId = reconcileSchema("evt/" + name, readJson(file), "", () -> file, taskChanges);
+            JsonObject eventType = eventTypes.get(name);
+            if (eventType == null) {
+                eventType = apiClient.addEventType(name, schemaId);
+                changed(taskChanges, "event type " + name + " created");
+            } else if (!schemaId.equals(getString(eventType, "schemaId"))) {
+                JsonObject update = new JsonObject();
+                update.addProperty("name", name);
+                update.addProperty("schemaId", schemaId);
+                apiClient.updateEventType(getString(eventType, "id"), update);
+                changed(taskChanges, "event type " + name + " updated");
+            }
+            eventTypeIds.put(name, getString(eventType, "id"));
+            if (taskChanges.get() > 0) {
+                changedEventTypes.add(name);
+            }
+            return true;
+        } catch (IoTFCReSTException e) {
+            System.out.println("ERROR: reconciling event type " + name + " (" + e.getHttpCode() + ") ::"
+                    + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } catch (IOException e) {
+            System.out.println("ERROR: reading schema of event type " + name + " ::" + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * ***************************************************** Device types
+     */
+
+    private boolean reconcileDeviceType(ZmartifyDeviceType zh) {
+        String deviceType = zh.getDeviceType();
+        AtomicInteger taskChanges = new AtomicInteger();
+        try {
+            JsonObject device = deviceTypes.get(deviceType);
+            if (device == null) {
+                apiClient.addDeviceType(deviceType, zh.getDescription(), null, null);
+                changed(taskChanges, "device type " + deviceType + " created");
+            }
+
+            reconcilePhysicalInterface(zh, device, taskChanges);
+            String applicationInterfaceId = reconcileApplicationInterface(zh, device != null, taskChanges);
+            reconcileMappings(zh, applicationInterfaceId, device != null, taskChanges);
+
+            if (taskChanges.get() > 0 || changedEventTypes.contains(zh.getEventType())) {
+                JsonObject response = apiClient.validateConfiguration(deviceType);
+                JsonElement failures = response.get("failures");
+                if (failures != null && failures.isJsonArray() && failures.getAsJsonArray().size() > 0) {
+                    System.out.println("ERROR: configuration of " + deviceType + " is invalid: " + failures);
+                    return false;
+                }
+                deploy(deviceType);
+            } else if (hasDifferences(apiClient.listDifferences(deviceType))) {
+                deploy(deviceType);
+            }
+            return true;
+        } catch (IoTFCReSTException e) {
+            System.out.println("ERROR: reconciling device type " + deviceType + " (" + e.getHttpCode() + ") ::"
+                    + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void deploy(String deviceType) throws IoTFCReSTException {
+        apiClient.deployConfiguration(deviceType);
+        deployments.incrementAndGet();
+        System.out.println("Configuration deployed: " + deviceType);
+    }
+
+    private static boolean hasDifferences(JsonObject response) {
+        if (response == null) {
+            return false;
+        }
+        JsonElement differences = response.get("differences");
+        return differences != null && differences.isJsonArray() && differences.getAsJsonArray().size() > 0;
+    }
+
+    private void reconcilePhysicalInterface(ZmartifyDeviceType zh, JsonObject device, AtomicInteger taskChanges)
+            throws IoTFCReSTException {
+        String name = zh.getPhysicalInterfaceName();
+        JsonObject physicalInterface = physicalInterfaces.get(name);
+        String physicalInterfaceId;
+        JsonArray eventIds;
+        if (physicalInterface == null) {
+            physicalInterfaceId = apiClient.addPhysicalInterface(name, zh.getDescription()).get("id")
+                    .getAsString();
+            changed(taskChanges, "physical interface " + name + " created");
+            eventIds = new JsonArray();
+        } else {
+            physicalInterfaceId = getString(physicalInterface, "id");
+            eventIds = apiClient.getEventIds(physicalInterfaceId);
+        }
+
+        String eventTypeId = eventTypeIds.get(zh.getEventType());
+        boolean attached = false;
+        for (int i = 0; i < eventIds.size(); i++) {
+            JsonObject eventId = eventIds.get(i).getAsJsonObject();
+            if (EVENTID.equals(getString(eventId, "eventId")) && !attached && eventTypeId != null
+                    && eventTypeId.equals(getString(eventId, "eventTypeId"))) {
+                attached = true;
+            } else {
+                apiClient.removeEventId(physicalInterfaceId, getString(eventId, "eventId"));
+                changed(taskChanges, "eventId " + getString(eventId, "eventId") + " removed from " + name);
+            }
+        }
+        if (!attached && eventTypeId != null) {
+            apiClient.attachEventId(physicalInterfaceId, EVENTID, eventTypeId);
+            changed(taskChanges, "eventId " + EVENTID + " attached to " + name);
+        }
+
+        if (device == null || !physicalInterfaceId.equals(getString(device, "physicalInterfaceId"))) {
+            apiClient.addPhyscialInterfaceToDeviceType(zh.getDeviceType(), physicalInterfaceId);
+            changed(taskChanges, "physical interface " + name + " added to " + zh.getDeviceType());
+        }
+    }
+
+    /**
+     * @return the application interface id
+     */
+    private String reconcileApplicationInterface(ZmartifyDeviceType zh, boolean deviceTypeExisted,
+            AtomicInteger taskChanges) throws IoTFCReSTException {
+        String name = zh.getDeviceType();
+        JsonObject apiJson = zh.getAPIJson();
+        String schemaId = reconcileSchema("api/" + name, apiJson, zh.getDescription(), () -> {
+            callBack.writeResourceFile(name, apiJson, "api");
+            return new File(callBack.getResourcePath("api", name));
+        }, taskChanges);
+
+        JsonObject applicationInterface = applicationInterfaces.get(name);
+        if (applicationInterface == null) {
+            applicationInterface = apiClient.addApplicationInterface(name, zh.getDescription(), schemaId);
+            changed(taskChanges, "application interface " + name + " created");
+        } else if (!schemaId.equals(getString(applicationInterface, "schemaId"))) {
+            JsonObject update = new JsonObject();
+            update.addProperty("name", name);
+            update.addProperty("description", zh.getDescription());
+            update.addProperty("schemaId", schemaId);
+            apiClient.updateApplicationInterface(getString(applicationInterface, "id"), update);
+            changed(taskChanges, "application interface " + name + " updated");
+        }
+        String applicationInterfaceId = getString(applicationInterface, "id");
+
+        boolean attached = false;
+        if (deviceTypeExisted) {
+            JsonArray apiList = apiClient.getDeviceTypeApplicationInterfaces(name);
+            for (int i = 0; i < apiList.size() && !attached; i++) {
+                attached = applicationInterfaceId.equals(getString(apiList.get(i).getAsJsonObject(), "id"));
+            }
+        }
+        if (!attached) {
+            apiClient.attachApplicationInterface(name, applicationInterface);
+            changed(taskChanges, "application interface " + name + " attached");
+        }
+        return applicationInterfaceId;
+    }
+
+    private void reconcileMappings(ZmartifyDeviceType zh, String applicationInterfaceId, boolean deviceTypeExisted,
+            AtomicInteger taskChanges) throws IoTFCReSTException {
+        String deviceType = zh.getDeviceType();
+        JsonObject desired = zh.getMAPJson(applicationInterfaceId);
+        JsonArray mappings = new JsonArray();
+        if (deviceTypeExisted) {
+            try {
+                mappings = apiClient.getMappings(deviceType);
+            } catch (IoTFCReSTException e) {
+                if (e.getHttpCode() != 404) {
+                    throw e;
+                }
+            }
+        }
+
+        boolean found = false;
+        for (int i = 0; i < mappings.size(); i++) {
+            JsonObject mapping = mappings.get(i).getAsJsonObject();
+            String mappedId = getString(mapping, "applicationInterfaceId");
+            if (applicationInterfaceId.equals(mappedId)) {
+                found = true;
+                if (!desired.get("propertyMappings").equals(mapping.get("propertyMappings"))
+                        || !desired.get("notificationStrategy").equals(mapping.get("notificationStrategy"))) {
+                    apiClient.updateMappings(deviceType, desired);
+                    changed(taskChanges, "mappings of " + deviceType + " updated");
+                }
+            } else {
+                apiClient.deleteMappings(deviceType, mappedId);
+                changed(taskChanges, "stale mappings of " + deviceType + " removed");
+            }
+        }
+        if (!found) {
+            apiClient.addMappings(deviceType, desired);
+            changed(taskChanges, "mappings of " + deviceType + " added");
+        }
+    }
+}
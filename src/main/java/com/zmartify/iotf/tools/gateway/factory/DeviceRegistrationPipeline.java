@@ -0,0 +1,353 @@
+package com.zmartify.iotf.tools.gateway.factory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults;
+import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
+
+/**
+ * Registers (or removes) devices in bulk through the <code>/bulk/devices/add</code> and
+ * <code>/bulk/devices/remove</code> endpoints.
+ *
+ * The devices are read lazily from a stream and packed into requests of at most
+ * {@link #MAX_REQUEST_BYTES} (the platform limit) and <code>maxDevicesPerRequest</code> devices. Up to
+ * <code>concurrency</code> requests are in flight at the same time. When the platform accepts only part of a
+ * request (HTTP 202), only the entries reported as failed are retried; a request that is too large (HTTP 413) is
+ * split in half. Other client errors (HTTP 4xx, except 408 and 429) are not retried, the entries are counted as
+ * failed right away.
+ *
+ * The entries use the format of the bulk add request, i.e. <code>typeId</code>, <code>deviceId</code> and
+ * optionally <code>authToken</code>, <code>deviceInfo</code>, <code>metadata</code>, <code>gatewayTypeId</code>
+ * and <code>gatewayId</code>.
+ */
+public class DeviceRegistrationPipeline {
+
+    public static final int MAX_REQUEST_BYTES = 512 * 1024;
+    public static final int DEFAULT_MAX_DEVICES_PER_REQUEST = 1000;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final ZmartifyAPIClient apiClient;
+    private final int concurrency;
+    private final int maxDevicesPerRequest;
+    private final int maxAttempts;
+
+    /**
+     * Outcome of a pipeline run. The registered entries hold the generated authentication tokens, which the
+     * platform will not return again, so the caller must record them.
+     */
+    public static class Result {
+        private final List<JsonObject> succeeded = Collections.synchronizedList(new ArrayList<JsonObject>());
+        private final List<JsonObject> failed = Collections.synchronizedList(new ArrayList<JsonObject>());
+        private final AtomicInteger requests = new AtomicInteger();
+
+        public List<JsonObject> getSucceeded() {
+            return succeeded;
+        }
+
+        public List<JsonObject> getFailed() {
+            return failed;
+        }
+
+        public int getRequests() {
+            return requests.get();
+        }
+
+        @Override
+        public String toString() {
+            return succeeded.size() + " succeeded, " + failed.size() + " failed in " + requests.get() + " requests";
+        }
+    }
+
+    private interface BulkOperation {
+        JsonArray apply(JsonArray devices) throws IoTFCReSTException;
+    }
+
+    public DeviceRegistrationPipeline(ZmartifyAPIClient apiClient) {
+        this(apiClient, DEFAULT_CONCURRENCY, DEFAULT_MAX_DEVICES_PER_REQUEST, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public DeviceRegistrationPipeline(ZmartifyAPIClient apiClient, int concurrency, int maxDevicesPerRequest,
+            int maxAttempts) {
+        super();
+        this.apiClient = apiClient;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxDevicesPerRequest = Math.max(1, maxDevicesPerRequest);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Registers all devices of the stream and waits for completion
+     */
+    public Result register(Stream<JsonObject> devices) {
+        return run(devices, apiClient::addMultipleDevices);
+    }
+
+    /**
+     * Removes all devices of the stream (only <code>typeId</code> and <code>deviceId</code> are used) and waits
+     * for completion
+     */
+    public Result remove(Stream<JsonObject> devices) {
+        return run(devices.map(device -> {
+            JsonObject entry = new JsonObject();
+            entry.add("typeId", device.get("typeId"));
+            entry.add("deviceId", device.get("deviceId"));
+            return entry;
+        }), apiClient::deleteMultipleDevices);
+    }
+
+    private Result run(Stream<JsonObject> devices, BulkOperation operation) {
+        Result result = new Result();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Semaphore inFlight = new Semaphore(concurrency);
+        try {
+            JsonArray chunk = new JsonArray();
+            int chunkBytes = 2;
+            Iterator<JsonObject> iterator = devices.iterator();
+            while (iterator.hasNext()) {
+                JsonObject device = iterator.next();
+                int size = device.toString().getBytes(StandardCharsets.UTF_8).length + 1;
+                if (size + 2 > MAX_REQUEST_BYTES) {
+                    System.out.println("ERROR: device " + device.get("deviceId") + " exceeds the request limit");
+                    result.failed.add(device);
+                    continue;
+                }
+                if (chunk.size() >= maxDevicesPerRequest || chunkBytes + size > MAX_REQUEST_BYTES) {
+                    submit(executor, inFlight, chunk, operation, result);
+                    chunk = new JsonArray();
+                    chunkBytes = 2;
+                }
+                chunk.add(device);
+                chunkBytes += size;
+            }
+            if (chunk.size() > 0) {
+                submit(executor, inFlight, chunk, operation, result);
+            }
+            // wait for the requests in flight
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        return result;
+    }
+
+    /**
+     * Blocks until a slot is free, so the source is only read as fast as the platform accepts the devices
+     */
+    private void submit(ExecutorService executor, Semaphore inFlight, JsonArray chunk, BulkOperation operation,
+            Result result) throws InterruptedException {
+        inFlight.acquire();
+        executor.execute(() -> {
+            try {
+                process(chunk, operation, result);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void process(JsonArray chunk, BulkOperation operation, Result result) {
+        addAll(result.failed, attempt(chunk, operation, result));
+    }
+
+    /**
+     * Sends the entries until all are processed or the attempts are used up, an unexpected failure (e.g. a
+     * malformed response) ends the attempts
+     *
+     * @return the entries that still failed
+     */
+    private JsonArray attempt(JsonArray chunk, BulkOperation operation, Result result) {
+        JsonArray pending = chunk;
+        for (int attempt = 1; attempt <= maxAttempts && pending.size() > 0; attempt++) {
+            if (attempt > 1) {
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            result.requests.incrementAndGet();
+            try {
+                addAll(result.succeeded, operation.apply(pending));
+                return new JsonArray();
+            } catch (IoTFCReSTException e) {
+                int code = e.getHttpCode();
+                if (code == 202) {
+                    // Partial success, keep only the failed entries
+                    pending = splitFailed(pending, e.getResponse(), result);
+                } else if (code == 413) {
+                    if (pending.size() > 1) {
+                        int half = pending.size() / 2;
+                        process(slice(pending, 0, half), operation, result);
+                        process(slice(pending, half, pending.size()), operation, result);
+                        return new JsonArray();
+                    }
+                    return pending;
+                } else if (code >= 400 && code < 500 && code != 408 && code != 429) {
+                    System.out.println("ERROR: bulk request rejected (" + code + ") ::" + e.getMessage());
+                    return pending;
+                } else {
+                    System.out.println("Bulk request failed (" + code + "), attempt " + attempt + " ::"
+                            + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                System.out.println("ERROR: bulk request failed ::" + e);
+                return pending;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Records the entries reported as successful and returns the original entries of the failed ones
+     */
+    private static JsonArray splitFailed(JsonArray pending, JsonElement response, Result result) {
+        if (response == null || !response.isJsonArray()) {
+            return pending;
+        }
+        // Record nothing until the whole response is read, so a malformed one leaves the entries pending as a whole
+        List<JsonObject> succeeded = new ArrayList<JsonObject>();
+        JsonArray failed = new JsonArray();
+        try {
+            Map<String, JsonObject> byKey = new HashMap<String, JsonObject>();
+            for (JsonElement device : pending) {
+                byKey.put(key(device.getAsJsonObject()), device.getAsJsonObject());
+            }
+            for (JsonElement element : response.getAsJsonArray()) {
+                JsonObject entry = element.getAsJsonObject();
+                JsonElement success = entry.get("success");
+                if (success != null && success.getAsBoolean()) {
+                    succeeded.add(entry);
+                } else {
+                    JsonObject original = byKey.get(key(entry));
+                    if (original != null) {
+                        failed.add(original);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("ERROR: malformed partial bulk response ::" + e);
+            return pending;
+        }
+        result.succeeded.addAll(succeeded);
+        return failed;
+    }
+
+    private static String key(JsonObject device) {
+        return device.get("typeId").getAsString() + ':' + device.get("deviceId").getAsString();
+    }
+
+    private static JsonArray slice(JsonArray array, int from, int to) {
+        JsonArray result = new JsonArray();
+        for (int i = from; i < to; i++) {
+            result.add(array.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Adds all entries or, if one isn't a JSON object, none
+     */
+    private static void addAll(List<JsonObject> list, JsonArray array) {
+        if (array != null) {
+            List<JsonObject> entries = new ArrayList<JsonObject>(array.size());
+            for (JsonElement element : array) {
+                entries.add(element.getAsJsonObject());
+            }
+            list.addAll(entries);
+        }
+    }
+
+    /*
+     * ***************************************************** Sources
+     */
+
+    /**
+     * Reads devices from CSV with a header line naming the columns, e.g.
+     * <code>typeId,deviceId,authToken,deviceInfo.serialNumber</code>. Columns named <code>x.y</code> end up as
+     * member <code>y</code> of object <code>x</code>, empty values are left out. Quoted fields are not supported.
+     */
+    public static Stream<JsonObject> fromCsv(Reader reader) {
+        BufferedReader br = new BufferedReader(reader);
+        String[] header;
+        try {
+            String line = br.readLine();
+            header = line == null ? new String[0] : line.split(",");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return br.lines().filter(line -> !line.trim().isEmpty()).map(line -> {
+            String[] values = line.split(",", -1);
+            JsonObject device = new JsonObject();
+            for (int i = 0; i < header.length && i < values.length; i++) {
+                String name = header[i].trim();
+                String value = values[i].trim();
+                if (value.isEmpty()) {
+                    continue;
+                }
+                int dot = name.indexOf('.');
+                if (dot > 0) {
+                    String parent = name.substring(0, dot);
+                    if (!device.has(parent)) {
+                        device.add(parent, new JsonObject());
+                    }
+                    device.getAsJsonObject(parent).addProperty(name.substring(dot + 1), value);
+                } else {
+                    device.addProperty(name, value);
+                }
+            }
+            return device;
+        });
+    }
+
+    /**
+     * Reads all devices connected through a gateway page by page, e.g. to move them to another gateway. A failing
+     * page request surfaces as {@link PagedResults.PageException} while the stream is consumed.
+     *
+     * @param targetGatewayType type of the gateway the devices will be registered under, or null
+     * @param targetGatewayId id of the gateway the devices will be registered under, or null
+     */
+    public static Stream<JsonObject> fromGateway(ZmartifyAPIClient apiClient, String gatewayType, String gatewayId,
+            String targetGatewayType, String targetGatewayId) {
+        return apiClient.getDevicesConnectedThroughGatewayPaged(gatewayType, gatewayId).stream().map(source -> {
+            JsonObject device = new JsonObject();
+            device.add("typeId", source.get("typeId"));
+            device.add("deviceId", source.get("deviceId"));
+            for (String member : new String[] { "deviceInfo", "metadata", "location" }) {
+                if (source.has(member)) {
+                    device.add(member, source.get(member));
+                }
+            }
+            if (targetGatewayType != null && targetGatewayId != null) {
+                device.addProperty("gatewayTypeId", targetGatewayType);
+                device.addProperty("gatewayId", targetGatewayId);
+            }
+            return device;
+        });
+    }
+}
@@ -1,10 +1,14 @@
 package com.zmartify.iotf.tools.gateway.factory;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults.PageException;
 import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
 import com.zmartify.iotf.tools.gateway.WatsonControl;
 import com.zmartify.iotf.tools.gateway.ZmartifyDeviceType;
@@ -104,53 +108,73 @@ public class FactoryApplicationInterfaces {
         }
     }
 
+    /**
+     * Writes the schema resource file of the device type and creates the application interface and mappings
+     */
+    public boolean buildApplicationInterface(ZmartifyDeviceType dt) {
+        callBack.writeResourceFile(dt.getDeviceType(), dt.getAPIJson(), "api");
+        if (createApplicationInterface(dt)) {
+            System.out.println("application interface created: " + dt.getDeviceType());
+            return true;
+        }
+        return false;
+    }
+
     public void createApplicationInterfaces() {
         for (ZmartifyDeviceType dt : ZmartifyDeviceType.values()) {
-            callBack.writeResourceFile(dt.getDeviceType(), dt.getAPIJson(), "api");
-            if (createApplicationInterface(dt)) {
-                System.out.println("application interface created: " + dt.getDeviceType());
-            }
+            buildApplicationInterface(dt);
         }
         System.out.println("<---- applicationInterfaces created.");
     }
 
-    public void removeApplicationInterfaces() {
-        JsonArray apiList;
+    /**
+     * Removes the application interfaces with the given name together with their schema
+     */
+    public boolean removeApplicationInterfaceByName(String name) {
         try {
-            do {
-                // 25 at a time
-                apiList = apiClient.getAllApplicationInterfaces().get("results").getAsJsonArray();
-                for (int i = 0; i < apiList.size(); i++) {
-                    removeApplicationInterface(apiList.get(i).getAsJsonObject().get("id").getAsString());
-                }
-            } while (apiList.size() >= 25);
+            apiClient.deleteApplicationInterfaceByName(name);
+            apiClient.deleteSchemaByName("api/" + name);
+            return true;
         } catch (IoTFCReSTException e) {
-            System.out.println("Error removing Application interfaces " + e.getHttpCode() + " ::" + e.getMessage());
+            System.out.println("Error removing ApplicationInterface " + name + " (" + e.getHttpCode() + ") ::"
+                    + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public void removeApplicationInterfaces() {
+        try {
+            for (String applicationInterfaceId : apiClient.getAllApplicationInterfacesPaged().collect("id")) {
+                removeApplicationInterface(applicationInterfaceId);
+            }
+        } catch (PageException e) {
+            System.out.println("Error removing Application interfaces " + e.getCause().getHttpCode() + " ::"
+                    + e.getMessage());
             e.printStackTrace();
         }
 
     }
 
     public void removeSchemas() {
-        JsonArray schemaList = null;
         String schemaId = null;
         String schemaName = null;
         try {
-            do {
-                // 25 at a time
-                schemaList = apiClient.getAllSchemas().get("results").getAsJsonArray();
-                for (int i = 0; i < schemaList.size(); i++) {
-                    schemaId = schemaList.get(i).getAsJsonObject().get("id").getAsString();
-                    schemaName = schemaList.get(i).getAsJsonObject().get("name").getAsString();
-                    if (apiClient.deleteSchema(schemaId)) {
-                        System.out.println("Schema deleted  : " + schemaName);
-                    }
+            List<JsonObject> schemaList = apiClient.getAllSchemasPaged().stream().collect(Collectors.toList());
+            for (JsonObject schema : schemaList) {
+                schemaId = schema.get("id").getAsString();
+                schemaName = schema.get("name").getAsString();
+                if (apiClient.deleteSchema(schemaId)) {
+                    System.out.println("Schema deleted  : " + schemaName);
                 }
-            } while (schemaList.size() >= 25);
+            }
         } catch (IoTFCReSTException e) {
             System.out
                     .println("ERROR: deleting schema" + schemaName + " (" + e.getHttpCode() + ") ::" + e.getMessage());
             e.printStackTrace();
+        } catch (PageException e) {
+            System.out.println("ERROR: listing schemas (" + e.getCause().getHttpCode() + ") ::" + e.getMessage());
+            e.printStackTrace();
         }
 
     }
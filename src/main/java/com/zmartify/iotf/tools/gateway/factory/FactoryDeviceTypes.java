@@ -1,8 +1,12 @@
 package com.zmartify.iotf.tools.gateway.factory;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults.PageException;
 import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
 import com.zmartify.iotf.tools.gateway.ZmartifyDeviceType;
 
@@ -15,19 +19,44 @@ public class FactoryDeviceTypes {
 		this.apiClient = apiClient;
 	}
 	
+	private void removeMappings(String deviceType) throws IoTFCReSTException {
+		JsonArray mapList = apiClient.getMappings(deviceType);
+		for (int j = 0; j < mapList.size(); j++) {
+			String applicationInterfaceId = mapList.get(j).getAsJsonObject().get("applicationInterfaceId")
+					.getAsString();
+			apiClient.deleteMappings(deviceType, applicationInterfaceId);
+		}
+	}
+
+	/**
+	 * Removes a single device type including its mappings, a device type that doesn't exist counts as removed
+	 */
+	public boolean removeDeviceType(String deviceType) {
+		try {
+			if (!apiClient.isDeviceTypeExist(deviceType)) {
+				return true;
+			}
+			removeMappings(deviceType);
+			if (apiClient.deleteDeviceType(deviceType)) {
+				System.out.println("Device type deleted : " + deviceType);
+				return true;
+			}
+		} catch (IoTFCReSTException e) {
+			System.out.println("Error removing device type " + deviceType + " (" + e.getHttpCode() + ") ::"
+					+ e.getMessage());
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	public void removeDeviceTypes() {
 		try {
-			JsonArray devList = apiClient.getAllDeviceTypes().get("results").getAsJsonArray();
-			for (int i = 0; i < devList.size(); i++) {
-				String deviceType = devList.get(i).getAsJsonObject().get("id").getAsString();
-				String classId = devList.get(i).getAsJsonObject().get("classId").getAsString();
+			List<JsonObject> devList = apiClient.getAllDeviceTypesPaged().stream().collect(Collectors.toList());
+			for (JsonObject dev : devList) {
+				String deviceType = dev.get("id").getAsString();
+				String classId = dev.get("classId").getAsString();
 				if (classId.equals("Device")) {
-					JsonArray mapList = apiClient.getMappings(deviceType);
-					for (int j = 0; j < mapList.size(); j++) {
-						String applicationInterfaceId = mapList.get(j).getAsJsonObject().get("applicationInterfaceId")
-								.getAsString();
-						apiClient.deleteMappings(deviceType, applicationInterfaceId);
-					}
+					removeMappings(deviceType);
 					if (apiClient.deleteDeviceType(deviceType)) {
 						System.out.println("Device type deleted : " + deviceType);
 					}
@@ -37,22 +66,31 @@ public class FactoryDeviceTypes {
 			// TODO Auto-generated catch block
 			System.out.println("Error removing device types: " + e.getHttpCode() + " ::" + e.getMessage());
 			e.printStackTrace();
+		} catch (PageException e) {
+			System.out.println("Error listing device types: " + e.getCause().getHttpCode() + " ::" + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	public boolean createDeviceType(ZmartifyDeviceType zmDT) {
+		try {
+			if (!apiClient.isDeviceTypeExist(zmDT.getDeviceType())) {
+				apiClient.addDeviceType(zmDT.getDeviceType(), zmDT.getDescription(), null, null); 
+				System.out.println("Device Type created       : " + zmDT.getDeviceType());
+			} else {
+				System.out.println("Device Type already exists: " + zmDT.getDeviceType());
+			}
+			return true;
+		} catch (IoTFCReSTException e) {
+			System.out.println("ERROR: Device Type already exists" + e.getMessage());
+			e.printStackTrace();
+			return false;
 		}
 	}
 
 	public void createDeviceTypes() {
 		for (ZmartifyDeviceType zmDT : ZmartifyDeviceType.values()) {
-			try {
-				if (!apiClient.isDeviceTypeExist(zmDT.getDeviceType())) {
-					apiClient.addDeviceType(zmDT.getDeviceType(), zmDT.getDescription(), null, null); 
-					System.out.println("Device Type created       : " + zmDT.getDeviceType());
-				} else {
-					System.out.println("Device Type already exists: " + zmDT.getDeviceType());
-				}
-			} catch (IoTFCReSTException e) {
-				System.out.println("ERROR: Device Type already exists" + e.getMessage());
-				e.printStackTrace();
-			}
+			createDeviceType(zmDT);
 		}
 	}
 }
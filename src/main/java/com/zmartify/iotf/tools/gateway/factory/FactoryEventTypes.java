@@ -2,12 +2,15 @@ package com.zmartify.iotf.tools.gateway.factory;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FilenameUtils;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults.PageException;
 import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
 import com.zmartify.iotf.tools.gateway.WatsonControl;
 
@@ -22,7 +25,7 @@ public class FactoryEventTypes {
         this.callBack = callBack;
     }
 
-    private ArrayList<String> getEventTypeList() {
+    public ArrayList<String> getEventTypeList() {
         ArrayList<String> list = new ArrayList<String>();
         File[] files = callBack.getResourceFiles("evt", "json");
         for (int i = 0; i < files.length; i++) {
@@ -31,15 +34,22 @@ public class FactoryEventTypes {
         return list;
     }
 
+    /**
+     * Adds or updates the schema of the event type and creates the event type if it doesn't exist yet
+     *
+     * @return the created or existing event type, null if the schema or event type could not be created
+     */
     public JsonObject createEventType(String eventName, String description) {
         JsonObject response = null;
         try {
             response = callBack.addSchema(eventName, "evt", description);
             String schemaId = response.get("id").getAsString();
-            if (!apiClient.isEventTypeExistByName(eventName)) {
+            JsonArray existing = apiClient.getEventTypeByName(eventName).getAsJsonArray("results");
+            if (existing == null || existing.size() == 0) {
                 return apiClient.addEventType(eventName, schemaId);
             } else {
                 System.out.println("EventType already exists");
+                return existing.get(0).getAsJsonObject();
             }
         } catch (IoTFCReSTException e) {
             // TODO Auto-generated catch block
@@ -75,10 +85,10 @@ public class FactoryEventTypes {
             /*
              * Loop through all eventTypes and delete them one by one
              */
-            JsonArray evtList = apiClient.getEventTypes().get("results").getAsJsonArray();
-            for (int i = 0; i < evtList.size(); i++) {
-                eventTypeName = evtList.get(i).getAsJsonObject().get("name").getAsString();
-                if (apiClient.deleteEventType(evtList.get(i).getAsJsonObject().get("id").getAsString())) {
+            List<JsonObject> evtList = apiClient.getAllEventTypesPaged().stream().collect(Collectors.toList());
+            for (JsonObject evt : evtList) {
+                eventTypeName = evt.get("name").getAsString();
+                if (apiClient.deleteEventType(evt.get("id").getAsString())) {
                     System.out.println("EventType deleted    : " + eventTypeName);
                 }
             }
@@ -88,6 +98,10 @@ public class FactoryEventTypes {
                     "Error removing EventType " + eventTypeName + " (" + e.getHttpCode() + ") ::" + e.getMessage());
             e.printStackTrace();
             callBack.abortProgram(0);
+        } catch (PageException e) {
+            System.out.println("Error listing EventTypes (" + e.getCause().getHttpCode() + ") ::" + e.getMessage());
+            e.printStackTrace();
+            callBack.abortProgram(0);
         }
     }
 
@@ -2,9 +2,13 @@ package com.zmartify.iotf.tools.gateway.factory;
 
 import static com.zmartify.iotf.tools.gateway.WCConstants.EVENTID;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.ibm.iotf.client.IoTFCReSTException;
+import com.zmartify.iotf.tools.api.PagedResults.PageException;
 import com.zmartify.iotf.tools.api.ZmartifyAPIClient;
 import com.zmartify.iotf.tools.gateway.ZmartifyDeviceType;
 
@@ -38,47 +42,68 @@ public class FactoryPhysicalInterfaces {
         return null;
     }
 
+    private void removePhysicalInterface(String physicalInterfaceId, String name) throws IoTFCReSTException {
+        JsonArray eventIdList = apiClient.getEventIds(physicalInterfaceId);
+        StringBuilder eventIds = new StringBuilder();
+
+        /*
+         * First remove all links between physicalInterfarve and eventIds
+         */
+        for (int j = 0; j < eventIdList.size(); j++) {
+            String eventId = eventIdList.get(j).getAsJsonObject().get("eventId").getAsString();
+            eventIds.append(eventId).append(", ");
+            apiClient.removeEventId(physicalInterfaceId, eventId);
+        }
+        /*
+         * Second remove the refereed physical interface
+         */
+        apiClient.deletePhysicalInterface(physicalInterfaceId);
+        System.out.println("Removing physicalInterface: " + name + " + eventId: " + eventIds + "..completed");
+    }
+
+    /**
+     * Removes the physical interfaces with the given name, including their eventIds
+     *
+     * @param name
+     * @return false if an error occurred
+     */
+    public boolean removePhysicalInterfaceByName(String name) {
+        try {
+            JsonArray resultArray = apiClient.getPhysicalInterfaceByName(name).get("results").getAsJsonArray();
+            for (int i = 0; i < resultArray.size(); i++) {
+                removePhysicalInterface(resultArray.get(i).getAsJsonObject().get("id").getAsString(), name);
+            }
+            return true;
+        } catch (IoTFCReSTException e) {
+            System.out.println("Error removing physical interface " + name + " (" + e.getHttpCode() + ") ::"
+                    + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public void removePhyscialInterfaces() {
         /*
-         * Remove physicalInterfaces, but first remove all refereed eventIds
+         * Remove physicalInterfaces, but first remove all refereed eventIds. All pages are read before
+         * deleting, so the deletes don't move the bookmark of the listing.
          */
         String physicalInterfaceId = null;
         try {
-            JsonObject phyJson = new JsonObject();
-            JsonArray phyList = apiClient.getAllPhyscialInterfaces().get("results").getAsJsonArray();
-
-            do {
-                /*
-                 * Loop through all physicalInterfaces (25 at a time)
-                 */
-                for (int i = 0; i < phyList.size(); i++) {
-                    physicalInterfaceId = phyList.get(i).getAsJsonObject().get("id").getAsString();
-                    JsonArray eventIdList = apiClient.getEventIds(physicalInterfaceId);
-                    System.out.print("Removing physicalInterface: "
-                            + phyList.get(i).getAsJsonObject().get("name").getAsString() + " + eventId: ");
-
-                    /*
-                     * First remove all links between physicalInterfarve and eventIds
-                     */
-                    for (int j = 0; j < eventIdList.size(); j++) {
-                        String eventId = eventIdList.get(j).getAsJsonObject().get("eventId").getAsString();
-                        System.out.print(eventId + ", ");
-                        apiClient.removeEventId(physicalInterfaceId, eventId);
-                    }
-                    System.out.println("..completed");
-                    /*
-                     * Second remove the refereed physical interface
-                     */
-                    apiClient.deletePhysicalInterface(physicalInterfaceId);
-                }
-                phyJson = apiClient.getAllPhyscialInterfaces();
-                phyList = phyJson.get("results").getAsJsonArray();
-            } while ((phyJson.get("meta").getAsJsonObject().get("total_rows").getAsInt() > 0));
+            List<JsonObject> phyList = apiClient.getAllPhysicalInterfacesPaged().stream()
+                    .collect(Collectors.toList());
+            for (JsonObject phy : phyList) {
+                physicalInterfaceId = phy.get("id").getAsString();
+                removePhysicalInterface(physicalInterfaceId, phy.get("name").getAsString());
+            }
             System.out.println("<---- physicalInterfaces deleted.");
 
         } catch (IoTFCReSTException e) {
             System.out.println("Error removing physical interface " + e.getHttpCode() + " ::" + e.getMessage());
             e.printStackTrace();
+        } catch (PageException e) {
+            System.out.println(
+                    "Error listing physical interfaces " + e.getCause().getHttpCode() + " ::" + e.getMessage());
+            e.printStackTrace();
         }
     }
 
@@ -108,16 +133,20 @@ public class FactoryPhysicalInterfaces {
             System.out.println("ERROR: Trying to create Physical Interface: " + physicalInterfaceName + " ("
                     + e.getHttpCode() + ") ::" + e.getMessage());
             e.printStackTrace();
+            return false;
         }
 
         return true;
     }
 
+    public boolean createPhysicalInterface(ZmartifyDeviceType zmDT) {
+        return createPhysicalInterface(EVENTID, zmDT.getEventType(), zmDT.getDeviceType(),
+                zmDT.getPhysicalInterfaceName(), zmDT.getDescription());
+    }
+
     public void createPhysicalInterfaces() {
         for (ZmartifyDeviceType zmDT : ZmartifyDeviceType.values()) {
-            if (createPhysicalInterface(EVENTID, zmDT.getEventType(), zmDT.getDeviceType(),
-                    zmDT.getPhysicalInterfaceName(), zmDT.getDescription())) {
-            }
+            createPhysicalInterface(zmDT);
         }
         System.out.println("<---- physicalInterfaces created.");
     }
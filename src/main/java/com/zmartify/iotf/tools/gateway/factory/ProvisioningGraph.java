@@ -0,0 +1,118 @@
+package com.zmartify.iotf.tools.gateway.factory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Small dependency graph executor used to provision (and clean) the Watson IoT configuration.
+ *
+ * Every task is started on the given executor as soon as all the tasks it depends on have completed
+ * successfully, so independent chains (e.g. different device types) run concurrently while the order within a
+ * chain is respected. A task that fails, by returning false or throwing, causes all tasks depending on it to be
+ * skipped.
+ *
+ * Dependencies must be added before the tasks depending on them, which also rules out cycles.
+ */
+public class ProvisioningGraph {
+
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+    private static class Node {
+        private final String name;
+        private final BooleanSupplier task;
+        private final List<Node> dependsOn = new ArrayList<Node>();
+        private CompletableFuture<Boolean> result;
+
+        Node(String name, BooleanSupplier task) {
+            this.name = name;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Adds a task to the graph
+     *
+     * @param name unique name of the task
+     * @param task the work, returns false on failure
+     * @param dependsOn names of the tasks that must complete successfully first, unknown names are ignored
+     * @return this graph
+     */
+    public ProvisioningGraph addTask(String name, BooleanSupplier task, String... dependsOn) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Task " + name + " already added");
+        }
+        Node node = new Node(name, task);
+        for (String dependency : dependsOn) {
+            Node other = nodes.get(dependency);
+            if (other != null) {
+                node.dependsOn.add(other);
+            }
+        }
+        nodes.put(name, node);
+        return this;
+    }
+
+    public boolean hasTask(String name) {
+        return nodes.containsKey(name);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Runs all tasks on the executor and waits for them to complete.
+     *
+     * @param executor executor running the tasks, its size bounds the concurrency
+     * @return true if all tasks completed successfully
+     */
+    public boolean execute(Executor executor) {
+        List<CompletableFuture<Boolean>> all = new ArrayList<CompletableFuture<Boolean>>();
+        for (Node node : nodes.values()) {
+            if (node.dependsOn.isEmpty()) {
+                node.result = CompletableFuture.supplyAsync(() -> run(node), executor);
+            } else {
+                CompletableFuture<?>[] dependencies = new CompletableFuture<?>[node.dependsOn.size()];
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencies[i] = node.dependsOn.get(i).result;
+                }
+                node.result = CompletableFuture.allOf(dependencies).thenApplyAsync(v -> {
+                    for (Node dependency : node.dependsOn) {
+                        if (!dependency.result.join()) {
+                            System.out.println("Skipping " + node.name + ", " + dependency.name + " failed");
+                            return false;
+                        }
+                    }
+                    return run(node);
+                }, executor);
+            }
+            all.add(node.result);
+        }
+
+        int failed = 0;
+        for (CompletableFuture<Boolean> result : all) {
+            if (!result.join()) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            System.out.println("ERROR: " + failed + " of " + all.size() + " provisioning tasks failed or skipped");
+        }
+        return failed == 0;
+    }
+
+    private static boolean run(Node node) {
+        try {
+            return node.task.getAsBoolean();
+        } catch (Exception e) {
+            System.out.println("ERROR: task " + node.name + " failed ::" + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -14,9 +14,11 @@
  */
 package com.zmartify.iotf.tools.gateway.home;
 
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 
@@ -28,22 +30,34 @@ import com.ibm.iotf.devicemgmt.LogSeverity;
 import com.ibm.iotf.devicemgmt.DeviceFirmware.FirmwareState;
 import com.ibm.iotf.devicemgmt.DeviceFirmware.FirmwareUpdateStatus;
 import com.ibm.iotf.devicemgmt.gateway.ManagedGateway;
+import com.zmartify.iotf.tools.gateway.DiagnosticsBuffer;
+import com.zmartify.iotf.tools.gateway.DiagnosticsPipeline;
+import com.zmartify.iotf.tools.gateway.EventEncoder;
+import com.zmartify.iotf.tools.gateway.EventPublisher;
 import com.zmartify.iotf.tools.gateway.GatewayFirmwareHandlerSample;
 
 public abstract class Device implements Runnable {
 	final static JsonParser JSON_PARSER = new JsonParser();
+	private final static long REBOOT_MILLIS = 1000 * 2;
+	private final static long FIRMWARE_STEP_MILLIS = 200;
+	private final static int FIRMWARE_STEPS = 20;
 	private String deviceId;
 	protected DeviceType deviceType;
 	private boolean managable = false;
 	private boolean firmwareAction = false;
 	private boolean deviceAction = false;
-	private boolean managed;
+	private volatile boolean managed;
 	private int eventUpdateInterval;
-	private List<ErrorCode> errorCode = new ArrayList<ErrorCode>();;
-	private List<DiagLog> diagLog = new ArrayList<DiagLog>();
+	private final DiagnosticsBuffer diagnostics = new DiagnosticsBuffer();
+	private volatile DiagnosticsPipeline diagnosticsPipeline;
 
 	protected GatewayClient gwClient;
 	private String downloadedFirmwareName;
+	private volatile String key;
+	private volatile Consumer<Device> changeListener;
+	private volatile EventPublisher eventPublisher;
+	private volatile String eventFormat = EventEncoder.FORMAT_JSON;
+	private final Map<String, EventEncoder> encoders = new ConcurrentHashMap<String, EventEncoder>();
 
 	public Device(String deviceId, GatewayClient gwClient, int updateInterval) {
 		this.deviceId = deviceId;
@@ -52,16 +66,22 @@ public abstract class Device implements Runnable {
 	}
 	
 	/**
-	 * Let us use the WIoTP client Id as the key to identify the device
+	 * Let us use the WIoTP client Id as the key to identify the device, it is
+	 * built on first use (the subclass sets the device type) and kept afterwards
 	 * @return
 	 */
 	public String getKey() {
-		return new StringBuilder("d:").
-				append(gwClient.getOrgId()).
-				append(':').
-				append(this.deviceType.getDeviceType()).
-				append(':').
-				append(this.deviceId).toString();
+		String key = this.key;
+		if(key == null) {
+			key = new StringBuilder("d:").
+					append(gwClient.getOrgId()).
+					append(':').
+					append(this.deviceType.getDeviceType()).
+					append(':').
+					append(this.deviceId).toString();
+			this.key = key;
+		}
+		return key;
 	}
 
 	public String getDeviceId() {
@@ -72,6 +92,21 @@ public abstract class Device implements Runnable {
 		return deviceType.getDeviceType();
 	}
 
+	/**
+	 * Sets the listener notified when the management capabilities of the
+	 * device change, used by the DeviceRegistry to keep its indexes current
+	 */
+	public void setChangeListener(Consumer<Device> changeListener) {
+		this.changeListener = changeListener;
+	}
+
+	private void fireChange() {
+		Consumer<Device> listener = this.changeListener;
+		if(listener != null) {
+			listener.accept(this);
+		}
+	}
+
 	public boolean isManagable() {
 		return this.managable;
 	}
@@ -80,6 +115,7 @@ public abstract class Device implements Runnable {
 		this.managable = firmwareAction || deviceAction;
 		this.setFirmwareAction(firmwareAction);
 		this.setDeviceAction(deviceAction);
+		fireChange();
 	}
 
 	public boolean isFirmwareAction() {
@@ -104,72 +140,162 @@ public abstract class Device implements Runnable {
 	
 	public void setManaged(boolean managed) {
 		this.managed = managed;
+		fireChange();
 		if(this.managed == true) {
-			ManagedGateway gateway = (ManagedGateway)this.gwClient;
-			for (DiagLog diagLog : this.diagLog) {
-				gateway.addDeviceLog(getDeviceType().toString(), getDeviceId(),
-						diagLog.getMessage(), diagLog.getTimeStamp(), diagLog.getSeverity());
-			}
-			
-			for (ErrorCode errorCode : this.errorCode) {
-				gateway.addDeviceErrorCode(getDeviceType().toString(), getDeviceId(), errorCode.getErrorCode());
-			}
-			
-			this.diagLog.clear();
-			this.errorCode.clear();
+			// send the logs and error codes added while not managed
+			deliverDiagnostics();
 		}
 	}
 
 	public void setErrorCode(int errorCode) {
-		// Check if the device is managed
+		addDiagnostics(DiagnosticsBuffer.Entry.errorCode(errorCode));
+	}
+
+	/**
+	 * Sets the pipeline delivering the logs and error codes in the background,
+	 * without one they are sent by the calling thread
+	 */
+	public void setDiagnosticsPipeline(DiagnosticsPipeline diagnosticsPipeline) {
+		this.diagnosticsPipeline = diagnosticsPipeline;
+	}
+
+	/**
+	 * The logs and error codes waiting to be sent, kept until the device is managed
+	 */
+	public DiagnosticsBuffer getDiagnostics() {
+		return diagnostics;
+	}
+
+	private void addDiagnostics(DiagnosticsBuffer.Entry entry) {
+		diagnostics.add(entry);
 		if(this.isManaged()) {
-			ManagedGateway gateway = (ManagedGateway)this.gwClient;
-			int rc = gateway.addDeviceErrorCode(this.deviceType.getDeviceType(), this.deviceId, errorCode);
-			if(rc != 200) {
-				System.err.println("Error in adding errorCode :: "+errorCode);
-			}
+			deliverDiagnostics();
+		}
+	}
+
+	private void deliverDiagnostics() {
+		DiagnosticsPipeline pipeline = this.diagnosticsPipeline;
+		if(pipeline != null) {
+			pipeline.schedule(this);
 		} else {
-			// If not managed already, add it in ArrayList and send it later
-			this.errorCode.add(new ErrorCode(errorCode));
+			diagnostics.deliver((ManagedGateway)this.gwClient, getDeviceType(), this.deviceId, Integer.MAX_VALUE);
 		}
-		
 	}
 
 	/**
-	 * Devices that support command, must implement this method
+	 * Devices that support command, must implement this method. It is called on
+	 * a command worker while run() is called by the telemetry scheduler, so a
+	 * device sharing state between both declares them synchronized
 	 * @param cmd
 	 */
 	public void processCommand(String cmd) {
 		
 	}
 
+	/**
+	 * Sets the pipeline the events are published through, without one the
+	 * events are published directly by the gateway client
+	 */
+	public void setEventPublisher(EventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+
+	/**
+	 * Publishes a state event of this device, a newer state of the same event
+	 * may replace it while it is still queued
+	 */
+	protected boolean publishEvent(String event, Object data) {
+		return publishEvent(event, data, true);
+	}
+
+	protected boolean publishEvent(String event, Object data, boolean coalesce) {
+		EventPublisher publisher = this.eventPublisher;
+		if(publisher != null) {
+			return publisher.publish(getDeviceType(), this.deviceId, event, data, coalesce);
+		}
+		return gwClient.publishDeviceEvent(getDeviceType(), this.deviceId, event, data);
+	}
+
+	/**
+	 * Publishes a state event encoded by {@link #getEncoder}
+	 */
+	protected boolean publishEvent(String event, byte[] data, String format) {
+		EventPublisher publisher = this.eventPublisher;
+		if(publisher != null) {
+			return publisher.publish(getDeviceType(), this.deviceId, event, data, format, true);
+		}
+		return gwClient.publishDeviceEvent(getDeviceType(), this.deviceId, event, data, format, 0);
+	}
+
+	public String getEventFormat() {
+		return eventFormat;
+	}
+
+	/**
+	 * Sets the format the device encodes its status events in, json (default) or cbor
+	 */
+	public void setEventFormat(String eventFormat) {
+		this.eventFormat = EventEncoder.create(eventFormat).getFormat();
+	}
+
+	/**
+	 * Returns the encoder of a fixed-shape event of this device in the current
+	 * event format, it is built on first use and kept until the format changes.
+	 * The fields must be the same on every call for an event, so pass a
+	 * constant array
+	 */
+	protected EventEncoder getEncoder(String event, String[] fields) {
+		String format = this.eventFormat;
+		EventEncoder encoder = encoders.get(event);
+		if(encoder == null || !encoder.getFormat().equals(format)) {
+			encoder = EventEncoder.create(format, fields);
+			encoders.put(event, encoder);
+		}
+		return encoder;
+	}
+
+	/**
+	 * Readable form of an encoded event for the console
+	 */
+	protected static String describeEvent(byte[] data, String format) {
+		if(EventEncoder.FORMAT_JSON.equals(format)) {
+			return new String(data, StandardCharsets.UTF_8);
+		}
+		return "<" + data.length + " bytes " + format + ">";
+	}
+
 	public void setFirmwareName(String downloadedFirmwareName) {
 		this.downloadedFirmwareName = downloadedFirmwareName;
 	}
 	
 	/**
 	 * A sample method to handle the Light's reboot request from the DM server.
-	 * 
+	 * Starts the reboot of the device without waiting for it
+	 * @return the time in milliseconds until the device is back, then call completeReboot
 	 */
-	public void reboot(DeviceAction action) {
-		ManagedGateway gateway = (ManagedGateway) gwClient;
-		
+	public long startReboot(DeviceAction action) {
 		setLog(LogSeverity.informational, "reboot started..", null, new Date());
-		try {
-			// Pretend to reboot the device
-			Thread.sleep(1000 * 2);
-		} catch(InterruptedException ie) {}
+		// Pretend to reboot the device
+		return REBOOT_MILLIS;
+	}
+
+	/**
+	 * Completes the reboot request once the device is back
+	 * @return false if the manage request completing the reboot could not be sent
+	 */
+	public boolean completeReboot(DeviceAction action) {
+		ManagedGateway gateway = (ManagedGateway) gwClient;
 		
 		setLog(LogSeverity.informational, "reboot ended..", null, new Date());
 
 		// We must send a manage request inorder to complete the reboot request successfully
 		try {
 			
-			gateway.sendDeviceManageRequest(deviceType.getDeviceType(), this.deviceId, 0, this.firmwareAction, this.deviceAction);
+			return gateway.sendDeviceManageRequest(deviceType.getDeviceType(), this.deviceId, 0, this.firmwareAction, this.deviceAction);
 		} catch (MqttException e) {
 			e.printStackTrace();
+			return false;
 		}
-		System.out.println("Executed restart command status (true)");
 	}
 
 	/**
@@ -179,29 +305,38 @@ public abstract class Device implements Runnable {
 	 * 
 	 * Also, this method adds a diagnostic log containing the progress to the IoT Platform.
 	 * 
+	 * The update runs in steps without waiting for the device, the caller waits
+	 * the returned time between the steps.
+	 * @return the time in milliseconds until the first step, then call continueFirmwareUpdate
 	 */
-	public void updateFirmware(DeviceFirmware deviceFirmware) {
+	public long startFirmwareUpdate(DeviceFirmware deviceFirmware) {
 		
 		String message = "Firmware Update Event start";
 		// Inform the server about the status through Diaglog if needed
 		setLog(LogSeverity.informational, message, null, new Date());
 		
 		System.out.println("<--("+this.deviceId+") Progress ::");
+		return FIRMWARE_STEP_MILLIS;
+	}
+
+	/**
+	 * Reports the progress of the next step of the firmware update, and completes
+	 * the update after the last step
+	 * @param step number of the step, starting at 1
+	 * @return the time in milliseconds until the next step, negative once the update is complete
+	 */
+	public long continueFirmwareUpdate(DeviceFirmware deviceFirmware, int step) {
+		int progress = step * 100 / FIRMWARE_STEPS;
+		// Inform the server about the progress through Diaglog if needed
+		setProgressLog("firmware-update", "progress " + progress, new Date());
 		
-		for(int i = 1; i < 21; i++) {
-			try {
-				Thread.sleep(200);
-			} catch(Exception e) {
-				
-			}
-			// Inform the server about the progress through Diaglog if needed
-			setLog(LogSeverity.informational, "progress " + (i * 5), null, new Date());
-			
-			System.out.print("  "+ (i * 5) + "%");
+		System.out.print("  "+ progress + "%");
+		if(step < FIRMWARE_STEPS) {
+			return FIRMWARE_STEP_MILLIS;
 		}
 
 		// Inform the server about the status through Diaglog if needed
-		message = "Firmware Update Event End";
+		String message = "Firmware Update Event End";
 		setLog(LogSeverity.informational, message, null, new Date());
 		
 		System.out.println("Firmware Update successfull !!");
@@ -214,79 +349,19 @@ public abstract class Device implements Runnable {
 		GatewayFirmwareHandlerSample.deleteFile(downloadedFirmwareName);
 		
 		this.downloadedFirmwareName = null;
+		return -1;
 	}
 
-	private static class ErrorCode {
-		private int errorCode;
-
-		ErrorCode(int errorCode) {
-			this.errorCode = errorCode;
-		}
-
-		public int getErrorCode() {
-			return this.errorCode;
-		}
-	}
-
-	private static class DiagLog {
-		private LogSeverity severity;
-		private String message;
-		private String data;
-		private Date timestamp;
-
-		DiagLog(LogSeverity severity, String message, String data, Date timestamp) {
-			this.setSeverity(severity);
-			this.setMessage(message);
-			this.setData(data);
-			this.setTimestamp(timestamp);
-		}
-
-		public LogSeverity getSeverity() {
-			return severity;
-		}
-
-		private void setSeverity(LogSeverity severity) {
-			this.severity = severity;
-		}
-
-		public String getMessage() {
-			return message;
-		}
-
-		private void setMessage(String message) {
-			this.message = message;
-		}
-
-		public String getData() {
-			return this.data;
-		}
-
-		private void setData(String data) {
-			this.data = data;
-		}
-
-		public Date getTimeStamp() {
-			return this.timestamp;
-		}
-
-		private void setTimestamp(Date timestamp) {
-			this.timestamp = timestamp;
-		}
+	public void setLog(LogSeverity severity, String message, String data, Date date) {
+		addDiagnostics(DiagnosticsBuffer.Entry.log(severity, message, data, date));
 	}
 
-	public void setLog(LogSeverity severity, String message, String data, Date date) {
-		
-		// Check if the device is managed
-		if(this.isManaged()) {
-			ManagedGateway gateway = (ManagedGateway)this.gwClient;
-			int rc = gateway.addDeviceLog(this.deviceType.getDeviceType(), this.deviceId, message, date, severity);
-			if(rc != 200) {
-				System.err.println("Error in adding log :: "+message);
-			}
-		} else {
-			// If not managed already, add it in ArrayList and send it later
-			this.diagLog.add(new DiagLog(severity, message, data, date));
-		}
+	/**
+	 * Adds a progress log, replacing the progress log with the same key that
+	 * has not been sent yet, so only the latest progress is sent
+	 */
+	public void setProgressLog(String key, String message, Date date) {
+		addDiagnostics(DiagnosticsBuffer.Entry.progress(key, message, date));
 	}
 	
 	public GatewayClient getGwClient() {
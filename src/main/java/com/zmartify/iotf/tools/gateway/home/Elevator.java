@@ -16,13 +16,15 @@ package com.zmartify.iotf.tools.gateway.home;
 
 import java.util.Random;
 
-import com.google.gson.JsonObject;
 import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.EventEncoder;
 
 public class Elevator extends Device {
 	
 	private Random random = new Random();
 	
+	private static final String[] STATUS_FIELDS = { "floor", "fan", "load" };
+	
 	public Elevator(String deviceId, GatewayClient gwClient, int updateInterval) {
 		super(deviceId, gwClient, updateInterval);
 		this.deviceType = DeviceType.ELEVATOR;
@@ -33,12 +35,13 @@ public class Elevator extends Device {
 	 */
 	public void run() {
 		// Ideally one should read the current values from the Switch and report to IoT Platform
-		JsonObject event = new JsonObject();
-		event.addProperty("floor", getRandomValue(0, 7));
-		event.addProperty("fan", (getRandomValue(0, 1)==0?true:false));
-		event.addProperty("load", getRandomValue(0, 20));
-		System.out.println("<--("+this.getDeviceId()+") "+event);
-		boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "status", event);
+		EventEncoder encoder = getEncoder("status", STATUS_FIELDS);
+		byte[] event = encoder.begin().
+				value(getRandomValue(0, 7)).
+				value((getRandomValue(0, 1)==0?true:false)).
+				value(getRandomValue(0, 20)).toBytes();
+		System.out.println("<--("+this.getDeviceId()+") "+describeEvent(event, encoder.getFormat()));
+		boolean status = publishEvent("status", event, encoder.getFormat());
 		if(status == false) {
 			System.err.println("Event publish from device "+this.getDeviceId() + " failed");
 		}
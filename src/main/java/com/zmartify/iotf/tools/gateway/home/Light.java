@@ -18,6 +18,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.EventEncoder;
 
 /**
  *  <p>This class act as a Light Simulator. <br>
@@ -43,12 +44,14 @@ public class Light extends Device {
 	private int brightness = 100; // default value is 100%
 	private String status = "OFF"; // default value is off
 	
+	private static final String[] STATUS_FIELDS = { "brightness", "status" };
+	
 	public Light(String deviceId, GatewayClient gwClient, int updateInterval) {
 		super(deviceId, gwClient, updateInterval);
 		this.deviceType = DeviceType.LIGHT;
 	}
 	
-	public void initialize() {
+	public synchronized void initialize() {
 		brightness = 100; // default value is 100%
 		status = "OFF"; // default value is off
 	}
@@ -56,13 +59,12 @@ public class Light extends Device {
 	/**
 	 * This method sends the status event (Light status event) whenever requested by the gateway
 	 */
-	public void run() {
+	public synchronized void run() {
 		// Ideally one should read the current values from the Light and report to IoT Platform
-		JsonObject event = new JsonObject();
-		event.addProperty("brightness", brightness);
-		event.addProperty("status", status);
-		System.out.println("<--("+this.getDeviceId()+") "+event);
-		boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "status", event);
+		EventEncoder encoder = getEncoder("status", STATUS_FIELDS);
+		byte[] event = encoder.begin().value(brightness).value(status).toBytes();
+		System.out.println("<--("+this.getDeviceId()+") "+describeEvent(event, encoder.getFormat()));
+		boolean status = publishEvent("status", event, encoder.getFormat());
 		if(status == false) {
 			System.err.println("Failed to publish the event from Oven");
 		}
@@ -73,7 +75,7 @@ public class Light extends Device {
 	/**
 	 * The gateway sends command to start/stop the light, and increase the brightness of the light as well
 	 */
-	public void processCommand(String cmd) {
+	public synchronized void processCommand(String cmd) {
 		try {
 			JsonObject payloadJson = JSON_PARSER.parse(cmd).getAsJsonObject();
 			if (payloadJson.has("d")) {
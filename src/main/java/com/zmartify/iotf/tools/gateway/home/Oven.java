@@ -20,6 +20,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.EventEncoder;
 
 /**
  *  <p>This class act as a Oven Simulator. 
@@ -69,6 +70,8 @@ public class Oven extends Device {
 	private boolean bRunning = true; // state of the Oven
 
 	private Random random = new Random();
+	
+	private static final String[] STATUS_FIELDS = { "temp", "position", "mode", "time-run" };
 
 	public Oven(String deviceId, GatewayClient gwClient, int updateInterval) {
 		super(deviceId, gwClient, updateInterval);
@@ -78,7 +81,7 @@ public class Oven extends Device {
 	/**
 	 * The application sends a command to start/stop the cooking
 	 */
-	public void processCommand(String cmd) {
+	public synchronized void processCommand(String cmd) {
 		
 		if(this.bRunning == true) {
 			// can not accept a command to start a new cooking process
@@ -115,7 +118,7 @@ public class Oven extends Device {
 	 * Its stopped when the timer is elapsed.
 	 */
 	
-	public void run() {
+	public synchronized void run() {
 		
 		try {
 		if(this.bRunning) {
@@ -125,14 +128,15 @@ public class Oven extends Device {
 				return;
 			}
 			
-			JsonObject event = new JsonObject();
-			event.addProperty("temp", getRandomValue(temperatureRange[mode.getMode()][0], temperatureRange[mode.getMode()][1]));
-			event.addProperty("position", position);
-			event.addProperty("mode", mode.toString());
-			event.addProperty("time-run", timeRun);
+			EventEncoder encoder = getEncoder("status", STATUS_FIELDS);
+			byte[] event = encoder.begin().
+					value(getRandomValue(temperatureRange[mode.getMode()][0], temperatureRange[mode.getMode()][1])).
+					value(position).
+					value(mode.toString()).
+					value(timeRun).toBytes();
 			
-			System.out.println("<--("+this.getDeviceId()+") "+event);
-			boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "status", event);
+			System.out.println("<--("+this.getDeviceId()+") "+describeEvent(event, encoder.getFormat()));
+			boolean status = publishEvent("status", event, encoder.getFormat());
 			if(status == false) {
 				System.err.println("Event publish from device "+this.getDeviceId() + " failed");
 			}
@@ -153,7 +157,7 @@ public class Oven extends Device {
 		while(this.bRunning) {
 			JsonObject event = new JsonObject();
 			System.out.println("<--("+this.getDeviceId()+") stop event "+event);
-			boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "stop", event);
+			boolean status = publishEvent("stop", event, false);
 			if(status == false) {
 				System.err.println("Failed to publish the event from Oven");
 			} 
@@ -175,7 +179,7 @@ public class Oven extends Device {
 			event.addProperty("position", position);
 			event.addProperty("timer", timer);
 			System.out.println("<--("+this.getDeviceId()+") start event "+event);
-			boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "start", event);
+			boolean status = publishEvent("start", event, false);
 			if(status == false) {
 				System.err.println("Failed to publish the event from Oven");
 			}
@@ -18,6 +18,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.EventEncoder;
 
 /**
  * <p>This class act as a On/Off Smart Switch simulator. <br> 
@@ -32,6 +33,8 @@ public class Switch extends Device {
 	 */
 	private String status = "OFF"; // default value is off
 	
+	private static final String[] STATUS_FIELDS = { "status" };
+	
 	public Switch(String deviceId, GatewayClient gwClient, int updateInterval) {
 		super(deviceId, gwClient, updateInterval);
 		this.deviceType = DeviceType.SWITCH;
@@ -41,12 +44,12 @@ public class Switch extends Device {
 	/**
 	 * This method sends the status event (Switch status event) at every interval.
 	 */
-	public void run() {
+	public synchronized void run() {
 		// Ideally one should read the current values from the Switch and report to IoT Platform
-		JsonObject event = new JsonObject();
-		event.addProperty("status", status);
-		System.out.println("<--("+this.getDeviceId()+") "+event);
-		boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "status", event);
+		EventEncoder encoder = getEncoder("status", STATUS_FIELDS);
+		byte[] event = encoder.begin().value(status).toBytes();
+		System.out.println("<--("+this.getDeviceId()+") "+describeEvent(event, encoder.getFormat()));
+		boolean status = publishEvent("status", event, encoder.getFormat());
 		if(status == false) {
 			System.err.println("Event publish from device "+this.getDeviceId() + " failed");
 		}
@@ -55,7 +58,7 @@ public class Switch extends Device {
 	/**
 	 * The gateway sends command to on/off switch
 	 */
-	public void processCommand(String cmd) {
+	public synchronized void processCommand(String cmd) {
 		try {
 			JsonObject payloadJson = JSON_PARSER.parse(cmd).getAsJsonObject();
 			if (payloadJson.has("d")) {
@@ -16,8 +16,8 @@ package com.zmartify.iotf.tools.gateway.home;
 
 import java.util.Random;
 
-import com.google.gson.JsonObject;
 import com.ibm.iotf.client.gateway.GatewayClient;
+import com.zmartify.iotf.tools.gateway.EventEncoder;
 
 /**
  * <p>This class act as a Temperature device that reads the temperature. <br> 
@@ -29,6 +29,8 @@ import com.ibm.iotf.client.gateway.GatewayClient;
 public class Temperature extends Device {
 	
 	private Random random = new Random();
+	
+	private static final String[] READING_FIELDS = { "temp", "humidity" };
 
 	public Temperature(String deviceId, GatewayClient gwClient, int updateInterval) {
 		super(deviceId, gwClient, updateInterval);
@@ -40,17 +42,18 @@ public class Temperature extends Device {
 	 */
 	public void run() {
 		// Ideally one should read the current values from the Switch and report to IoT Platform
-		JsonObject event = new JsonObject();
+		EventEncoder encoder = getEncoder("reading", READING_FIELDS);
+		EventEncoder.Writer writer = encoder.begin();
 		// send higher value randomly
 		if(getRandomValue(0, 100) == 30) {
-			event.addProperty("temp", 103);	// in fahrenheit
+			writer.value(103);	// in fahrenheit
 		} else {
-			event.addProperty("temp", getRandomValue(80, 100));	// in fahrenheit
+			writer.value(getRandomValue(80, 100));	// in fahrenheit
 		}
-		event.addProperty("humidity", getRandomValue(40, 100));	// in fahrenheit
+		byte[] event = writer.value(getRandomValue(40, 100)).toBytes();	// in fahrenheit
 		
-		System.out.println("<--("+this.getDeviceId()+") "+event);
-		boolean status = this.gwClient.publishDeviceEvent(deviceType.getDeviceType(), this.getDeviceId(), "reading", event);
+		System.out.println("<--("+this.getDeviceId()+") "+describeEvent(event, encoder.getFormat()));
+		boolean status = publishEvent("reading", event, encoder.getFormat());
 		if(status == false) {
 			System.err.println("Event publish from device "+this.getDeviceId() + " failed");
 		}